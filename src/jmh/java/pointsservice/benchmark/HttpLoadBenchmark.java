@@ -0,0 +1,141 @@
+package pointsservice.benchmark;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import pointsservice.FetchChallengePointsServiceApplication;
+
+/**
+ * Earn, spend and balance requests over HTTP, served on Tomcat's thread pool.
+ * <p>
+ * Each benchmark thread is one client with its own user, sending a request and waiting for the response before the
+ * next. Run with many more threads than {@code tomcatThreads} to see the pool saturate, e.g.
+ * {@code -Djmh.threads=200 -Djmh.args="HttpLoadBenchmark"}, which reports throughput and the latency percentiles of
+ * each endpoint.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class HttpLoadBenchmark {
+
+  private static final long SPEND_TOP_UP = 1_000_000;
+
+  @State(Scope.Benchmark)
+  public static class Server {
+
+    @Param({"20"})
+    public int tomcatThreads;
+
+    private ServletWebServerApplicationContext context;
+    private HttpClient client;
+    private String baseUrl;
+    private final List<Long> userIds = new ArrayList<>();
+    private final AtomicInteger nextUser = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void start(final BenchmarkParams params) {
+      context = (ServletWebServerApplicationContext) new SpringApplicationBuilder(FetchChallengePointsServiceApplication.class)
+          .run(
+              "--server.port=0",
+              "--server.tomcat.threads.max=" + tomcatThreads,
+              "--points.compaction.enabled=false",
+              "--spring.datasource.url=jdbc:h2:mem:points_http_jmh",
+              "--spring.datasource.hikari.maximum-pool-size=" + tomcatThreads,
+              "--spring.h2.console.enabled=false",
+              "--springdoc.api-docs.enabled=false",
+              "--logging.level.root=WARN"
+          );
+      baseUrl = "http://localhost:" + context.getWebServer().getPort() + "/points/user/";
+      client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+      final JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+      for (int user = 0; user < params.getThreads(); user++) {
+        jdbcTemplate.update("INSERT INTO users (user_name) VALUES (?)", "http_benchmark_user_" + user);
+        userIds.add(jdbcTemplate.queryForObject("SELECT MAX(user_id) FROM users", Long.class));
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+      context.close();
+    }
+
+    private int send(final HttpRequest.Builder request) throws IOException, InterruptedException {
+      final HttpResponse<Void> response = client.send(request.build(), HttpResponse.BodyHandlers.discarding());
+      if (response.statusCode() != 200) {
+        throw new IllegalStateException(request.build() + " returned " + response.statusCode());
+      }
+      return response.statusCode();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Client {
+
+    private URI userUri;
+
+    @Setup(Level.Trial)
+    public void assignUser(final Server server) {
+      userUri = URI.create(server.baseUrl + server.userIds.get(server.nextUser.getAndIncrement() % server.userIds.size()));
+    }
+
+    /**
+     * Adds a lot newer than any other, so spends never run the user dry however many iterations JMH runs.
+     */
+    @Setup(Level.Iteration)
+    public void topUp(final Server server) throws IOException, InterruptedException {
+      server.send(post(userUri, SPEND_TOP_UP));
+    }
+  }
+
+  @Benchmark
+  public int addTransaction(final Server server, final Client client) throws IOException, InterruptedException {
+    return server.send(post(client.userUri, 1L));
+  }
+
+  @Benchmark
+  public int spendPoints(final Server server, final Client client) throws IOException, InterruptedException {
+    return server.send(HttpRequest.newBuilder(client.userUri)
+        .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"points\": 1}"))
+        .header("Content-Type", "application/json"));
+  }
+
+  @Benchmark
+  public int getPointsBalance(final Server server, final Client client) throws IOException, InterruptedException {
+    return server.send(HttpRequest.newBuilder(client.userUri).GET());
+  }
+
+  private static HttpRequest.Builder post(final URI userUri, final long points) {
+    return HttpRequest.newBuilder(userUri)
+        .POST(HttpRequest.BodyPublishers.ofString(
+            "{\"payer\": \"DANNON\", \"points\": " + points + ", \"timestamp\": \"" + Instant.now() + "\"}"
+        ))
+        .header("Content-Type", "application/json");
+  }
+}
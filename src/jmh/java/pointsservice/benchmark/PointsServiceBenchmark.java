@@ -0,0 +1,157 @@
+package pointsservice.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import pointsservice.FetchChallengePointsServiceApplication;
+import pointsservice.model.request.TransactionRequest;
+import pointsservice.model.request.UserSpendRequest;
+import pointsservice.model.response.PointsBalanceResponse;
+import pointsservice.model.response.TransactionResponse;
+import pointsservice.model.response.UserSpendResponse;
+import pointsservice.service.PointsService;
+
+/**
+ * Earn, spend and balance calls against a seeded in-memory H2 database.
+ * <p>
+ * Every benchmark thread gets its own user, seeded with {@code historySize} open lots spread evenly over
+ * {@code payers} payers. Thread counts are set per run with {@code -Djmh.threads}, see the {@code jmh} profile.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PointsServiceBenchmark {
+
+  private static final long POINTS_PER_LOT = 1000;
+  private static final long SPEND_TOP_UP = 1_000_000;
+
+  @State(Scope.Benchmark)
+  public static class Service {
+
+    @Param({"10", "10000", "1000000"})
+    public int historySize;
+
+    @Param({"1", "10"})
+    public int payers;
+
+    private ConfigurableApplicationContext context;
+    private PointsService pointsService;
+    private final List<Long> userIds = new ArrayList<>();
+    private final List<String> payerNames = new ArrayList<>();
+    private final AtomicInteger nextUser = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void start(final BenchmarkParams params) {
+      context = new SpringApplicationBuilder(FetchChallengePointsServiceApplication.class)
+          .web(WebApplicationType.NONE)
+          .run(
+              "--spring.datasource.url=jdbc:h2:mem:points_jmh",
+              "--spring.h2.console.enabled=false",
+              "--springdoc.api-docs.enabled=false",
+              "--logging.level.root=WARN"
+          );
+      pointsService = context.getBean(PointsService.class);
+      final JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+
+      final List<Long> payerIds = new ArrayList<>();
+      for (int payer = 0; payer < payers; payer++) {
+        final String payerName = "BENCHMARK_PAYER_" + payer;
+        jdbcTemplate.update("INSERT INTO payers (payer_name) VALUES (?)", payerName);
+        payerNames.add(payerName);
+        payerIds.add(jdbcTemplate.queryForObject("SELECT payer_id FROM payers WHERE payer_name = ?", Long.class, payerName));
+      }
+
+      long nextTransactionId = -1;
+      for (int user = 0; user < params.getThreads(); user++) {
+        jdbcTemplate.update("INSERT INTO users (user_name) VALUES (?)", "benchmark_user_" + user);
+        final Long userId = jdbcTemplate.queryForObject("SELECT MAX(user_id) FROM users", Long.class);
+        userIds.add(userId);
+        for (int payer = 0; payer < payers; payer++) {
+          final int lots = historySize / payers + (payer < historySize % payers ? 1 : 0);
+          jdbcTemplate.update(
+              "INSERT INTO balances (point_balance, user_id, payer_id) VALUES (?, ?, ?)",
+              lots * POINTS_PER_LOT, userId, payerIds.get(payer)
+          );
+          jdbcTemplate.update(
+              "INSERT INTO transactions (transaction_id, transaction_points, remaining_points, timestamp, user_id, payer_id)"
+                  + " SELECT ? - x, ?, ?, DATEADD('SECOND', x * ?, TIMESTAMP '2020-01-01 00:00:00'), ?, ?"
+                  + " FROM SYSTEM_RANGE(1, ?)",
+              nextTransactionId + 1, POINTS_PER_LOT, POINTS_PER_LOT, payers, userId, payerIds.get(payer), lots
+          );
+          nextTransactionId -= lots;
+        }
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+      context.close();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Caller {
+
+    private Long userId;
+
+    @Setup(Level.Trial)
+    public void assignUser(final Service service) {
+      userId = service.userIds.get(service.nextUser.getAndIncrement() % service.userIds.size());
+    }
+
+    /**
+     * Adds a lot newer than any other, so spends never run the user dry however many iterations JMH runs.
+     */
+    @Setup(Level.Iteration)
+    public void topUp(final Service service) {
+      service.pointsService.addTransaction(userId, new TransactionRequest(
+          service.payerNames.get(0), SPEND_TOP_UP, new Date()
+      ));
+    }
+
+    private String randomPayer(final Service service) {
+      return service.payerNames.get(ThreadLocalRandom.current().nextInt(service.payerNames.size()));
+    }
+  }
+
+  @Benchmark
+  public TransactionResponse addTransaction(final Service service, final Caller caller) {
+    return service.pointsService.addTransaction(caller.userId, new TransactionRequest(
+        caller.randomPayer(service), 1L, new Date()
+    ));
+  }
+
+  @Benchmark
+  public Set<UserSpendResponse> spendPoints(final Service service, final Caller caller) {
+    return service.pointsService.spendPoints(caller.userId, new UserSpendRequest(1L));
+  }
+
+  @Benchmark
+  public PointsBalanceResponse getPointsBalance(final Service service, final Caller caller) {
+    return service.pointsService.getPointsBalance(caller.userId);
+  }
+}
@@ -0,0 +1,36 @@
+package pointsservice;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import lombok.Generated;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import pointsservice.ingest.ImportPipeline;
+
+/**
+ * Replays NDJSON transaction files into the configured datasource without starting the web server, e.g.
+ * {@code java -cp app.jar -Dloader.main=pointsservice.PointsImportApplication org.springframework.boot.loader.PropertiesLauncher
+ * --spring.datasource.url=jdbc:h2:file:./points_db receipts.ndjson}.
+ */
+public class PointsImportApplication {
+
+  @Generated
+  public static void main(String[] args) throws Exception {
+    try (ConfigurableApplicationContext context = new SpringApplicationBuilder(FetchChallengePointsServiceApplication.class)
+        .web(WebApplicationType.NONE)
+        .properties("springdoc.api-docs.enabled=false")
+        .run(args)) {
+      final ImportPipeline importPipeline = context.getBean(ImportPipeline.class);
+      for (String arg : args) {
+        if (arg.startsWith("--")) {
+          continue;
+        }
+        try (InputStream inputStream = Files.newInputStream(Path.of(arg))) {
+          System.out.println(arg + ": " + importPipeline.importTransactions(inputStream));
+        }
+      }
+    }
+  }
+}
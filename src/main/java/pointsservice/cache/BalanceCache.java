@@ -0,0 +1,90 @@
+package pointsservice.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import lombok.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import pointsservice.configuration.PointsProperties;
+import pointsservice.model.response.PointsBalanceResponse;
+
+/**
+ * Balance responses by user id, so repeated polls for an unchanged balance are served from memory.
+ * <p>
+ * The most recent ones are kept in a bounded map that drops entries once they are older than the configured time to
+ * live. Balances are loaded outside the map's lock, and a load is only cached if the user was not evicted while it
+ * ran. Evictions made inside a database transaction are repeated once it completes, so a read that slipped in before
+ * the commit cannot leave the old balance behind.
+ */
+@Component
+public class BalanceCache {
+
+  private final long ttlMillis;
+  private final Map<Long, Entry> balances;
+  private final Map<Long, Object> loads = new HashMap<>();
+
+  public BalanceCache(final PointsProperties properties) {
+    this.ttlMillis = properties.getBalances().getCacheTtl().toMillis();
+    final int cacheSize = properties.getBalances().getCacheSize();
+    this.balances = new LinkedHashMap<>() {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Long, Entry> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  public PointsBalanceResponse get(final Long userId, final Function<Long, PointsBalanceResponse> loader) {
+    final Object load = new Object();
+    synchronized (this) {
+      final Entry entry = balances.get(userId);
+      if (entry != null && entry.getExpiresAt() >= System.currentTimeMillis()) {
+        return entry.getBalance();
+      }
+      balances.remove(userId);
+      loads.put(userId, load);
+    }
+    final PointsBalanceResponse balance;
+    try {
+      balance = loader.apply(userId);
+    } catch (RuntimeException exception) {
+      synchronized (this) {
+        loads.remove(userId, load);
+      }
+      throw exception;
+    }
+    synchronized (this) {
+      if (loads.remove(userId, load)) {
+        balances.put(userId, new Entry(balance, System.currentTimeMillis() + ttlMillis));
+      }
+    }
+    return balance;
+  }
+
+  public void evict(final Long userId) {
+    remove(userId);
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(final int status) {
+          remove(userId);
+        }
+      });
+    }
+  }
+
+  private synchronized void remove(final Long userId) {
+    balances.remove(userId);
+    loads.remove(userId);
+  }
+
+  @Value
+  private static class Entry {
+
+    PointsBalanceResponse balance;
+    long expiresAt;
+  }
+}
@@ -0,0 +1,190 @@
+package pointsservice.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import lombok.SneakyThrows;
+import lombok.Value;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import pointsservice.configuration.PointsProperties;
+import pointsservice.engine.BalanceEngine;
+import pointsservice.engine.Mutation;
+import pointsservice.error.model.IdempotencyKeyReusedException;
+import pointsservice.model.entity.IdempotencyKeyEntity;
+import pointsservice.model.entity.IdempotencyKeyId;
+import pointsservice.repository.IdempotencyKeyRepository;
+
+/**
+ * Responses by (user, operation, {@code Idempotency-Key}), so a retried request gets the original response back
+ * without being applied again.
+ * <p>
+ * Every response is written to {@code idempotency_keys} in the same database transaction as the change it describes,
+ * or in {@code memory} mode logged by the {@link BalanceEngine} with the change, as a {@link Mutation}, and held by
+ * the engine until it is written. The most recent ones are also kept in a bounded in-memory map that drops entries
+ * once they are older than the configured time to live; anything not in memory falls through to the engine, then the
+ * table.
+ * <p>
+ * Each key is stored with a hash of its request, and a key sent again with a different request is rejected.
+ */
+@Component
+public class IdempotencyCache {
+
+  private final IdempotencyKeyRepository idempotencyKeyRepository;
+  private final ObjectMapper objectMapper;
+  private final ObjectProvider<BalanceEngine> balanceEngine;
+  private final long ttlMillis;
+  private final Map<IdempotencyKeyId, Entry> responses;
+
+  public IdempotencyCache(
+      final IdempotencyKeyRepository idempotencyKeyRepository,
+      final ObjectMapper objectMapper,
+      final ObjectProvider<BalanceEngine> balanceEngine,
+      final PointsProperties properties
+  ) {
+    this.idempotencyKeyRepository = idempotencyKeyRepository;
+    this.objectMapper = objectMapper;
+    this.balanceEngine = balanceEngine;
+    this.ttlMillis = properties.getIdempotency().getCacheTtl().toMillis();
+    final int cacheSize = properties.getIdempotency().getCacheSize();
+    this.responses = new LinkedHashMap<>() {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<IdempotencyKeyId, Entry> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * @return the response first returned for this key, if there was one
+   * @throws IdempotencyKeyReusedException if the key was first sent with a different request
+   */
+  public <T> Optional<T> find(
+      final Long userId,
+      final String operation,
+      final String idempotencyKey,
+      final Object request,
+      final TypeReference<T> responseType
+  ) throws IdempotencyKeyReusedException {
+    final IdempotencyKeyId id = new IdempotencyKeyId(userId, operation, idempotencyKey);
+    final long requestHash = requestHash(request);
+    Entry entry = get(id);
+    if (entry == null) {
+      final BalanceEngine engine = balanceEngine.getIfAvailable();
+      entry = Optional.ofNullable(engine)
+          .flatMap(pending -> pending.pendingKey(userId, operation, idempotencyKey))
+          .map(key -> new Entry(read(key.getResponse(), responseType), key.getPoints(), 0))
+          .or(() -> idempotencyKeyRepository.findById(id).map(entity -> new Entry(
+              read(entity.getResponse(), responseType), entity.getRequestHash(), 0
+          )))
+          .orElse(null);
+      if (entry == null) {
+        return Optional.empty();
+      }
+      put(id, entry.getResponse(), entry.getRequestHash());
+    }
+    if (entry.getRequestHash() != requestHash) {
+      throw new IdempotencyKeyReusedException(
+          "Idempotency-Key " + idempotencyKey + " was already used for a different request"
+      );
+    }
+    @SuppressWarnings("unchecked") final T response = (T) entry.getResponse();
+    return Optional.of(response);
+  }
+
+  /**
+   * Records the response for a key. Inside a database transaction the response is only cached once it commits.
+   */
+  public void save(
+      final Long userId,
+      final String operation,
+      final String idempotencyKey,
+      final Object request,
+      final Object response
+  ) {
+    final IdempotencyKeyId id = new IdempotencyKeyId(userId, operation, idempotencyKey);
+    final long requestHash = requestHash(request);
+    idempotencyKeyRepository.save(new IdempotencyKeyEntity(
+        userId, operation, idempotencyKey, requestHash, write(response), new Date()
+    ));
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          put(id, response, requestHash);
+        }
+      });
+    } else {
+      put(id, response, requestHash);
+    }
+  }
+
+  /**
+   * For {@code memory} mode: the {@link Mutation} that records a response for a key, for the {@link BalanceEngine} to
+   * log with the change.
+   */
+  public Function<Object, Mutation> recorder(
+      final Long userId,
+      final String operation,
+      final String idempotencyKey,
+      final Object request
+  ) {
+    final long requestHash = requestHash(request);
+    return response -> Mutation.idempotencyKey(
+        userId, operation, idempotencyKey, requestHash, write(response), System.currentTimeMillis()
+    );
+  }
+
+  private synchronized Entry get(final IdempotencyKeyId id) {
+    final Entry entry = responses.get(id);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.getExpiresAt() < System.currentTimeMillis()) {
+      responses.remove(id);
+      return null;
+    }
+    return entry;
+  }
+
+  private synchronized void put(final IdempotencyKeyId id, final Object response, final long requestHash) {
+    responses.put(id, new Entry(response, requestHash, System.currentTimeMillis() + ttlMillis));
+  }
+
+  /**
+   * The first eight bytes of the SHA-256 of the request as JSON.
+   */
+  @SneakyThrows({JsonProcessingException.class, NoSuchAlgorithmException.class})
+  private long requestHash(final Object request) {
+    return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(objectMapper.writeValueAsBytes(request)))
+        .getLong();
+  }
+
+  @SneakyThrows(JsonProcessingException.class)
+  private String write(final Object response) {
+    return objectMapper.writeValueAsString(response);
+  }
+
+  @SneakyThrows(JsonProcessingException.class)
+  private <T> T read(final String response, final TypeReference<T> responseType) {
+    return objectMapper.readValue(response, responseType);
+  }
+
+  @Value
+  private static class Entry {
+
+    Object response;
+    long requestHash;
+    long expiresAt;
+  }
+}
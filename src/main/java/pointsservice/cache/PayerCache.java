@@ -0,0 +1,85 @@
+package pointsservice.cache;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import pointsservice.model.entity.PayerEntity;
+import pointsservice.repository.PayerRepository;
+
+/**
+ * Payers by case-folded name, and by id. Loaded once at startup, after which a known payer costs no database round trip.
+ * <p>
+ * Names that are not cached fall through to the database, so payers added out of band are picked up on first use;
+ * {@link PayerCacheInvalidator} drops entries when payers are written through JPA.
+ */
+@Component
+public class PayerCache {
+
+  private final PayerRepository payerRepository;
+  private final Map<String, PayerEntity> payers = new ConcurrentHashMap<>();
+  private final Map<Long, PayerEntity> payersById = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public PayerCache(final PayerRepository payerRepository) {
+    this.payerRepository = payerRepository;
+  }
+
+  @EventListener(ContextRefreshedEvent.class)
+  public void warm() {
+    payerRepository.findAll().forEach(this::put);
+  }
+
+  public Optional<PayerEntity> get(final String payerName) {
+    final String key = fold(payerName);
+    final PayerEntity payer = payers.get(key);
+    if (payer != null) {
+      hits.increment();
+      return Optional.of(payer);
+    }
+    misses.increment();
+    final Optional<PayerEntity> loaded = payerRepository.findByPayerNameIgnoreCase(key);
+    loaded.ifPresent(this::put);
+    return loaded;
+  }
+
+  public Optional<PayerEntity> get(final long payerId) {
+    final PayerEntity payer = payersById.get(payerId);
+    if (payer != null) {
+      hits.increment();
+      return Optional.of(payer);
+    }
+    misses.increment();
+    final Optional<PayerEntity> loaded = payerRepository.findById(payerId);
+    loaded.ifPresent(this::put);
+    return loaded;
+  }
+
+  public void invalidate() {
+    payers.clear();
+    payersById.clear();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  private void put(final PayerEntity payer) {
+    payer.setPayerName(payer.getPayerName().intern());
+    payers.put(fold(payer.getPayerName()), payer);
+    payersById.put(payer.getPayerId(), payer);
+  }
+
+  private static String fold(final String payerName) {
+    return payerName.toUpperCase(Locale.ROOT);
+  }
+}
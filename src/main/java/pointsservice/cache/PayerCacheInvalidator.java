@@ -0,0 +1,26 @@
+package pointsservice.cache;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+import org.springframework.beans.factory.ObjectProvider;
+import pointsservice.model.entity.PayerEntity;
+
+/**
+ * Clears the {@link PayerCache} whenever a payer is created, renamed or deleted through JPA.
+ */
+public class PayerCacheInvalidator {
+
+  private final ObjectProvider<PayerCache> payerCache;
+
+  public PayerCacheInvalidator(final ObjectProvider<PayerCache> payerCache) {
+    this.payerCache = payerCache;
+  }
+
+  @PostPersist
+  @PostUpdate
+  @PostRemove
+  public void invalidate(final PayerEntity payer) {
+    payerCache.ifAvailable(PayerCache::invalidate);
+  }
+}
@@ -0,0 +1,162 @@
+package pointsservice.compaction;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import pointsservice.configuration.PointsProperties;
+import pointsservice.metrics.PointsMetrics;
+import pointsservice.model.entity.BalanceId;
+
+/**
+ * Moves fully consumed lots out of {@code transactions}, so a user's rows there stay proportional to their unspent
+ * lots however long their history gets.
+ * <p>
+ * Each batch copies consumed lots to {@code transaction_history}, adds their points and count to the (user, payer)
+ * row in {@code balance_snapshots} and deletes them, all in one database transaction. A lot never changes again once
+ * its remaining points reach zero, so this takes no user locks and never conflicts with a concurrent earn or spend.
+ */
+@Slf4j
+@Component
+public class LotCompactor {
+
+  private static final String SELECT_CONSUMED =
+      "SELECT transaction_id, transaction_points, timestamp, user_id, payer_id FROM transactions"
+          + " WHERE open_lot = FALSE ORDER BY transaction_id LIMIT ?";
+  private static final String INSERT_HISTORY =
+      "INSERT INTO transaction_history (transaction_id, transaction_points, timestamp, user_id, payer_id, archived_at)"
+          + " VALUES (?, ?, ?, ?, ?, ?)";
+  private static final String UPDATE_SNAPSHOT =
+      "UPDATE balance_snapshots SET archived_points = archived_points + ?, archived_lots = archived_lots + ?,"
+          + " archived_through = GREATEST(archived_through, ?) WHERE user_id = ? AND payer_id = ?";
+  private static final String INSERT_SNAPSHOT =
+      "INSERT INTO balance_snapshots (archived_points, archived_lots, archived_through, user_id, payer_id)"
+          + " VALUES (?, ?, ?, ?, ?)";
+  private static final String DELETE_CONSUMED =
+      "DELETE FROM transactions WHERE transaction_id = ? AND remaining_points = 0";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+  private final PointsMetrics pointsMetrics;
+  private final int batchSize;
+
+  public LotCompactor(
+      final JdbcTemplate jdbcTemplate,
+      final TransactionTemplate transactionTemplate,
+      final PointsMetrics pointsMetrics,
+      final PointsProperties properties
+  ) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionTemplate = transactionTemplate;
+    this.pointsMetrics = pointsMetrics;
+    this.batchSize = properties.getCompaction().getBatchSize();
+  }
+
+  /**
+   * Archives consumed lots a batch at a time until a batch comes back short. Returns the number archived.
+   */
+  public long compact() {
+    long archived = 0;
+    int lots;
+    do {
+      lots = archiveBatch();
+      archived += lots;
+    } while (lots == batchSize);
+    if (archived > 0) {
+      log.info("Archived {} consumed lots", archived);
+    }
+    return archived;
+  }
+
+  private int archiveBatch() {
+    final List<ConsumedLot> lots = transactionTemplate.execute(status -> {
+      final List<ConsumedLot> consumed = jdbcTemplate.query(SELECT_CONSUMED, (row, rowNumber) -> new ConsumedLot(
+          row.getLong("transaction_id"),
+          row.getLong("transaction_points"),
+          row.getTimestamp("timestamp"),
+          row.getLong("user_id"),
+          row.getLong("payer_id")
+      ), batchSize);
+      if (consumed.isEmpty()) {
+        return consumed;
+      }
+
+      final Timestamp archivedAt = new Timestamp(System.currentTimeMillis());
+      jdbcTemplate.batchUpdate(INSERT_HISTORY, consumed, batchSize, (statement, lot) -> {
+        statement.setLong(1, lot.transactionId);
+        statement.setLong(2, lot.transactionPoints);
+        statement.setTimestamp(3, lot.timestamp);
+        statement.setLong(4, lot.userId);
+        statement.setLong(5, lot.payerId);
+        statement.setTimestamp(6, archivedAt);
+      });
+      foldIntoSnapshots(consumed);
+      final int[][] deleted = jdbcTemplate.batchUpdate(DELETE_CONSUMED, consumed, batchSize, (statement, lot) ->
+          statement.setLong(1, lot.transactionId)
+      );
+      for (int[] chunk : deleted) {
+        for (int count : chunk) {
+          if (count != 1) {
+            throw new IllegalStateException("A consumed lot changed while it was being archived");
+          }
+        }
+      }
+      return consumed;
+    });
+    pointsMetrics.recordLotsArchived(lots.size());
+    return lots.size();
+  }
+
+  private void foldIntoSnapshots(final List<ConsumedLot> lots) {
+    final Map<BalanceId, Snapshot> snapshots = new LinkedHashMap<>();
+    lots.forEach(lot -> snapshots
+        .computeIfAbsent(new BalanceId(lot.userId, lot.payerId), id -> new Snapshot())
+        .add(lot));
+
+    final List<Object[]> rows = new ArrayList<>(snapshots.size());
+    snapshots.forEach((id, snapshot) -> rows.add(new Object[]{
+        snapshot.points, snapshot.lots, snapshot.through, id.getUser(), id.getPayer()
+    }));
+    final int[] updated = jdbcTemplate.batchUpdate(UPDATE_SNAPSHOT, rows);
+    final List<Object[]> missing = new ArrayList<>();
+    for (int i = 0; i < updated.length; i++) {
+      if (updated[i] == 0) {
+        missing.add(rows.get(i));
+      }
+    }
+    if (!missing.isEmpty()) {
+      jdbcTemplate.batchUpdate(INSERT_SNAPSHOT, missing);
+    }
+  }
+
+  @AllArgsConstructor
+  private static class ConsumedLot {
+
+    private final long transactionId;
+    private final long transactionPoints;
+    private final Timestamp timestamp;
+    private final long userId;
+    private final long payerId;
+  }
+
+  private static class Snapshot {
+
+    private long points;
+    private long lots;
+    private Timestamp through;
+
+    private void add(final ConsumedLot lot) {
+      points += lot.transactionPoints;
+      lots++;
+      if (through == null || lot.timestamp.after(through)) {
+        through = lot.timestamp;
+      }
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package pointsservice.configuration;
+
+import java.time.Duration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.IntervalTask;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import pointsservice.compaction.LotCompactor;
+import pointsservice.history.BalanceCheckpointer;
+
+/**
+ * Runs the {@link LotCompactor} every {@code points.compaction.interval} and the {@link BalanceCheckpointer} every
+ * {@code points.compaction.checkpoint-interval}, each starting one interval after startup.
+ */
+@Configuration
+@EnableScheduling
+@ConditionalOnProperty(prefix = "points.compaction", name = "enabled", havingValue = "true", matchIfMissing = true)
+public class CompactionConfiguration implements SchedulingConfigurer {
+
+  private final LotCompactor lotCompactor;
+  private final BalanceCheckpointer balanceCheckpointer;
+  private final PointsProperties.Compaction properties;
+
+  public CompactionConfiguration(
+      final LotCompactor lotCompactor,
+      final BalanceCheckpointer balanceCheckpointer,
+      final PointsProperties properties
+  ) {
+    this.lotCompactor = lotCompactor;
+    this.balanceCheckpointer = balanceCheckpointer;
+    this.properties = properties.getCompaction();
+  }
+
+  @Override
+  public void configureTasks(final ScheduledTaskRegistrar registrar) {
+    registrar.addFixedDelayTask(every(properties.getInterval(), lotCompactor::compact));
+    registrar.addFixedDelayTask(every(properties.getCheckpointInterval(), balanceCheckpointer::checkpoint));
+  }
+
+  private static IntervalTask every(final Duration interval, final Runnable task) {
+    return new IntervalTask(task, interval.toMillis(), interval.toMillis());
+  }
+}
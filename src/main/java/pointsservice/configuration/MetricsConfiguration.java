@@ -0,0 +1,55 @@
+package pointsservice.configuration;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.hibernate.cfg.AvailableSettings;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import pointsservice.cache.PayerCache;
+import pointsservice.metrics.RequestStatementCounter;
+import pointsservice.metrics.SqlStatementsInterceptor;
+
+/**
+ * Meters published on {@code /actuator/metrics} beyond the ones {@link pointsservice.metrics.PointsMetrics} records
+ * directly. Cache beans are looked up when a meter is read rather than injected, since the meter registry is built
+ * before the repositories they depend on.
+ */
+@Configuration
+public class MetricsConfiguration {
+
+  @Bean
+  public MeterBinder payerCacheMetrics(final ObjectProvider<PayerCache> payerCache) {
+    return registry -> {
+      FunctionCounter.builder("points.payer.cache", payerCache, cache -> cache.getObject().getHits())
+          .tag("result", "hit")
+          .register(registry);
+      FunctionCounter.builder("points.payer.cache", payerCache, cache -> cache.getObject().getMisses())
+          .tag("result", "miss")
+          .register(registry);
+    };
+  }
+
+  @Bean
+  public HibernatePropertiesCustomizer statementCounterCustomizer(final RequestStatementCounter statementCounter) {
+    return hibernateProperties -> hibernateProperties.put(AvailableSettings.STATEMENT_INSPECTOR, statementCounter);
+  }
+
+  @Bean
+  public WebMvcConfigurer sqlStatementsMetrics(
+      final RequestStatementCounter statementCounter,
+      final MeterRegistry registry
+  ) {
+    return new WebMvcConfigurer() {
+      @Override
+      public void addInterceptors(final InterceptorRegistry interceptors) {
+        interceptors.addInterceptor(new SqlStatementsInterceptor(statementCounter, registry))
+            .addPathPatterns("/points/**");
+      }
+    };
+  }
+}
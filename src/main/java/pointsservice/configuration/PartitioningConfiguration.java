@@ -0,0 +1,49 @@
+package pointsservice.configuration;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import pointsservice.partition.PartitionRoutingFilter;
+import pointsservice.partition.PartitionTable;
+
+/**
+ * Puts the {@link PartitionRoutingFilter} in front of the per-user API. The bulk and admin endpoints are not routed
+ * and act on this node's own database.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "points.partitioning", name = "enabled", havingValue = "true")
+public class PartitioningConfiguration {
+
+  private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+
+  @Bean
+  public HttpClient partitionHttpClient() {
+    return HttpClient.newBuilder()
+        .connectTimeout(CONNECT_TIMEOUT)
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .build();
+  }
+
+  @Bean
+  public FilterRegistrationBean<PartitionRoutingFilter> partitionRoutingFilter(
+      final PartitionTable partitionTable,
+      final HttpClient partitionHttpClient,
+      final ObjectMapper objectMapper,
+      final PointsProperties properties
+  ) {
+    final FilterRegistrationBean<PartitionRoutingFilter> registration = new FilterRegistrationBean<>(
+        new PartitionRoutingFilter(
+            partitionTable,
+            partitionHttpClient,
+            objectMapper,
+            "forward".equals(properties.getPartitioning().getMode())
+        )
+    );
+    registration.addUrlPatterns("/points/user", "/points/user/*");
+    return registration;
+  }
+}
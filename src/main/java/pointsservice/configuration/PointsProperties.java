@@ -0,0 +1,119 @@
+package pointsservice.configuration;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+@Data
+@ConfigurationProperties(prefix = "points")
+public class PointsProperties {
+
+  private Engine engine = new Engine();
+  private Ingest ingest = new Ingest();
+  private Balances balances = new Balances();
+  private Idempotency idempotency = new Idempotency();
+  private Compaction compaction = new Compaction();
+  private Snapshot snapshot = new Snapshot();
+  private Partitioning partitioning = new Partitioning();
+
+  @Data
+  public static class Engine {
+
+    /**
+     * {@code jpa} writes every request through to the database, {@code memory} serves balances from the
+     * {@link pointsservice.engine.BalanceEngine} and writes them behind.
+     */
+    private String mode = "jpa";
+    /**
+     * {@code text} appends mutations to {@code log-path} and drops the prefix already in the database,
+     * {@code journal} keeps them all in memory-mapped segments under {@code journal-path}, forced to disk before a
+     * request is acknowledged, and rebuilds the database from them on startup.
+     */
+    private String logFormat = "text";
+    private Path logPath = Path.of("points-engine.log");
+    private Path journalPath = Path.of("points-journal");
+    private DataSize journalSegmentSize = DataSize.ofMegabytes(64);
+    private int batchSize = 500;
+    private Duration flushInterval = Duration.ofMillis(50);
+  }
+
+  @Data
+  public static class Ingest {
+
+    /** Transactions handed to the apply stage at a time, each batch applied in one database transaction. */
+    private int batchSize = 1000;
+    /** Apply workers; a user's transactions always go to the same worker. */
+    private int partitions = Runtime.getRuntime().availableProcessors();
+    /**
+     * Batches per partition an import may have waiting before the reader blocks, and partitions a bulk spend worker
+     * may have waiting before a request spends its own.
+     */
+    private int queueCapacity = 4;
+  }
+
+  @Data
+  public static class Balances {
+
+    /** Balance responses kept in memory; any other balance is read from the database. */
+    private int cacheSize = 100_000;
+    /** How long a balance stays in memory after it was loaded, unless a change to it evicts it sooner. */
+    private Duration cacheTtl = Duration.ofMinutes(10);
+  }
+
+  @Data
+  public static class Idempotency {
+
+    /** Responses kept in memory; older ones are still replayed, from the database. */
+    private int cacheSize = 10_000;
+    /** How long a response stays in memory after it was first returned. */
+    private Duration cacheTtl = Duration.ofHours(1);
+  }
+
+  @Data
+  public static class Compaction {
+
+    /** Runs the {@link pointsservice.compaction.LotCompactor} in the background. */
+    private boolean enabled = true;
+    /** Time between the end of one compaction run and the start of the next. */
+    private Duration interval = Duration.ofMinutes(10);
+    /** Time between balance checkpoint runs, see {@link pointsservice.history.BalanceCheckpointer}. */
+    private Duration checkpointInterval = Duration.ofHours(1);
+    /** Consumed lots archived, or balances checkpointed, per database transaction. */
+    private int batchSize = 1000;
+  }
+
+  @Data
+  public static class Snapshot {
+
+    /** Loads {@code path} on startup if it exists and writes it on graceful shutdown. */
+    private boolean enabled = false;
+    private Path path = Path.of("points-snapshot.bin");
+  }
+
+  @Data
+  public static class Partitioning {
+
+    /**
+     * Serves only the users in partitions this node owns, sending requests for any other user to its owner. See
+     * {@link pointsservice.partition.PartitionTable}.
+     */
+    private boolean enabled = false;
+    /** User ids are split into this many partitions by {@code userId mod partitions}. */
+    private int partitions = 64;
+    /** Base URL of every node, the same list on each; partition {@code p} starts on node {@code p mod nodes}. */
+    private List<String> nodes = List.of();
+    /** This node's base URL, as it appears in {@code nodes}. */
+    private String self;
+    /** Partitions that start on some other node than their default, such as ones moved before a restart. */
+    private Map<Integer, String> owners = Map.of();
+    /**
+     * {@code redirect} answers a request for another node's user with a {@code 307} to that node, {@code forward}
+     * sends it on and relays the response.
+     */
+    private String mode = "redirect";
+  }
+}
@@ -0,0 +1,90 @@
+package pointsservice.controller;
+
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
+import static org.springframework.http.MediaType.MULTIPART_FORM_DATA_VALUE;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import javax.validation.Valid;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.PatchMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestPart;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+import pointsservice.error.model.InsufficientBalanceException;
+import pointsservice.error.model.UserNotOwnedException;
+import pointsservice.ingest.BulkSpendPipeline;
+import pointsservice.ingest.ImportPipeline;
+import pointsservice.ingest.NdjsonReader;
+import pointsservice.model.request.BulkSpendRequest;
+import pointsservice.model.request.BulkTransactionRequest;
+import pointsservice.model.response.BulkSpendResponse;
+import pointsservice.model.response.BulkTransactionResponse;
+import pointsservice.model.response.ImportResponse;
+import pointsservice.service.PointsService;
+
+@Tag(name = "Bulk API")
+@Validated
+@RestController
+@RequestMapping(
+    value = "/points/users",
+    produces = APPLICATION_JSON_VALUE
+)
+public class BulkPointsController {
+
+  private final PointsService pointsService;
+  private final NdjsonReader ndjsonReader;
+  private final ImportPipeline importPipeline;
+  private final BulkSpendPipeline bulkSpendPipeline;
+
+  public BulkPointsController(
+      final PointsService pointsService,
+      final NdjsonReader ndjsonReader,
+      final ImportPipeline importPipeline,
+      final BulkSpendPipeline bulkSpendPipeline
+  ) {
+    this.pointsService = pointsService;
+    this.ndjsonReader = ndjsonReader;
+    this.importPipeline = importPipeline;
+    this.bulkSpendPipeline = bulkSpendPipeline;
+  }
+
+  @PostMapping(value = "/transactions", consumes = APPLICATION_JSON_VALUE)
+  @Operation(summary = "Add Transactions For Many Users")
+  public List<BulkTransactionResponse> addTransactions(
+      @RequestBody final List<@Valid BulkTransactionRequest> bulkTransactionRequests
+  ) throws InsufficientBalanceException, UserNotOwnedException {
+    return pointsService.addTransactions(bulkTransactionRequests);
+  }
+
+  @PostMapping(value = "/transactions", consumes = APPLICATION_NDJSON_VALUE)
+  @Operation(summary = "Add Transactions For Many Users (NDJSON)")
+  public List<BulkTransactionResponse> addTransactionsNdjson(
+      final InputStream requestBody
+  ) throws IOException, InsufficientBalanceException, UserNotOwnedException {
+    return pointsService.addTransactions(ndjsonReader.readUserTransactions(requestBody));
+  }
+
+  @PostMapping(value = "/import", consumes = MULTIPART_FORM_DATA_VALUE)
+  @Operation(summary = "Import Transactions File (NDJSON)")
+  public ImportResponse importTransactions(@RequestPart final MultipartFile file) throws IOException, InterruptedException {
+    try (InputStream inputStream = file.getInputStream()) {
+      return importPipeline.importTransactions(inputStream);
+    }
+  }
+
+  @PatchMapping(consumes = APPLICATION_JSON_VALUE)
+  @Operation(summary = "Spend Points For Many Users")
+  public List<BulkSpendResponse> spendPoints(
+      @RequestBody final List<@Valid BulkSpendRequest> bulkSpendRequests
+  ) throws InterruptedException {
+    return bulkSpendPipeline.spendPoints(bulkSpendRequests);
+  }
+}
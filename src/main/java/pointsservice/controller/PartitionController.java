@@ -0,0 +1,96 @@
+package pointsservice.controller;
+
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
+import static org.springframework.http.MediaType.TEXT_PLAIN_VALUE;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import java.io.InputStream;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import pointsservice.error.model.PartitionNotOwnedException;
+import pointsservice.error.model.UnknownNodeException;
+import pointsservice.model.response.PartitionMoveResponse;
+import pointsservice.partition.PartitionMover;
+import pointsservice.partition.PartitionTable;
+
+@Tag(name = "Admin API")
+@RestController
+@RequestMapping(
+    value = "/points/partitions",
+    produces = APPLICATION_JSON_VALUE
+)
+@ConditionalOnProperty(prefix = "points.partitioning", name = "enabled", havingValue = "true")
+public class PartitionController {
+
+  private final PartitionTable partitionTable;
+  private final PartitionMover partitionMover;
+
+  public PartitionController(final PartitionTable partitionTable, final PartitionMover partitionMover) {
+    this.partitionTable = partitionTable;
+    this.partitionMover = partitionMover;
+  }
+
+  @GetMapping
+  @Operation(summary = "Get Partition Owners")
+  public Map<Integer, String> getOwners() {
+    return partitionTable.owners();
+  }
+
+  @PostMapping("/{partition}/move")
+  @Operation(summary = "Move Partition", description = "Streams the partition's users to another node")
+  public PartitionMoveResponse movePartition(
+      @PathVariable final int partition,
+      @Parameter(example = "http://localhost:8081") @RequestParam final String to
+  ) throws PartitionNotOwnedException {
+    return partitionMover.move(partition, to);
+  }
+
+  @PutMapping(value = "/{partition}", consumes = APPLICATION_OCTET_STREAM_VALUE)
+  @Operation(summary = "Receive Partition", description = "Called by the node moving the partition here")
+  public PartitionMoveResponse receivePartition(
+      @PathVariable final int partition,
+      @RequestHeader(name = PartitionMover.NODE, required = false) final String node,
+      final HttpServletRequest request,
+      final InputStream snapshot
+  ) throws UnknownNodeException {
+    checkNode(node, request);
+    return partitionMover.receive(partition, snapshot);
+  }
+
+  @PutMapping(value = "/{partition}/owner", consumes = TEXT_PLAIN_VALUE)
+  @Operation(summary = "Set Partition Owner", description = "Called by the node that moved the partition")
+  public Map<Integer, String> setOwner(
+      @PathVariable final int partition,
+      @RequestHeader(name = PartitionMover.NODE, required = false) final String node,
+      final HttpServletRequest request,
+      @RequestBody final String owner
+  ) throws UnknownNodeException {
+    checkNode(node, request);
+    partitionTable.setOwner(partition, owner);
+    return partitionTable.owners();
+  }
+
+  /**
+   * Only another configured node, calling from its own address, may hand a partition over or change its owner.
+   */
+  private void checkNode(final String node, final HttpServletRequest request) throws UnknownNodeException {
+    if (!partitionTable.isNodeAt(node, request.getRemoteAddr())) {
+      throw new UnknownNodeException(String.format(
+          "%s from %s is not one of %s", node, request.getRemoteAddr(), partitionTable.getNodes()
+      ));
+    }
+  }
+}
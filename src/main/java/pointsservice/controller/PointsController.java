@@ -1,69 +1,168 @@
-package pointsservice.controller;
-
-import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
-
-import io.swagger.v3.oas.annotations.Operation;
-import io.swagger.v3.oas.annotations.Parameter;
-import io.swagger.v3.oas.annotations.enums.ParameterIn;
-import io.swagger.v3.oas.annotations.tags.Tag;
-import java.util.Objects;
-import java.util.Set;
-import javax.validation.Valid;
-import lombok.SneakyThrows;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.PatchMapping;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
-import pointsservice.model.request.TransactionRequest;
-import pointsservice.model.request.UserSpendRequest;
-import pointsservice.model.response.PointsBalanceResponse;
-import pointsservice.model.response.TransactionResponse;
-import pointsservice.model.response.UserSpendResponse;
-import pointsservice.service.PointsService;
-
-@Tag(name = "API")
-@RestController
-@RequestMapping(
-    value = {"/points/user/{userId}", "/points/user"},
-    produces = APPLICATION_JSON_VALUE
-)
-public class PointsController {
-
-  private static final long DEFAULT_USER_ID = 0;
-
-  private final PointsService pointsService;
-
-  public PointsController(final PointsService pointsService) {
-    this.pointsService = pointsService;
-  }
-
-  @PostMapping
-  @Operation(summary = "Add Transaction")
-  public TransactionResponse addTransaction(
-      @Parameter(in = ParameterIn.PATH, example = "0")
-      @PathVariable(required = false) final Long userId,
-      @Valid @RequestBody final TransactionRequest transactionRequest
-  ) {
-    return pointsService.addTransaction(Objects.requireNonNullElse(userId, DEFAULT_USER_ID), transactionRequest);
-  }
-
-  @SneakyThrows
-  @PatchMapping
-  @Operation(summary = "Spend Points")
-  public Set<UserSpendResponse> spendPoints(
-      @Parameter(in = ParameterIn.PATH, example = "0")
-      @PathVariable(required = false) final Long userId,
-      @Valid @RequestBody final UserSpendRequest userSpendRequest
-  ) {
-    return pointsService.spendPoints(Objects.requireNonNullElse(userId, DEFAULT_USER_ID), userSpendRequest);
-  }
-
-  @GetMapping
-  @Operation(summary = "Get Points Balance")
-  public PointsBalanceResponse getPointsBalance(@Parameter(in = ParameterIn.PATH, example = "0") @PathVariable(required = false) final Long userId) {
-    return pointsService.getPointsBalance(Objects.requireNonNullElse(userId, DEFAULT_USER_ID));
-  }
-}
+package pointsservice.controller;
+
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.enums.ParameterIn;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import javax.validation.Valid;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.PositiveOrZero;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import pointsservice.error.model.IdempotencyKeyReusedException;
+import pointsservice.error.model.InsufficientBalanceException;
+import pointsservice.error.model.UserNotOwnedException;
+import pointsservice.ingest.NdjsonReader;
+import pointsservice.model.request.TransactionCursor;
+import pointsservice.model.request.TransactionRequest;
+import pointsservice.model.request.UserSpendRequest;
+import pointsservice.model.response.BulkTransactionResponse;
+import pointsservice.model.response.PointsBalanceResponse;
+import pointsservice.model.response.TransactionPageResponse;
+import pointsservice.model.response.TransactionResponse;
+import pointsservice.model.response.UserSpendResponse;
+import pointsservice.service.PointsService;
+
+@Tag(name = "API")
+@Validated
+@RestController
+@RequestMapping(
+    value = {"/points/user/{userId}", "/points/user"},
+    produces = APPLICATION_JSON_VALUE
+)
+public class PointsController {
+
+  private static final long DEFAULT_USER_ID = 0;
+  private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+  private static final int MAX_PAGE_SIZE = 1000;
+
+  private final PointsService pointsService;
+  private final NdjsonReader ndjsonReader;
+
+  public PointsController(final PointsService pointsService, final NdjsonReader ndjsonReader) {
+    this.pointsService = pointsService;
+    this.ndjsonReader = ndjsonReader;
+  }
+
+  @PostMapping
+  @Operation(summary = "Add Transaction")
+  public TransactionResponse addTransaction(
+      @Parameter(in = ParameterIn.PATH, example = "0")
+      @PathVariable(required = false) final Long userId,
+      @Valid @RequestBody final TransactionRequest transactionRequest,
+      @RequestHeader(name = IDEMPOTENCY_KEY, required = false) final String idempotencyKey
+  ) throws IdempotencyKeyReusedException, UserNotOwnedException {
+    return pointsService.addTransaction(
+        Objects.requireNonNullElse(userId, DEFAULT_USER_ID),
+        transactionRequest,
+        idempotencyKey
+    );
+  }
+
+  @PostMapping(value = "/transactions", consumes = APPLICATION_JSON_VALUE)
+  @Operation(summary = "Add Transactions")
+  public BulkTransactionResponse addTransactions(
+      @Parameter(in = ParameterIn.PATH, example = "0")
+      @PathVariable(required = false) final Long userId,
+      @RequestBody final List<@Valid TransactionRequest> transactionRequests
+  ) throws InsufficientBalanceException, UserNotOwnedException {
+    return pointsService.addTransactions(Objects.requireNonNullElse(userId, DEFAULT_USER_ID), transactionRequests);
+  }
+
+  @PostMapping(value = "/transactions", consumes = APPLICATION_NDJSON_VALUE)
+  @Operation(summary = "Add Transactions (NDJSON)")
+  public BulkTransactionResponse addTransactionsNdjson(
+      @Parameter(in = ParameterIn.PATH, example = "0")
+      @PathVariable(required = false) final Long userId,
+      final InputStream requestBody
+  ) throws IOException, InsufficientBalanceException, UserNotOwnedException {
+    return pointsService.addTransactions(
+        Objects.requireNonNullElse(userId, DEFAULT_USER_ID),
+        ndjsonReader.readTransactions(requestBody)
+    );
+  }
+
+  @PatchMapping
+  @Operation(summary = "Spend Points")
+  public Set<UserSpendResponse> spendPoints(
+      @Parameter(in = ParameterIn.PATH, example = "0")
+      @PathVariable(required = false) final Long userId,
+      @Valid @RequestBody final UserSpendRequest userSpendRequest,
+      @RequestHeader(name = IDEMPOTENCY_KEY, required = false) final String idempotencyKey
+  ) throws IdempotencyKeyReusedException, InsufficientBalanceException, UserNotOwnedException {
+    return pointsService.spendPoints(
+        Objects.requireNonNullElse(userId, DEFAULT_USER_ID),
+        userSpendRequest,
+        idempotencyKey
+    );
+  }
+
+  @GetMapping("/transactions")
+  @Operation(summary = "Get Transactions")
+  public TransactionPageResponse getTransactions(
+      @Parameter(in = ParameterIn.PATH, example = "0")
+      @PathVariable(required = false) final Long userId,
+      @Parameter(description = "Only this payer's transactions", example = "DANNON")
+      @RequestParam(required = false) final String payer,
+      @Parameter(description = "Only transactions at or after this time", example = "2020-11-01T00:00:00Z")
+      @RequestParam(required = false) final Instant from,
+      @Parameter(description = "Only transactions before this time", example = "2020-12-01T00:00:00Z")
+      @RequestParam(required = false) final Instant until,
+      @Parameter(description = "The previous page's `next`", schema = @Schema(type = "string"))
+      @RequestParam(required = false) final TransactionCursor after,
+      @RequestParam(defaultValue = "100") @Min(1) @Max(MAX_PAGE_SIZE) final int limit
+  ) {
+    return pointsService.getTransactions(
+        Objects.requireNonNullElse(userId, DEFAULT_USER_ID),
+        payer,
+        from == null ? null : Date.from(from),
+        until == null ? null : Date.from(until),
+        after,
+        limit
+    );
+  }
+
+  @GetMapping("/quote")
+  @Operation(summary = "Quote Spend", description = "The deductions a spend of these points would make, without spending")
+  public Set<UserSpendResponse> quoteSpend(
+      @Parameter(in = ParameterIn.PATH, example = "0")
+      @PathVariable(required = false) final Long userId,
+      @Parameter(example = "5000")
+      @RequestParam @PositiveOrZero final Long points
+  ) throws InsufficientBalanceException {
+    return pointsService.quoteSpend(Objects.requireNonNullElse(userId, DEFAULT_USER_ID), points);
+  }
+
+  @GetMapping
+  @Operation(summary = "Get Points Balance")
+  public PointsBalanceResponse getPointsBalance(
+      @Parameter(in = ParameterIn.PATH, example = "0")
+      @PathVariable(required = false) final Long userId,
+      @Parameter(description = "Balances as they stood at this time instead of now", example = "2020-11-01T00:00:00Z")
+      @RequestParam(required = false) final Instant asOf
+  ) {
+    return asOf == null
+        ? pointsService.getPointsBalance(Objects.requireNonNullElse(userId, DEFAULT_USER_ID))
+        : pointsService.getPointsBalance(Objects.requireNonNullElse(userId, DEFAULT_USER_ID), Date.from(asOf));
+  }
+}
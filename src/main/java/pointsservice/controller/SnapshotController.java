@@ -0,0 +1,32 @@
+package pointsservice.controller;
+
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import pointsservice.model.response.SnapshotResponse;
+import pointsservice.snapshot.SnapshotStore;
+
+@Tag(name = "Admin API")
+@RestController
+@RequestMapping(
+    value = "/points/snapshot",
+    produces = APPLICATION_JSON_VALUE
+)
+public class SnapshotController {
+
+  private final SnapshotStore snapshotStore;
+
+  public SnapshotController(final SnapshotStore snapshotStore) {
+    this.snapshotStore = snapshotStore;
+  }
+
+  @PostMapping
+  @Operation(summary = "Write Snapshot")
+  public SnapshotResponse writeSnapshot() {
+    return snapshotStore.write();
+  }
+}
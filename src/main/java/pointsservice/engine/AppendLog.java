@@ -0,0 +1,189 @@
+package pointsservice.engine;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Line-per-{@link Mutation} log that the {@link BalanceEngine} writes before acknowledging a request. An appender waits
+ * for a force of the file, and one force covers everything appended before it started, so concurrent requests share
+ * their fsyncs.
+ * <p>
+ * Positions count every byte appended since the log was opened. Once a write-behind batch is in the database the part
+ * of the file before it is dropped: the file is emptied if nothing newer has been appended, and otherwise the newer
+ * part is copied to a fresh file that replaces it once the dropped part is at least as large as what is kept, so the
+ * file stays about as large as the mutations not yet written under steady load too.
+ */
+public class AppendLog implements MutationLog {
+
+  private static final long MIN_DROPPED_BYTES = 1 << 20;
+
+  private final Path path;
+  private final long minDroppedBytes;
+  private final ReentrantLock forceLock = new ReentrantLock();
+  private final Condition forced = forceLock.newCondition();
+
+  private FileChannel channel;
+  private long start;
+  private long written;
+  private long durable;
+  private boolean forcing;
+
+  public AppendLog(final Path path) throws IOException {
+    this(path, MIN_DROPPED_BYTES);
+  }
+
+  /**
+   * @param minDroppedBytes the least the file shrinks by when its written part is dropped while newer mutations are
+   * kept, so that small batches do not each copy the rest of the file
+   */
+  AppendLog(final Path path, final long minDroppedBytes) throws IOException {
+    this.path = path;
+    this.minDroppedBytes = minDroppedBytes;
+    this.channel = open(path);
+    this.written = channel.size();
+    this.durable = written;
+  }
+
+  /**
+   * The log only holds what may not be in the database yet, and positions start again when it is reopened, so it is
+   * always read whole.
+   */
+  @Override
+  public List<Mutation> readFrom(final long position) throws IOException {
+    return Files.readAllLines(path, UTF_8).stream()
+        .filter(line -> !line.isBlank())
+        .map(Mutation::fromLogLine)
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  public synchronized long position() {
+    return written;
+  }
+
+  @Override
+  public synchronized long append(final List<Mutation> mutations) {
+    final StringBuilder lines = new StringBuilder();
+    mutations.forEach(mutation -> lines.append(mutation.toLogLine()).append('\n'));
+    try {
+      final ByteBuffer buffer = UTF_8.encode(lines.toString());
+      written += buffer.remaining();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      return written;
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+  }
+
+  /**
+   * Forces the file unless another appender's force already covers {@code position}. Appenders that arrive while a
+   * force is running wait for it and, if it started too early for them, run the next one together. A file replaced by
+   * {@link #truncateAt} while it was being forced is closed, which is fine, as its replacement was forced whole before
+   * taking its place.
+   */
+  @Override
+  public void awaitDurable(final long position) {
+    forceLock.lock();
+    try {
+      while (durable < position) {
+        if (forcing) {
+          forced.awaitUninterruptibly();
+          continue;
+        }
+        forcing = true;
+        final long reached;
+        final FileChannel current;
+        forceLock.unlock();
+        synchronized (this) {
+          reached = written;
+          current = channel;
+        }
+        try {
+          current.force(false);
+        } catch (ClosedChannelException exception) {
+          if (current == channel()) {
+            throw new UncheckedIOException(exception);
+          }
+        } catch (IOException exception) {
+          throw new UncheckedIOException(exception);
+        } finally {
+          forceLock.lock();
+          forcing = false;
+          forced.signalAll();
+        }
+        durable = Math.max(durable, reached);
+      }
+    } finally {
+      forceLock.unlock();
+    }
+  }
+
+  @Override
+  public synchronized void sync() throws IOException {
+    channel.force(false);
+  }
+
+  /**
+   * Drops the part of the file before {@code position}.
+   */
+  @Override
+  public synchronized void truncateAt(final long position) throws IOException {
+    if (position >= written) {
+      channel.truncate(0);
+      channel.position(0);
+      start = written;
+    } else if (position - start >= Math.max(minDroppedBytes, written - position)) {
+      final Path kept = path.resolveSibling(path.getFileName() + ".tmp");
+      try (FileChannel copy = FileChannel.open(
+          kept, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+      )) {
+        channel.transferTo(position - start, written - position, copy);
+        copy.force(false);
+      }
+      Files.move(kept, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      channel.close();
+      channel = open(path);
+      start = position;
+    }
+  }
+
+  /**
+   * A snapshot is only taken once the database has everything, so this drops what {@link #truncateAt} would.
+   */
+  @Override
+  public void discardBefore(final long position) throws IOException {
+    truncateAt(position);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  private synchronized FileChannel channel() {
+    return channel;
+  }
+
+  private static FileChannel open(final Path path) throws IOException {
+    final FileChannel channel = FileChannel.open(
+        path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ
+    );
+    channel.position(channel.size());
+    return channel;
+  }
+}
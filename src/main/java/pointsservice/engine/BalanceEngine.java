@@ -0,0 +1,400 @@
+package pointsservice.engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import pointsservice.configuration.PointsProperties;
+import pointsservice.error.model.InsufficientBalanceException;
+import pointsservice.ledger.Allocations;
+import pointsservice.ledger.SpendLedger;
+import pointsservice.ledger.UserLocks;
+import pointsservice.ledger.UserLedger;
+import pointsservice.model.entity.PayerEntity;
+import pointsservice.model.entity.SpendEntity;
+import pointsservice.model.entity.TransactionEntity;
+import pointsservice.model.request.BulkTransactionRequest;
+import pointsservice.model.request.TransactionRequest;
+import pointsservice.model.response.BulkTransactionResponse;
+import pointsservice.model.response.TransactionResponse;
+import pointsservice.model.response.UserSpendResponse;
+import pointsservice.repository.BalanceRepository;
+import pointsservice.repository.UserRepository;
+import pointsservice.snapshot.SnapshotStore;
+
+/**
+ * Holds the authoritative (user, payer) balances in memory when {@code points.engine.mode=memory}.
+ * <p>
+ * Requests for a user are serialised on the user's {@linkplain UserLocks lock}, acknowledged once their {@link Mutation}s
+ * are in the {@link MutationLog}, and written to the database in batches by a {@link WriteBehindWriter}. With
+ * {@code points.engine.log-format=journal} the log is a {@link MappedJournal} that is replayed on startup, from where
+ * the loaded {@link SnapshotStore snapshot} was taken if there is one, so balances survive a restart even though the
+ * database is in memory.
+ */
+@Component
+@ConditionalOnProperty(prefix = "points.engine", name = "mode", havingValue = "memory")
+public class BalanceEngine implements SmartLifecycle {
+
+  private final UserRepository userRepository;
+  private final BalanceRepository balanceRepository;
+  private final SpendLedger spendLedger;
+  private final JdbcTemplate jdbcTemplate;
+  private final SnapshotStore snapshotStore;
+  private final MutationLog mutationLog;
+  private final WriteBehindWriter writer;
+  private final UserLocks locks = new UserLocks();
+
+  private final Map<Long, Map<Long, Long>> balances = new ConcurrentHashMap<>();
+  private final Map<Long, String> payerNames = new ConcurrentHashMap<>();
+  private final IdBlock transactionIds;
+  private final IdBlock spendIds;
+  private Thread writerThread;
+
+  public BalanceEngine(
+      final UserRepository userRepository,
+      final BalanceRepository balanceRepository,
+      final SpendLedger spendLedger,
+      final JdbcTemplate jdbcTemplate,
+      final TransactionTemplate transactionTemplate,
+      final SnapshotStore snapshotStore,
+      final PointsProperties properties
+  ) throws IOException {
+    this.userRepository = userRepository;
+    this.balanceRepository = balanceRepository;
+    this.spendLedger = spendLedger;
+    this.jdbcTemplate = jdbcTemplate;
+    this.snapshotStore = snapshotStore;
+    this.mutationLog = "journal".equals(properties.getEngine().getLogFormat())
+        ? new MappedJournal(properties.getEngine().getJournalPath(), properties.getEngine().getJournalSegmentSize().toBytes())
+        : new AppendLog(properties.getEngine().getLogPath());
+    this.writer = new WriteBehindWriter(
+        mutationLog, jdbcTemplate, transactionTemplate, snapshotStore, properties.getEngine()
+    );
+    this.transactionIds = new IdBlock(jdbcTemplate, "transactions_seq", TransactionEntity.TRANSACTION_ID_BLOCK);
+    this.spendIds = new IdBlock(jdbcTemplate, "spends_seq", SpendEntity.SPEND_ID_BLOCK);
+  }
+
+  /**
+   * @param idempotencyKey builds the mutation that records the response under the request's {@code Idempotency-Key},
+   *     which is logged with the change, or {@code null}
+   */
+  public TransactionResponse addTransaction(
+      final Long userId,
+      final PayerEntity payer,
+      final TransactionRequest transactionRequest,
+      final Function<Object, Mutation> idempotencyKey
+  ) throws InsufficientBalanceException {
+    locks.lock(userId);
+    try {
+      final List<Mutation> mutations = new ArrayList<>();
+      final long totalPoints = apply(userId, payer, transactionRequest, mutations);
+      final TransactionResponse response = TransactionResponse.builder()
+          .payerName(payer.getPayerName())
+          .transactionPoints(transactionRequest.getTransactionPoints())
+          .totalPoints(totalPoints)
+          .timestamp(transactionRequest.getTimestamp())
+          .build();
+      if (idempotencyKey != null) {
+        mutations.add(idempotencyKey.apply(response));
+      }
+      writer.submit(mutations);
+      return response;
+    } finally {
+      locks.unlock(userId);
+    }
+  }
+
+  /**
+   * Applies several users' transactions as one: every reversal is checked against the payer's open lots before any
+   * transaction is applied, and all of their mutations are logged together, so either the whole batch is acknowledged
+   * or none of it is.
+   */
+  public List<BulkTransactionResponse> addTransactions(
+      final List<BulkTransactionRequest> bulkTransactionRequests,
+      final Function<String, PayerEntity> payerLookup
+  ) throws InsufficientBalanceException {
+    final Map<String, PayerEntity> payers = new HashMap<>();
+    bulkTransactionRequests.forEach(bulkTransactionRequest -> bulkTransactionRequest.getTransactions()
+        .forEach(transactionRequest -> payers.computeIfAbsent(transactionRequest.getPayerName(), payerLookup))
+    );
+    final List<Long> locked = locks.lockAll(bulkTransactionRequests.stream()
+        .map(BulkTransactionRequest::getUserId)
+        .collect(Collectors.toList())
+    );
+    try {
+      final Map<Long, Map<Long, Long>> batchPoints = new HashMap<>();
+      for (var bulkTransactionRequest : bulkTransactionRequests) {
+        final Long userId = bulkTransactionRequest.getUserId();
+        balancesFor(userId);
+        final Map<Long, Long> userBatchPoints = batchPoints.computeIfAbsent(userId, id -> new HashMap<>());
+        for (var transactionRequest : bulkTransactionRequest.getTransactions()) {
+          final long payerId = payers.get(transactionRequest.getPayerName()).getPayerId();
+          final long points = transactionRequest.getTransactionPoints();
+          if (points < 0
+              && -points > ledgerFor(userId).getAvailable(payerId) + userBatchPoints.getOrDefault(payerId, 0L)) {
+            throw new InsufficientBalanceException(String.format("Insufficient funds to reverse %d points", -points));
+          }
+          userBatchPoints.merge(payerId, points, Long::sum);
+        }
+      }
+
+      final List<Mutation> mutations = new ArrayList<>();
+      final List<BulkTransactionResponse> responses = new ArrayList<>(bulkTransactionRequests.size());
+      for (var bulkTransactionRequest : bulkTransactionRequests) {
+        final Map<String, Long> totalPoints = new HashMap<>();
+        for (var transactionRequest : bulkTransactionRequest.getTransactions()) {
+          final PayerEntity payer = payers.get(transactionRequest.getPayerName());
+          totalPoints.put(
+              payer.getPayerName(),
+              apply(bulkTransactionRequest.getUserId(), payer, transactionRequest, mutations)
+          );
+        }
+        responses.add(new BulkTransactionResponse(
+            bulkTransactionRequest.getUserId(), bulkTransactionRequest.getTransactions().size(), totalPoints
+        ));
+      }
+      writer.submit(mutations);
+      return responses;
+    } finally {
+      locks.unlockAll(locked);
+    }
+  }
+
+  /**
+   * @param idempotencyKey as for {@link #addTransaction}
+   */
+  public Set<UserSpendResponse> spendPoints(
+      final Long userId,
+      final long points,
+      final Function<Object, Mutation> idempotencyKey
+  ) throws InsufficientBalanceException {
+    locks.lock(userId);
+    try {
+      final Map<Long, Long> userBalances = balancesFor(userId);
+      final Allocations allocations = new Allocations();
+      ledgerFor(userId).allocate(points, allocations);
+
+      final long spendId = spendIds.next();
+      final long spentAt = System.currentTimeMillis();
+      final Map<Long, Long> payerDeductions = allocations.payerDeductions();
+      final List<Mutation> mutations = new ArrayList<>();
+      payerDeductions.forEach((payerId, deduction) -> {
+        mutations.add(Mutation.balance(userId, payerId, userBalances.merge(payerId, -deduction, Long::sum)));
+        mutations.add(Mutation.spend(spendId, userId, payerId, deduction, spentAt));
+      });
+      for (int i = 0; i < allocations.size(); i++) {
+        mutations.add(Mutation.lot(allocations.getTransactionId(i), allocations.getRemaining(i)));
+        mutations.add(Mutation.allocation(spendId, allocations.getTransactionId(i), allocations.getPoints(i)));
+      }
+      final Set<UserSpendResponse> response = payerDeductions.entrySet().stream()
+          .map(entry -> new UserSpendResponse(payerNames.get(entry.getKey()), -entry.getValue()))
+          .collect(Collectors.toSet());
+      if (idempotencyKey != null) {
+        mutations.add(idempotencyKey.apply(response));
+      }
+      writer.submit(mutations);
+      return response;
+    } finally {
+      locks.unlock(userId);
+    }
+  }
+
+  public Map<String, Long> getPointsBalance(final Long userId) {
+    locks.lock(userId);
+    try {
+      return balancesFor(userId).entrySet().stream()
+          .collect(Collectors.toMap(entry -> payerNames.get(entry.getKey()), Map.Entry::getValue));
+    } finally {
+      locks.unlock(userId);
+    }
+  }
+
+  /**
+   * Drops the user's balances and ledger, for when their rows were changed in the database behind the engine's back.
+   * Anything queued for the user should be flushed first.
+   */
+  public void evict(final Long userId) {
+    locks.lock(userId);
+    try {
+      balances.remove(userId);
+      spendLedger.evict(userId);
+    } finally {
+      locks.unlock(userId);
+    }
+  }
+
+  /**
+   * Deletes the users in {@code partition} of {@code partitions}, once they have moved to another node, from the
+   * database and from memory. The deletion goes through the log, so replaying the log deletes them again rather than
+   * bringing them back. No request for them may be running.
+   */
+  public void dropPartition(final int partition, final int partitions, final List<Long> userIds) {
+    writer.submit(List.of(Mutation.moved(partition, partitions)));
+    writer.flush();
+    userIds.forEach(this::evict);
+  }
+
+  /**
+   * @return the response recorded for this {@code Idempotency-Key} that is not in the database yet
+   */
+  public Optional<Mutation> pendingKey(final Long userId, final String operation, final String idempotencyKey) {
+    return writer.pendingKey(userId, operation, idempotencyKey);
+  }
+
+  /**
+   * Writes everything acknowledged so far to the database.
+   */
+  public void flush() {
+    writer.flush();
+  }
+
+  /**
+   * @return a log position that everything acknowledged so far comes before
+   */
+  public long logPosition() {
+    return mutationLog.position();
+  }
+
+  /**
+   * Drops whatever part of the log a snapshot taken at {@code position} has made redundant.
+   */
+  public void discardLogBefore(final long position) {
+    try {
+      mutationLog.discardBefore(position);
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+  }
+
+  @Override
+  public void start() {
+    try {
+      writer.replay(mutationLog.readFrom(snapshotStore.getLoadedLogPosition()));
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+    writer.flush();
+    restartPast("transactions_seq",
+        "SELECT GREATEST(COALESCE(MAX(transaction_id), 0), (SELECT COALESCE(MAX(transaction_id), 0) FROM transaction_history))"
+            + " FROM transactions"
+    );
+    restartPast("spends_seq", "SELECT COALESCE(MAX(spend_id), 0) FROM spends");
+    writerThread = new Thread(writer, "points-write-behind");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  @Override
+  public void stop() {
+    writer.stop();
+    try {
+      writerThread.join();
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+    writer.flush();
+    writerThread = null;
+    try {
+      mutationLog.close();
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+  }
+
+  @Override
+  public boolean isRunning() {
+    return writerThread != null;
+  }
+
+  /**
+   * Moves {@code sequence} past the largest id {@code maxIdQuery} finds, as replayed rows take ids the sequence may not
+   * have handed out in this database.
+   */
+  private void restartPast(final String sequence, final String maxIdQuery) {
+    final long maxId = jdbcTemplate.queryForObject(maxIdQuery, Long.class);
+    final long nextSequenceValue = jdbcTemplate.queryForObject(
+        "SELECT CURRENT_VALUE + INCREMENT FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = ?",
+        Long.class, sequence.toUpperCase()
+    );
+    if (maxId >= nextSequenceValue) {
+      jdbcTemplate.execute("ALTER SEQUENCE " + sequence + " RESTART WITH " + (maxId + 1));
+    }
+  }
+
+  /**
+   * Applies one earn or reversal to memory and adds its mutations to {@code mutations}. Must be called with the user's
+   * lock held.
+   *
+   * @return the user's new balance with the payer
+   */
+  private long apply(
+      final Long userId,
+      final PayerEntity payer,
+      final TransactionRequest transactionRequest,
+      final List<Mutation> mutations
+  ) throws InsufficientBalanceException {
+    final long points = transactionRequest.getTransactionPoints();
+    final Map<Long, Long> userBalances = balancesFor(userId);
+    final Allocations reversals = new Allocations();
+    if (points < 0) {
+      ledgerFor(userId).reverse(payer.getPayerId(), -points, reversals);
+    }
+    payerNames.putIfAbsent(payer.getPayerId(), payer.getPayerName());
+    final long totalPoints = userBalances.merge(payer.getPayerId(), points, Long::sum);
+    final long transactionId = transactionIds.next();
+
+    mutations.add(Mutation.balance(userId, payer.getPayerId(), totalPoints));
+    mutations.add(Mutation.earn(transactionId, userId, payer.getPayerId(), points, transactionRequest.getTimestamp().getTime()));
+    if (points < 0) {
+      for (int i = 0; i < reversals.size(); i++) {
+        mutations.add(Mutation.lot(reversals.getTransactionId(i), reversals.getRemaining(i)));
+      }
+    } else {
+      spendLedger.ifLoaded(userId).ifPresent(ledger -> ledger.credit(
+          transactionId, payer.getPayerId(), transactionRequest.getTimestamp().getTime(), points
+      ));
+    }
+    return totalPoints;
+  }
+
+  /**
+   * Must be called with the user's lock held.
+   */
+  private Map<Long, Long> balancesFor(final Long userId) {
+    final Map<Long, Long> userBalances = balances.get(userId);
+    if (userBalances != null) {
+      return userBalances;
+    }
+    userRepository.findById(userId).orElseThrow();
+    final Map<Long, Long> loaded = new ConcurrentHashMap<>();
+    balanceRepository.findAllByUserUserId(userId).forEach(balance -> {
+      payerNames.putIfAbsent(balance.getPayer().getPayerId(), balance.getPayer().getPayerName());
+      loaded.put(balance.getPayer().getPayerId(), balance.getPointBalance());
+    });
+    balances.put(userId, loaded);
+    return loaded;
+  }
+
+  /**
+   * Must be called with the user's lock held. A cold ledger is loaded from the database, so anything still queued
+   * for it is written first.
+   */
+  private UserLedger ledgerFor(final Long userId) {
+    return spendLedger.ifLoaded(userId).orElseGet(() -> {
+      writer.flush();
+      return spendLedger.forUser(userId);
+    });
+  }
+}
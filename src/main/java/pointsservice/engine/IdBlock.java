@@ -0,0 +1,29 @@
+package pointsservice.engine;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Takes ids from a database sequence a block at a time, the same way the JPA path does, so both can share it.
+ */
+public class IdBlock {
+
+  private final JdbcTemplate jdbcTemplate;
+  private final String sequence;
+  private final int blockSize;
+  private long next;
+  private long limit;
+
+  public IdBlock(final JdbcTemplate jdbcTemplate, final String sequence, final int blockSize) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.sequence = sequence;
+    this.blockSize = blockSize;
+  }
+
+  public synchronized long next() {
+    if (next == limit) {
+      next = jdbcTemplate.queryForObject("SELECT NEXT VALUE FOR " + sequence, Long.class);
+      limit = next + blockSize;
+    }
+    return next++;
+  }
+}
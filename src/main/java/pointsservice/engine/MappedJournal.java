@@ -0,0 +1,295 @@
+package pointsservice.engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Binary {@link MutationLog} in memory-mapped segment files that keeps every mutation, so a restart against an empty
+ * database can rebuild balances and open lots from it.
+ * <p>
+ * Each mutation is a fixed {@value #RECORD_SIZE} byte record: its type, a CRC32 of its fields, then the fields. A
+ * mutation with a payload is followed by continuation records holding it, each with its own CRC32, and is never split
+ * across segments: if it does not fit in what is left of one, the rest of that segment stays empty. Reading stops at
+ * the first record that fails its check or whose continuations are missing, which is where a crash cut the journal
+ * short; anything after it is cleared when the journal is reopened, so new records carry on from there. Appends are
+ * plain buffer writes; an appender then waits for a force of the segment, and one force covers everything appended
+ * before it started, so concurrent requests share their fsyncs.
+ * <p>
+ * Positions are byte offsets into the journal as a whole, segment {@code n} starting at {@code n} segment sizes.
+ * Segments a snapshot has made redundant are deleted, and the rest keep their numbers.
+ */
+public class MappedJournal implements MutationLog {
+
+  static final int RECORD_SIZE = 64;
+  private static final int CHECKSUM_OFFSET = 4;
+  private static final int FIELDS_OFFSET = RECORD_SIZE - Mutation.FIELDS_SIZE;
+  private static final int PAYLOAD_PER_RECORD = RECORD_SIZE - FIELDS_OFFSET;
+  private static final byte CONTINUATION = -1;
+  private static final String SEGMENT_SUFFIX = ".journal";
+
+  private final Path directory;
+  private final int segmentSize;
+  private final CRC32 checksum = new CRC32();
+  private final ReentrantLock forceLock = new ReentrantLock();
+  private final Condition forced = forceLock.newCondition();
+
+  private MappedByteBuffer segment;
+  private int segmentIndex;
+  private long position;
+
+  private long durable;
+  private boolean forcing;
+
+  public MappedJournal(final Path directory, final long segmentSize) throws IOException {
+    this.directory = directory;
+    this.segmentSize = Math.toIntExact(segmentSize - segmentSize % RECORD_SIZE);
+    Files.createDirectories(directory);
+    final List<Path> segments = segments();
+    segmentIndex = segments.isEmpty() ? 0 : indexOf(segments.get(segments.size() - 1));
+    segment = map(segmentIndex);
+    int offset = 0;
+    Mutation mutation;
+    while (offset < this.segmentSize && (mutation = read(segment, offset)) != null) {
+      offset += records(mutation) * RECORD_SIZE;
+    }
+    for (int torn = offset; torn < this.segmentSize && segment.get(torn) != 0; torn += RECORD_SIZE) {
+      segment.put(torn, (byte) 0);
+    }
+    segment.position(offset);
+    position = (long) segmentIndex * this.segmentSize + offset;
+    durable = position;
+  }
+
+  @Override
+  public List<Mutation> readFrom(final long position) throws IOException {
+    final List<Mutation> mutations = new ArrayList<>();
+    for (var path : segments()) {
+      final long start = (long) indexOf(path) * segmentSize;
+      if (start + segmentSize <= position) {
+        continue;
+      }
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        final ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        int offset = (int) Math.max(0, position - start);
+        while (offset + RECORD_SIZE <= records.limit()) {
+          final Mutation mutation = read(records, offset);
+          if (mutation == null) {
+            break;
+          }
+          mutations.add(mutation);
+          offset += records(mutation) * RECORD_SIZE;
+        }
+        if (offset + RECORD_SIZE <= records.limit() && records.get(offset) != 0) {
+          return mutations;
+        }
+      }
+    }
+    return mutations;
+  }
+
+  @Override
+  public synchronized long position() {
+    return position;
+  }
+
+  @Override
+  public synchronized long append(final List<Mutation> mutations) {
+    for (var mutation : mutations) {
+      final int size = records(mutation) * RECORD_SIZE;
+      if (size > segmentSize) {
+        throw new IllegalArgumentException("Mutation does not fit in a journal segment: " + mutation);
+      }
+      if (segment.remaining() < size) {
+        roll();
+      }
+      final int offset = segment.position();
+      final byte[] payload = mutation.getPayload() == null
+          ? new byte[0]
+          : mutation.getPayload().getBytes(StandardCharsets.UTF_8);
+      for (int written = 0; written < payload.length; written += PAYLOAD_PER_RECORD) {
+        final int continuation = offset + RECORD_SIZE * (1 + written / PAYLOAD_PER_RECORD);
+        segment.duplicate().position(continuation + FIELDS_OFFSET)
+            .put(payload, written, Math.min(PAYLOAD_PER_RECORD, payload.length - written));
+        seal(continuation, CONTINUATION);
+      }
+      segment.position(offset + FIELDS_OFFSET);
+      mutation.writeFields(segment);
+      seal(offset, (byte) (mutation.getType().ordinal() + 1));
+      segment.position(offset + size);
+    }
+    position = (long) segmentIndex * segmentSize + segment.position();
+    return position;
+  }
+
+  /**
+   * Forces the current segment unless another appender's force already covers {@code position}. Appenders that
+   * arrive while a force is running wait for it and, if it started too early for them, run the next one together.
+   */
+  @Override
+  public void awaitDurable(final long position) {
+    forceLock.lock();
+    try {
+      while (durable < position) {
+        if (forcing) {
+          forced.awaitUninterruptibly();
+          continue;
+        }
+        forcing = true;
+        long reached = durable;
+        forceLock.unlock();
+        try {
+          final MappedByteBuffer current;
+          synchronized (this) {
+            current = segment;
+            reached = this.position;
+          }
+          current.force();
+        } finally {
+          forceLock.lock();
+          forcing = false;
+          forced.signalAll();
+        }
+        durable = Math.max(durable, reached);
+      }
+    } finally {
+      forceLock.unlock();
+    }
+  }
+
+  @Override
+  public synchronized void sync() {
+    segment.force();
+  }
+
+  /**
+   * The journal is kept whole, since it is what the database is rebuilt from.
+   */
+  @Override
+  public void truncateAt(final long position) {
+  }
+
+  /**
+   * Deletes every segment before the current one that ends at or before {@code position}.
+   */
+  @Override
+  public synchronized void discardBefore(final long position) throws IOException {
+    for (var path : segments()) {
+      final int index = indexOf(path);
+      if (index < segmentIndex && (long) (index + 1) * segmentSize <= position) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    segment.force();
+  }
+
+  /**
+   * Checksums the record at {@code offset} and marks it with {@code type}.
+   */
+  private void seal(final int offset, final byte type) {
+    checksum.reset();
+    checksum.update(segment.duplicate().position(offset + FIELDS_OFFSET).limit(offset + RECORD_SIZE));
+    segment.putInt(offset + CHECKSUM_OFFSET, (int) checksum.getValue());
+    segment.put(offset, type);
+  }
+
+  /**
+   * Must be called holding this journal's monitor. The full segment is forced before the next is mapped, so only the
+   * current segment ever has records waiting for a force.
+   */
+  private void roll() {
+    segment.force();
+    try {
+      segment = map(++segmentIndex);
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+  }
+
+  private MappedByteBuffer map(final int index) throws IOException {
+    final Path path = directory.resolve(String.format("%010d%s", index, SEGMENT_SUFFIX));
+    try (FileChannel channel = FileChannel.open(
+        path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+    )) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static int indexOf(final Path segment) {
+    final String name = segment.getFileName().toString();
+    return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /**
+   * @return the records {@code mutation} takes up, its own and its payload's
+   */
+  private static int records(final Mutation mutation) {
+    return 1 + (mutation.payloadSize() + PAYLOAD_PER_RECORD - 1) / PAYLOAD_PER_RECORD;
+  }
+
+  /**
+   * @return the mutation at {@code offset}, or {@code null} if there is none or it was only partly written
+   */
+  private static Mutation read(final ByteBuffer records, final int offset) {
+    final int type = records.get(offset);
+    if (type < 1 || type > Mutation.Type.values().length || !intact(records, offset)) {
+      return null;
+    }
+    final Mutation mutation = Mutation.readFields(
+        Mutation.Type.values()[type - 1],
+        records.duplicate().position(offset + FIELDS_OFFSET).limit(offset + RECORD_SIZE)
+    );
+    final int payloadSize = mutation.payloadSize();
+    if (payloadSize == 0) {
+      return mutation;
+    }
+    if (offset + records(mutation) * RECORD_SIZE > records.limit()) {
+      return null;
+    }
+    final byte[] payload = new byte[payloadSize];
+    for (int read = 0; read < payloadSize; read += PAYLOAD_PER_RECORD) {
+      final int continuation = offset + RECORD_SIZE * (1 + read / PAYLOAD_PER_RECORD);
+      if (records.get(continuation) != CONTINUATION || !intact(records, continuation)) {
+        return null;
+      }
+      records.duplicate().position(continuation + FIELDS_OFFSET)
+          .get(payload, read, Math.min(PAYLOAD_PER_RECORD, payloadSize - read));
+    }
+    return mutation.withPayload(new String(payload, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Whether the record at {@code offset} matches its CRC32.
+   */
+  private static boolean intact(final ByteBuffer records, final int offset) {
+    final CRC32 expected = new CRC32();
+    expected.update(records.duplicate().position(offset + FIELDS_OFFSET).limit(offset + RECORD_SIZE));
+    return (int) expected.getValue() == records.getInt(offset + CHECKSUM_OFFSET);
+  }
+}
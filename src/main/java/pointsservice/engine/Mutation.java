@@ -0,0 +1,177 @@
+package pointsservice.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+import lombok.With;
+
+/**
+ * A change the {@link BalanceEngine} has acknowledged but not necessarily written to the database yet.
+ * <p>
+ * Mutations carry absolute values (a balance, a lot's remaining points) rather than deltas so that replaying one that
+ * was already written is harmless.
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class Mutation {
+
+  public enum Type {
+    /** A new transaction row. */
+    EARN,
+    /** A lot's new remaining points. */
+    LOT,
+    /** A (user, payer) balance's new point balance. */
+    BALANCE,
+    /** The points one spend took from one payer. */
+    SPEND,
+    /** The points one spend took from one lot, queued after the spend's {@link #SPEND}s. */
+    ALLOCATION,
+    /** A partition of users handed to another node, whose rows are deleted when it is written. */
+    MOVED,
+    /** The response to a request sent with an {@code Idempotency-Key}, queued after the request's changes. */
+    IDEMPOTENCY_KEY
+  }
+
+  /**
+   * Bytes {@link #writeFields} writes: every field but the type, as longs.
+   */
+  public static final int FIELDS_SIZE = 7 * Long.BYTES;
+
+  Type type;
+  long spendId;
+  long transactionId;
+  long userId;
+  long payerId;
+  long points;
+  long remaining;
+  long timestamp;
+  /**
+   * Text that does not fit in the fields, or {@code null}.
+   */
+  @With
+  String payload;
+
+  public static Mutation earn(
+      final long transactionId,
+      final long userId,
+      final long payerId,
+      final long points,
+      final long timestamp
+  ) {
+    return new Mutation(Type.EARN, 0, transactionId, userId, payerId, points, Math.max(points, 0), timestamp, null);
+  }
+
+  public static Mutation lot(final long transactionId, final long remaining) {
+    return new Mutation(Type.LOT, 0, transactionId, 0, 0, 0, remaining, 0, null);
+  }
+
+  public static Mutation balance(final long userId, final long payerId, final long pointBalance) {
+    return new Mutation(Type.BALANCE, 0, 0, userId, payerId, pointBalance, 0, 0, null);
+  }
+
+  public static Mutation spend(
+      final long spendId,
+      final long userId,
+      final long payerId,
+      final long points,
+      final long timestamp
+  ) {
+    return new Mutation(Type.SPEND, spendId, 0, userId, payerId, points, 0, timestamp, null);
+  }
+
+  public static Mutation allocation(final long spendId, final long transactionId, final long points) {
+    return new Mutation(Type.ALLOCATION, spendId, transactionId, 0, 0, points, 0, 0, null);
+  }
+
+  /**
+   * Carries the partition in {@code points} and the partition count in {@code remaining}.
+   */
+  public static Mutation moved(final int partition, final int partitions) {
+    return new Mutation(Type.MOVED, 0, 0, 0, 0, partition, partitions, 0, null);
+  }
+
+  /**
+   * Carries the request hash in {@code points}, the operation, key and response in the payload, one per line, and the
+   * payload's length in UTF-8 bytes in {@code remaining}.
+   */
+  public static Mutation idempotencyKey(
+      final long userId,
+      final String operation,
+      final String idempotencyKey,
+      final long requestHash,
+      final String response,
+      final long createdAt
+  ) {
+    final String payload = String.join("\n", operation, idempotencyKey, response);
+    return new Mutation(
+        Type.IDEMPOTENCY_KEY, 0, 0, userId, 0, requestHash, payload.getBytes(StandardCharsets.UTF_8).length, createdAt,
+        payload
+    );
+  }
+
+  public String getOperation() {
+    return payload.split("\n", 3)[0];
+  }
+
+  public String getIdempotencyKey() {
+    return payload.split("\n", 3)[1];
+  }
+
+  public String getResponse() {
+    return payload.split("\n", 3)[2];
+  }
+
+  /**
+   * The type and fields, comma separated, followed by the payload in Base64 if there is one.
+   */
+  public String toLogLine() {
+    final String fields = String.join(",", type.name(),
+        String.valueOf(spendId), String.valueOf(transactionId), String.valueOf(userId), String.valueOf(payerId),
+        String.valueOf(points), String.valueOf(remaining), String.valueOf(timestamp)
+    );
+    return payload == null
+        ? fields
+        : fields + "," + Base64.getEncoder().encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public static Mutation fromLogLine(final String line) {
+    final String[] fields = line.split(",");
+    return new Mutation(
+        Type.valueOf(fields[0]),
+        Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]),
+        Long.parseLong(fields[5]), Long.parseLong(fields[6]), Long.parseLong(fields[7]),
+        fields.length > 8 ? new String(Base64.getDecoder().decode(fields[8]), StandardCharsets.UTF_8) : null
+    );
+  }
+
+  /**
+   * Writes every field but the type and the payload.
+   */
+  public void writeFields(final ByteBuffer buffer) {
+    buffer.putLong(spendId).putLong(transactionId).putLong(userId).putLong(payerId)
+        .putLong(points).putLong(remaining).putLong(timestamp);
+  }
+
+  /**
+   * Reads what {@link #writeFields} wrote. A mutation with a {@link #payloadSize} gets its payload from
+   * {@link #withPayload}.
+   */
+  public static Mutation readFields(final Type type, final ByteBuffer buffer) {
+    return new Mutation(
+        type,
+        buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(),
+        buffer.getLong(), buffer.getLong(), buffer.getLong(),
+        null
+    );
+  }
+
+  /**
+   * @return the payload's length in UTF-8 bytes, as a reader must know it before it has read the payload
+   */
+  public int payloadSize() {
+    return type == Type.IDEMPOTENCY_KEY ? Math.toIntExact(remaining) : 0;
+  }
+}
@@ -0,0 +1,49 @@
+package pointsservice.engine;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where the {@link BalanceEngine} records {@link Mutation}s before acknowledging a request, so that a restart can
+ * recover whatever had not reached the database.
+ */
+public interface MutationLog extends AutoCloseable {
+
+  /**
+   * @return mutations recorded by a previous run that may not have reached the database, skipping any before
+   * {@code position}
+   */
+  List<Mutation> readFrom(long position) throws IOException;
+
+  /**
+   * @return the log's current position, which {@link #readFrom} can later start from to skip everything appended
+   * before now
+   */
+  long position();
+
+  /**
+   * @return the log's position after the append
+   */
+  long append(List<Mutation> mutations);
+
+  /**
+   * Returns once everything up to {@code position} is as durable as the log makes it before a request is
+   * acknowledged.
+   */
+  void awaitDurable(long position);
+
+  void sync() throws IOException;
+
+  /**
+   * Called once everything up to {@code position} is in the database.
+   */
+  void truncateAt(long position) throws IOException;
+
+  /**
+   * Called once a snapshot of the database covers everything up to {@code position}, so it no longer needs replaying.
+   */
+  void discardBefore(long position) throws IOException;
+
+  @Override
+  void close() throws IOException;
+}
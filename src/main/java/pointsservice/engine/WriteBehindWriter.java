@@ -0,0 +1,320 @@
+package pointsservice.engine;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+import pointsservice.configuration.PointsProperties;
+import pointsservice.model.entity.BalanceId;
+import pointsservice.model.entity.IdempotencyKeyId;
+import pointsservice.snapshot.SnapshotStore;
+
+/**
+ * Drains acknowledged {@link Mutation}s to the database in batches on a background thread.
+ * <p>
+ * Each batch is collapsed before it is written: only the last balance per (user, payer) and the last remaining points
+ * per lot are kept, so a hot user costs one row update per batch rather than one per request.
+ * <p>
+ * Batches are cut wherever {@code batchSize} falls, even inside one request's mutations, so a mutation must be queued
+ * after any it refers to: a spend's allocations after the spend, a lot's updates after its earn. A
+ * {@link Mutation.Type#MOVED} splits its batch: what comes before it is written, then the partition is deleted, then
+ * the rest is written, all in the batch's one database transaction.
+ * <p>
+ * Idempotency keys are kept in memory from when they are submitted until their row is committed, so a retry is
+ * recognised in between.
+ */
+@Slf4j
+public class WriteBehindWriter implements Runnable {
+
+  private static final String MERGE_BALANCE =
+      "MERGE INTO balances (user_id, payer_id, point_balance) KEY (user_id, payer_id) VALUES (?, ?, ?)";
+  private static final String MERGE_TRANSACTION =
+      "MERGE INTO transactions (transaction_id, transaction_points, remaining_points, timestamp, user_id, payer_id)"
+          + " KEY (transaction_id) VALUES (?, ?, ?, ?, ?, ?)";
+  private static final String MERGE_SPEND =
+      "MERGE INTO spends (spend_id, spent_at, user_id) KEY (spend_id) VALUES (?, ?, ?)";
+  private static final String MERGE_SPEND_DEDUCTION =
+      "MERGE INTO spend_deductions (spend_id, payer_id, points) KEY (spend_id, payer_id) VALUES (?, ?, ?)";
+  private static final String MERGE_SPEND_ALLOCATION =
+      "MERGE INTO spend_allocations (spend_id, transaction_id, points) KEY (spend_id, transaction_id) VALUES (?, ?, ?)";
+  private static final String UPDATE_REMAINING = "UPDATE transactions SET remaining_points = ? WHERE transaction_id = ?";
+  private static final String MERGE_IDEMPOTENCY_KEY =
+      "MERGE INTO idempotency_keys (user_id, operation, idempotency_key, request_hash, response, created_at)"
+          + " KEY (user_id, operation, idempotency_key) VALUES (?, ?, ?, ?, ?, ?)";
+
+  private final MutationLog mutationLog;
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+  private final SnapshotStore snapshotStore;
+  private final int batchSize;
+  private final long flushIntervalMillis;
+
+  private final BlockingDeque<Pending> queue = new LinkedBlockingDeque<>();
+  private final Map<IdempotencyKeyId, Mutation> pendingKeys = new ConcurrentHashMap<>();
+  private final ReentrantLock flushLock = new ReentrantLock(true);
+  private volatile boolean running = true;
+
+  public WriteBehindWriter(
+      final MutationLog mutationLog,
+      final JdbcTemplate jdbcTemplate,
+      final TransactionTemplate transactionTemplate,
+      final SnapshotStore snapshotStore,
+      final PointsProperties.Engine properties
+  ) {
+    this.mutationLog = mutationLog;
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionTemplate = transactionTemplate;
+    this.snapshotStore = snapshotStore;
+    this.batchSize = properties.getBatchSize();
+    this.flushIntervalMillis = properties.getFlushInterval().toMillis();
+  }
+
+  /**
+   * Appends mutations to the log and queues them for the database. Returns once the log has them, as durably as it
+   * makes them before a request is acknowledged.
+   */
+  public void submit(final List<Mutation> mutations) {
+    final long logSize;
+    synchronized (mutationLog) {
+      mutations.forEach(this::holdKey);
+      try {
+        logSize = mutationLog.append(mutations);
+      } catch (RuntimeException exception) {
+        mutations.forEach(this::releaseKey);
+        throw exception;
+      }
+      mutations.forEach(mutation -> queue.add(new Pending(mutation, logSize)));
+    }
+    mutationLog.awaitDurable(logSize);
+  }
+
+  /**
+   * Queues mutations recovered from the log without appending them again.
+   */
+  public void replay(final List<Mutation> mutations) {
+    mutations.forEach(mutation -> {
+      queue.add(new Pending(mutation, -1));
+      holdKey(mutation);
+    });
+  }
+
+  /**
+   * @return the {@link Mutation.Type#IDEMPOTENCY_KEY} submitted for this key that is not in the database yet
+   */
+  public Optional<Mutation> pendingKey(final Long userId, final String operation, final String idempotencyKey) {
+    return Optional.ofNullable(pendingKeys.get(new IdempotencyKeyId(userId, operation, idempotencyKey)));
+  }
+
+  /**
+   * Writes everything queued so far before returning. The background thread only takes mutations off the queue while
+   * holding the same lock, so none can be taken but not yet written when this returns.
+   */
+  public void flush() {
+    flushLock.lock();
+    try {
+      while (!queue.isEmpty()) {
+        final List<Pending> batch = new ArrayList<>(batchSize);
+        queue.drainTo(batch, batchSize);
+        writeOrRequeue(batch);
+      }
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  public int pending() {
+    return queue.size();
+  }
+
+  public void stop() {
+    running = false;
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        flushLock.lock();
+        try {
+          final Pending first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+          if (first == null) {
+            continue;
+          }
+          final List<Pending> batch = new ArrayList<>(batchSize);
+          batch.add(first);
+          queue.drainTo(batch, batchSize - 1);
+          writeOrRequeue(batch);
+        } finally {
+          flushLock.unlock();
+        }
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException exception) {
+        log.error("Write-behind batch failed, retrying", exception);
+      }
+    }
+  }
+
+  private void writeOrRequeue(final List<Pending> batch) {
+    try {
+      write(batch);
+    } catch (RuntimeException exception) {
+      for (int i = batch.size() - 1; i >= 0; i--) {
+        queue.addFirst(batch.get(i));
+      }
+      throw exception;
+    }
+  }
+
+  private void write(final List<Pending> batch) {
+    long logSize = -1;
+    for (var pending : batch) {
+      logSize = Math.max(logSize, pending.logSize);
+    }
+    transactionTemplate.executeWithoutResult(status -> {
+      Rows rows = new Rows();
+      for (var pending : batch) {
+        final Mutation mutation = pending.mutation;
+        if (mutation.getType() == Mutation.Type.MOVED) {
+          rows.write();
+          rows = new Rows();
+          snapshotStore.deletePartition((int) mutation.getPoints(), (int) mutation.getRemaining());
+        } else {
+          rows.add(mutation);
+        }
+      }
+      rows.write();
+    });
+    batch.forEach(pending -> releaseKey(pending.mutation));
+
+    if (logSize >= 0) {
+      synchronized (mutationLog) {
+        try {
+          mutationLog.sync();
+          mutationLog.truncateAt(logSize);
+        } catch (IOException exception) {
+          log.warn("Could not truncate the mutation log", exception);
+        }
+      }
+    }
+  }
+
+  private void holdKey(final Mutation mutation) {
+    if (mutation.getType() == Mutation.Type.IDEMPOTENCY_KEY) {
+      pendingKeys.put(keyOf(mutation), mutation);
+    }
+  }
+
+  private void releaseKey(final Mutation mutation) {
+    if (mutation.getType() == Mutation.Type.IDEMPOTENCY_KEY) {
+      pendingKeys.remove(keyOf(mutation), mutation);
+    }
+  }
+
+  private static IdempotencyKeyId keyOf(final Mutation mutation) {
+    return new IdempotencyKeyId(mutation.getUserId(), mutation.getOperation(), mutation.getIdempotencyKey());
+  }
+
+  /**
+   * A run of mutations collapsed into the rows they write.
+   */
+  private class Rows {
+
+    private final Map<BalanceId, Long> balances = new LinkedHashMap<>();
+    private final List<Mutation> earns = new ArrayList<>();
+    private final Map<Long, Long> remainingPoints = new LinkedHashMap<>();
+    private final Map<Long, Mutation> spends = new LinkedHashMap<>();
+    private final List<Mutation> spendDeductions = new ArrayList<>();
+    private final List<Mutation> spendAllocations = new ArrayList<>();
+    private final List<Mutation> idempotencyKeys = new ArrayList<>();
+
+    private void add(final Mutation mutation) {
+      switch (mutation.getType()) {
+        case BALANCE:
+          balances.put(new BalanceId(mutation.getUserId(), mutation.getPayerId()), mutation.getPoints());
+          break;
+        case EARN:
+          earns.add(mutation);
+          break;
+        case LOT:
+          remainingPoints.put(mutation.getTransactionId(), mutation.getRemaining());
+          break;
+        case SPEND:
+          spends.putIfAbsent(mutation.getSpendId(), mutation);
+          spendDeductions.add(mutation);
+          break;
+        case ALLOCATION:
+          spendAllocations.add(mutation);
+          break;
+        case IDEMPOTENCY_KEY:
+          idempotencyKeys.add(mutation);
+          break;
+        default:
+          throw new IllegalArgumentException("Not a row mutation: " + mutation);
+      }
+    }
+
+    private void write() {
+      jdbcTemplate.batchUpdate(MERGE_BALANCE, new ArrayList<>(balances.entrySet()), batchSize, (statement, balance) -> {
+        statement.setLong(1, balance.getKey().getUser());
+        statement.setLong(2, balance.getKey().getPayer());
+        statement.setLong(3, balance.getValue());
+      });
+      jdbcTemplate.batchUpdate(MERGE_TRANSACTION, earns, batchSize, (statement, earn) -> {
+        statement.setLong(1, earn.getTransactionId());
+        statement.setLong(2, earn.getPoints());
+        statement.setLong(3, earn.getRemaining());
+        statement.setTimestamp(4, new Timestamp(earn.getTimestamp()));
+        statement.setLong(5, earn.getUserId());
+        statement.setLong(6, earn.getPayerId());
+      });
+      jdbcTemplate.batchUpdate(UPDATE_REMAINING, new ArrayList<>(remainingPoints.entrySet()), batchSize, (statement, lot) -> {
+        statement.setLong(1, lot.getValue());
+        statement.setLong(2, lot.getKey());
+      });
+      jdbcTemplate.batchUpdate(MERGE_SPEND, new ArrayList<>(spends.values()), batchSize, (statement, spend) -> {
+        statement.setLong(1, spend.getSpendId());
+        statement.setTimestamp(2, new Timestamp(spend.getTimestamp()));
+        statement.setLong(3, spend.getUserId());
+      });
+      jdbcTemplate.batchUpdate(MERGE_SPEND_DEDUCTION, spendDeductions, batchSize, (statement, deduction) -> {
+        statement.setLong(1, deduction.getSpendId());
+        statement.setLong(2, deduction.getPayerId());
+        statement.setLong(3, deduction.getPoints());
+      });
+      jdbcTemplate.batchUpdate(MERGE_SPEND_ALLOCATION, spendAllocations, batchSize, (statement, allocation) -> {
+        statement.setLong(1, allocation.getSpendId());
+        statement.setLong(2, allocation.getTransactionId());
+        statement.setLong(3, allocation.getPoints());
+      });
+      jdbcTemplate.batchUpdate(MERGE_IDEMPOTENCY_KEY, idempotencyKeys, batchSize, (statement, key) -> {
+        statement.setLong(1, key.getUserId());
+        statement.setString(2, key.getOperation());
+        statement.setString(3, key.getIdempotencyKey());
+        statement.setLong(4, key.getPoints());
+        statement.setString(5, key.getResponse());
+        statement.setTimestamp(6, new Timestamp(key.getTimestamp()));
+      });
+    }
+  }
+
+  @AllArgsConstructor
+  private static class Pending {
+
+    private final Mutation mutation;
+    private final long logSize;
+  }
+}
@@ -1,10 +1,12 @@
 package pointsservice.error;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import javax.persistence.EntityNotFoundException;
 import javax.validation.ConstraintViolationException;
 import org.springframework.beans.TypeMismatchException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.converter.HttpMessageNotReadableException;
@@ -19,15 +21,22 @@ import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.method.annotation.MethodArgumentTypeMismatchException;
 import org.springframework.web.multipart.support.MissingServletRequestPartException;
 import pointsservice.error.model.ErrorResponse;
+import pointsservice.error.model.IdempotencyKeyReusedException;
 import pointsservice.error.model.InsufficientBalanceException;
+import pointsservice.error.model.PartitionNotOwnedException;
+import pointsservice.error.model.UnknownNodeException;
+import pointsservice.error.model.UserNotOwnedException;
 
 @ControllerAdvice
 public class PointsExceptionHandler {
 
+  private static final int MISDIRECTED_REQUEST = 421;
+
   @ExceptionHandler({
       BindException.class,
       ConstraintViolationException.class,
       HttpMessageNotReadableException.class,
+      JsonProcessingException.class,
       MethodArgumentNotValidException.class,
       MethodArgumentTypeMismatchException.class,
       MissingServletRequestParameterException.class,
@@ -50,6 +59,32 @@ public class PointsExceptionHandler {
     return buildErrorResponse(HttpStatus.NOT_FOUND, exception.getMessage());
   }
 
+  @ExceptionHandler(OptimisticLockingFailureException.class)
+  public ResponseEntity<ErrorResponse> handleConflictError(final OptimisticLockingFailureException exception) {
+    return buildErrorResponse(HttpStatus.CONFLICT, "Points were changed by a concurrent request, please retry");
+  }
+
+  @ExceptionHandler(PartitionNotOwnedException.class)
+  public ResponseEntity<ErrorResponse> handlePartitionNotOwnedException(final PartitionNotOwnedException exception) {
+    return buildErrorResponse(HttpStatus.CONFLICT, exception.getMessage());
+  }
+
+  @ExceptionHandler(UserNotOwnedException.class)
+  public ResponseEntity<ErrorResponse> handleUserNotOwnedException(final UserNotOwnedException exception) {
+    return ResponseEntity.status(MISDIRECTED_REQUEST)
+        .body(new ErrorResponse(MISDIRECTED_REQUEST, exception.getMessage()));
+  }
+
+  @ExceptionHandler(UnknownNodeException.class)
+  public ResponseEntity<ErrorResponse> handleUnknownNodeException(final UnknownNodeException exception) {
+    return buildErrorResponse(HttpStatus.FORBIDDEN, exception.getMessage());
+  }
+
+  @ExceptionHandler(IdempotencyKeyReusedException.class)
+  public ResponseEntity<ErrorResponse> handleIdempotencyKeyReusedException(final IdempotencyKeyReusedException exception) {
+    return buildErrorResponse(HttpStatus.UNPROCESSABLE_ENTITY, exception.getMessage());
+  }
+
   @ExceptionHandler(InsufficientBalanceException.class)
   public ResponseEntity<ErrorResponse> handleInvalidTransactionException(final InsufficientBalanceException exception) {
     return buildErrorResponse(HttpStatus.I_AM_A_TEAPOT, exception.getMessage());
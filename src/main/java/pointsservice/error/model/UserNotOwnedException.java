@@ -0,0 +1,13 @@
+package pointsservice.error.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+@Data
+@EqualsAndHashCode(callSuper = true)
+@AllArgsConstructor
+public class UserNotOwnedException extends Exception {
+
+  private final String message;
+}
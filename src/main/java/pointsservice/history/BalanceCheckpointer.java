@@ -0,0 +1,128 @@
+package pointsservice.history;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import pointsservice.configuration.PointsProperties;
+import pointsservice.engine.BalanceEngine;
+
+/**
+ * Writes a {@code balance_checkpoints} row for every (user, payer) balance that changed since its last one, for
+ * {@link BalanceHistory} to replay from.
+ * <p>
+ * A checkpoint is the balance less any earns dated after it was taken. It is only written if the balance's version
+ * still matches when its {@code checkpointed_through} is moved up, so it never races a concurrent earn or spend; a
+ * balance that lost is picked up by the next run. Earns dated at or before {@code checkpointed_through} delete the
+ * checkpoints they make stale. Balances written behind by the {@link BalanceEngine} carry no version, so nothing is
+ * checkpointed in {@code memory} mode.
+ */
+@Slf4j
+@Component
+public class BalanceCheckpointer {
+
+  private static final String SELECT_CHANGED =
+      "SELECT b.user_id, b.payer_id, b.point_balance, b.version FROM balances b"
+          + " LEFT JOIN balance_checkpoints c"
+          + " ON c.user_id = b.user_id AND c.payer_id = b.payer_id AND c.as_of = b.checkpointed_through"
+          + " WHERE c.balance_version IS NULL OR c.balance_version <> b.version"
+          + " ORDER BY b.user_id, b.payer_id LIMIT ?";
+  private static final String SUM_LATER_EARNS =
+      "SELECT COALESCE(SUM(points), 0) FROM ("
+          + "SELECT transaction_points AS points FROM transactions WHERE user_id = ? AND payer_id = ? AND timestamp > ?"
+          + " UNION ALL SELECT transaction_points FROM transaction_history"
+          + " WHERE user_id = ? AND payer_id = ? AND timestamp > ?)";
+  private static final String UPDATE_CHECKPOINTED_THROUGH =
+      "UPDATE balances SET checkpointed_through = ?, version = version + 1"
+          + " WHERE user_id = ? AND payer_id = ? AND version = ?";
+  private static final String INSERT_CHECKPOINT =
+      "INSERT INTO balance_checkpoints (as_of, point_balance, balance_version, user_id, payer_id) VALUES (?, ?, ?, ?, ?)";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+  private final boolean enabled;
+  private final int batchSize;
+
+  public BalanceCheckpointer(
+      final JdbcTemplate jdbcTemplate,
+      final TransactionTemplate transactionTemplate,
+      final Optional<BalanceEngine> balanceEngine,
+      final PointsProperties properties
+  ) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionTemplate = transactionTemplate;
+    this.enabled = balanceEngine.isEmpty();
+    this.batchSize = properties.getCompaction().getBatchSize();
+  }
+
+  /**
+   * Checkpoints changed balances a batch at a time, as of now. Returns the number of checkpoints written.
+   */
+  public long checkpoint() {
+    if (!enabled) {
+      return 0;
+    }
+    final Timestamp asOf = new Timestamp(System.currentTimeMillis());
+    long written = 0;
+    int[] batch;
+    do {
+      batch = checkpointBatch(asOf);
+      written += batch[1];
+    } while (batch[0] == batchSize && batch[1] > 0);
+    if (written > 0) {
+      log.info("Checkpointed {} balances", written);
+    }
+    return written;
+  }
+
+  /**
+   * Returns the balances read and the checkpoints written.
+   */
+  private int[] checkpointBatch(final Timestamp asOf) {
+    return transactionTemplate.execute(status -> {
+      final List<ChangedBalance> changed = jdbcTemplate.query(SELECT_CHANGED, (row, rowNumber) -> new ChangedBalance(
+          row.getLong("user_id"),
+          row.getLong("payer_id"),
+          row.getLong("point_balance"),
+          row.getLong("version")
+      ), batchSize);
+
+      final List<Object[]> updates = new ArrayList<>(changed.size());
+      changed.forEach(balance -> updates.add(new Object[]{asOf, balance.userId, balance.payerId, balance.version}));
+      final int[] updated = jdbcTemplate.batchUpdate(UPDATE_CHECKPOINTED_THROUGH, updates);
+
+      final List<Object[]> checkpoints = new ArrayList<>();
+      for (int i = 0; i < updated.length; i++) {
+        if (updated[i] == 1) {
+          final ChangedBalance balance = changed.get(i);
+          final long laterEarns = jdbcTemplate.queryForObject(
+              SUM_LATER_EARNS, Long.class,
+              balance.userId, balance.payerId, asOf,
+              balance.userId, balance.payerId, asOf
+          );
+          checkpoints.add(new Object[]{
+              asOf, balance.pointBalance - laterEarns, balance.version + 1, balance.userId, balance.payerId
+          });
+        }
+      }
+      if (!checkpoints.isEmpty()) {
+        jdbcTemplate.batchUpdate(INSERT_CHECKPOINT, checkpoints);
+      }
+      return new int[]{changed.size(), checkpoints.size()};
+    });
+  }
+
+  @AllArgsConstructor
+  private static class ChangedBalance {
+
+    private final long userId;
+    private final long payerId;
+    private final long pointBalance;
+    private final long version;
+  }
+}
@@ -0,0 +1,121 @@
+package pointsservice.history;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import lombok.AllArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import pointsservice.engine.BalanceEngine;
+
+/**
+ * Per-payer balances at a point in time.
+ * <p>
+ * Each balance starts from whichever known value is nearest the requested time: the latest
+ * {@code balance_checkpoints} row at or before it, the earliest one after it, or the live balance. Only the earns
+ * (live and archived transactions, by {@code timestamp}) and spends (by {@code spent_at}) between that value and the
+ * requested time are read, so the cost follows the distance to the nearest checkpoint rather than the length of the
+ * history.
+ */
+@Component
+public class BalanceHistory {
+
+  private static final String SELECT_BALANCES =
+      "SELECT b.payer_id, p.payer_name, b.point_balance FROM balances b JOIN payers p ON p.payer_id = b.payer_id"
+          + " WHERE b.user_id = ?";
+  private static final String SELECT_CHECKPOINTS_BEFORE =
+      "SELECT c.payer_id, c.as_of, c.point_balance FROM balance_checkpoints c WHERE c.user_id = ?"
+          + " AND c.as_of = (SELECT MAX(l.as_of) FROM balance_checkpoints l"
+          + " WHERE l.user_id = c.user_id AND l.payer_id = c.payer_id AND l.as_of <= ?)";
+  private static final String SELECT_CHECKPOINTS_AFTER =
+      "SELECT c.payer_id, c.as_of, c.point_balance FROM balance_checkpoints c WHERE c.user_id = ?"
+          + " AND c.as_of = (SELECT MIN(l.as_of) FROM balance_checkpoints l"
+          + " WHERE l.user_id = c.user_id AND l.payer_id = c.payer_id AND l.as_of > ?)";
+  private static final String SUM_CHANGES =
+      "SELECT COALESCE(SUM(points), 0) FROM ("
+          + "SELECT transaction_points AS points FROM transactions"
+          + " WHERE user_id = ? AND payer_id = ? AND timestamp > ? AND timestamp <= ?"
+          + " UNION ALL SELECT transaction_points FROM transaction_history"
+          + " WHERE user_id = ? AND payer_id = ? AND timestamp > ? AND timestamp <= ?"
+          + " UNION ALL SELECT -d.points FROM spends s JOIN spend_deductions d ON d.spend_id = s.spend_id"
+          + " WHERE s.user_id = ? AND d.payer_id = ? AND s.spent_at > ? AND s.spent_at <= ?)";
+  private static final String DELETE_CHECKPOINTS_FROM =
+      "DELETE FROM balance_checkpoints WHERE user_id = ? AND payer_id = ? AND as_of >= ?";
+  /**
+   * Stands in for "no upper bound" when replaying back from the live balance.
+   */
+  private static final Timestamp END_OF_TIME = Timestamp.valueOf("9999-12-31 23:59:59");
+
+  private final JdbcTemplate jdbcTemplate;
+  private final boolean useCheckpoints;
+
+  public BalanceHistory(final JdbcTemplate jdbcTemplate, final Optional<BalanceEngine> balanceEngine) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.useCheckpoints = balanceEngine.isEmpty();
+  }
+
+  /**
+   * Balances by payer name as of {@code asOf}, for every payer the user has a balance with now. Returns an empty map
+   * for a user with no balances.
+   */
+  public Map<String, Long> balancesAsOf(final Long userId, final Date asOf) {
+    final Timestamp at = new Timestamp(asOf.getTime());
+    final Map<Long, Checkpoint> before = useCheckpoints ? checkpoints(SELECT_CHECKPOINTS_BEFORE, userId, at) : Map.of();
+    final Map<Long, Checkpoint> after = useCheckpoints ? checkpoints(SELECT_CHECKPOINTS_AFTER, userId, at) : Map.of();
+    final long now = System.currentTimeMillis();
+
+    final Map<String, Long> balances = new HashMap<>();
+    jdbcTemplate.query(SELECT_BALANCES, row -> {
+      final long payerId = row.getLong("payer_id");
+      Checkpoint nearest = new Checkpoint(END_OF_TIME, row.getLong("point_balance"));
+      long distance = Math.max(now - at.getTime(), 0);
+      for (Checkpoint checkpoint : new Checkpoint[]{before.get(payerId), after.get(payerId)}) {
+        if (checkpoint != null && Math.abs(checkpoint.asOf.getTime() - at.getTime()) < distance) {
+          nearest = checkpoint;
+          distance = Math.abs(checkpoint.asOf.getTime() - at.getTime());
+        }
+      }
+      final long balance = nearest.asOf.after(at)
+          ? nearest.pointBalance - sumChanges(userId, payerId, at, nearest.asOf)
+          : nearest.pointBalance + sumChanges(userId, payerId, nearest.asOf, at);
+      balances.put(row.getString("payer_name"), balance);
+    }, userId);
+    return balances;
+  }
+
+  /**
+   * Deletes the (user, payer) checkpoints an earn dated {@code from} makes stale. Called in the earn's database
+   * transaction.
+   */
+  public void invalidateCheckpoints(final Long userId, final Long payerId, final Date from) {
+    jdbcTemplate.update(DELETE_CHECKPOINTS_FROM, userId, payerId, new Timestamp(from.getTime()));
+  }
+
+  /**
+   * Net earns less spends for one (user, payer) in {@code (from, to]}.
+   */
+  private long sumChanges(final Long userId, final long payerId, final Timestamp from, final Timestamp to) {
+    return jdbcTemplate.queryForObject(SUM_CHANGES, Long.class,
+        userId, payerId, from, to,
+        userId, payerId, from, to,
+        userId, payerId, from, to
+    );
+  }
+
+  private Map<Long, Checkpoint> checkpoints(final String sql, final Long userId, final Timestamp at) {
+    final Map<Long, Checkpoint> checkpoints = new HashMap<>();
+    jdbcTemplate.query(sql, row -> {
+      checkpoints.put(row.getLong("payer_id"), new Checkpoint(row.getTimestamp("as_of"), row.getLong("point_balance")));
+    }, userId, at);
+    return checkpoints;
+  }
+
+  @AllArgsConstructor
+  private static class Checkpoint {
+
+    private final Timestamp asOf;
+    private final long pointBalance;
+  }
+}
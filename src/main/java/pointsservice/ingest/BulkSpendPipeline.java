@@ -0,0 +1,127 @@
+package pointsservice.ingest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import pointsservice.configuration.PointsProperties;
+import pointsservice.model.request.BulkSpendRequest;
+import pointsservice.model.request.UserSpendRequest;
+import pointsservice.model.response.BulkSpendResponse;
+import pointsservice.service.PointsService;
+
+/**
+ * Spends points for many users at once.
+ * <p>
+ * Requests are routed to a partition by user id, as in the {@link ImportPipeline}, and each partition's worker spends
+ * them a batch at a time, so a user's requests are applied in order and each batch is written in one database
+ * transaction. A batch holds only its own users' locks, so partitions spend in parallel and requests for other users
+ * are not held up. Uses the {@code points.ingest.*} partition count and batch size.
+ * <p>
+ * Every bulk request shares one pool of {@code points.ingest.partitions} workers. Once each worker has
+ * {@code points.ingest.queue-capacity} partitions waiting, a request spends its next partition on its own thread, so
+ * concurrent bulk requests slow down rather than start more threads.
+ */
+@Component
+public class BulkSpendPipeline implements DisposableBean {
+
+  private final PointsService pointsService;
+  private final PointsProperties.Ingest properties;
+  private final ExecutorService workers;
+
+  public BulkSpendPipeline(final PointsService pointsService, final PointsProperties properties) {
+    this.pointsService = pointsService;
+    this.properties = properties.getIngest();
+    final AtomicInteger workerCount = new AtomicInteger();
+    this.workers = new ThreadPoolExecutor(
+        this.properties.getPartitions(),
+        this.properties.getPartitions(),
+        0,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(this.properties.getPartitions() * this.properties.getQueueCapacity()),
+        task -> new Thread(task, "points-bulk-spend-" + workerCount.incrementAndGet()),
+        new ThreadPoolExecutor.CallerRunsPolicy()
+    );
+  }
+
+  /**
+   * Returns one response per request, in request order.
+   */
+  public List<BulkSpendResponse> spendPoints(final List<BulkSpendRequest> bulkSpendRequests) throws InterruptedException {
+    final BulkSpendResponse[] responses = new BulkSpendResponse[bulkSpendRequests.size()];
+    final int partitions = Math.max(Math.min(properties.getPartitions(), bulkSpendRequests.size()), 1);
+    final List<List<Integer>> partitionedRequests = new ArrayList<>(partitions);
+    for (int i = 0; i < partitions; i++) {
+      partitionedRequests.add(new ArrayList<>());
+    }
+    for (int i = 0; i < bulkSpendRequests.size(); i++) {
+      partitionedRequests.get(Math.floorMod(bulkSpendRequests.get(i).getUserId().hashCode(), partitions)).add(i);
+    }
+
+    final List<Future<?>> spent = new ArrayList<>(partitions);
+    partitionedRequests.forEach(requestIndexes -> spent.add(workers.submit(() -> {
+      for (int from = 0; from < requestIndexes.size(); from += properties.getBatchSize()) {
+        apply(
+            requestIndexes.subList(from, Math.min(from + properties.getBatchSize(), requestIndexes.size())),
+            bulkSpendRequests,
+            responses
+        );
+      }
+    })));
+    for (var partition : spent) {
+      try {
+        partition.get();
+      } catch (ExecutionException exception) {
+        throw new IllegalStateException("Bulk spend worker failed", exception.getCause());
+      }
+    }
+    return Arrays.asList(responses);
+  }
+
+  @Override
+  public void destroy() {
+    workers.shutdown();
+  }
+
+  /**
+   * Spends a batch in one database transaction. If that fails, each request in it is retried on its own so that only
+   * the failing users get an error.
+   */
+  private void apply(
+      final List<Integer> batch,
+      final List<BulkSpendRequest> bulkSpendRequests,
+      final BulkSpendResponse[] responses
+  ) {
+    final List<BulkSpendRequest> requests = new ArrayList<>(batch.size());
+    batch.forEach(index -> requests.add(bulkSpendRequests.get(index)));
+    try {
+      final List<BulkSpendResponse> batchResponses = pointsService.spendPoints(requests);
+      for (int i = 0; i < batch.size(); i++) {
+        responses[batch.get(i)] = batchResponses.get(i);
+      }
+    } catch (RuntimeException batchException) {
+      for (var index : batch) {
+        final Long userId = bulkSpendRequests.get(index).getUserId();
+        try {
+          responses[index] = BulkSpendResponse.spent(
+              userId,
+              pointsService.spendPoints(userId, new UserSpendRequest(bulkSpendRequests.get(index).getPoints()))
+          );
+        } catch (NoSuchElementException exception) {
+          responses[index] = BulkSpendResponse.failed(userId, "User " + userId + " not found");
+        } catch (Exception exception) {
+          responses[index] = BulkSpendResponse.failed(userId, exception.getMessage());
+        }
+      }
+    }
+  }
+}
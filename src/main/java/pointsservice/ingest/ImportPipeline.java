@@ -0,0 +1,280 @@
+package pointsservice.ingest;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.StdDateFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.validation.Validator;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import pointsservice.configuration.PointsProperties;
+import pointsservice.error.model.InsufficientBalanceException;
+import pointsservice.error.model.UserNotOwnedException;
+import pointsservice.model.request.BulkTransactionRequest;
+import pointsservice.model.request.TransactionRequest;
+import pointsservice.model.request.UserTransactionRequest;
+import pointsservice.model.response.ImportResponse;
+import pointsservice.service.PointsService;
+
+/**
+ * Replays an NDJSON file of {@link UserTransactionRequest}s without holding it in memory.
+ * <p>
+ * A single reader pulls tokens off a streaming parser and routes each line to a partition by user id. Partitions
+ * collect lines into batches, and each batch is applied after the partition's previous one, so a user's transactions
+ * are always applied in file order.
+ * <p>
+ * Every import shares one pool of {@code points.ingest.partitions} workers. The reader blocks once
+ * {@code points.ingest.queue-capacity} batches per partition are waiting rather than buffering when the workers fall
+ * behind, and once the shared pool is full a batch is applied on the thread that queued it.
+ */
+@Component
+public class ImportPipeline implements DisposableBean {
+
+  private static final int MAX_ERRORS = 20;
+
+  private final ObjectMapper objectMapper;
+  private final Validator validator;
+  private final PointsService pointsService;
+  private final PointsProperties.Ingest properties;
+  private final ExecutorService workers;
+
+  public ImportPipeline(
+      final ObjectMapper objectMapper,
+      final Validator validator,
+      final PointsService pointsService,
+      final PointsProperties properties
+  ) {
+    this.objectMapper = objectMapper;
+    this.validator = validator;
+    this.pointsService = pointsService;
+    this.properties = properties.getIngest();
+    final AtomicInteger workerCount = new AtomicInteger();
+    this.workers = new ThreadPoolExecutor(
+        this.properties.getPartitions(),
+        this.properties.getPartitions(),
+        0,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(this.properties.getPartitions() * this.properties.getQueueCapacity()),
+        task -> new Thread(task, "points-import-" + workerCount.incrementAndGet()),
+        new ThreadPoolExecutor.CallerRunsPolicy()
+    );
+  }
+
+  public ImportResponse importTransactions(final InputStream inputStream) throws IOException, InterruptedException {
+    final Run run = new Run();
+    final int partitions = properties.getPartitions();
+    final List<CompletableFuture<Void>> applied = new ArrayList<>(partitions);
+    final List<List<UserTransactionRequest>> batches = new ArrayList<>(partitions);
+    final Semaphore waiting = new Semaphore(partitions * properties.getQueueCapacity());
+    for (int i = 0; i < partitions; i++) {
+      applied.add(CompletableFuture.completedFuture(null));
+      batches.add(new ArrayList<>(properties.getBatchSize()));
+    }
+
+    try (JsonParser parser = objectMapper.getFactory().createParser(inputStream)) {
+      final StdDateFormat dateFormat = new StdDateFormat();
+      JsonToken token;
+      while ((token = parser.nextToken()) != null) {
+        if (token != JsonToken.START_OBJECT) {
+          throw new JsonParseException(parser, "Expected one JSON object per line");
+        }
+        run.linesRead.incrementAndGet();
+        final int lineNumber = parser.getTokenLocation().getLineNr();
+        final UserTransactionRequest userTransaction;
+        try {
+          userTransaction = readTransaction(parser, dateFormat);
+        } catch (ParseException exception) {
+          run.reject(1, "Line " + lineNumber + ": " + exception.getMessage());
+          continue;
+        }
+        final var violations = validator.validate(userTransaction);
+        if (!violations.isEmpty()) {
+          run.reject(1, "Line " + lineNumber + ": " + violations.stream()
+              .map(violation -> violation.getPropertyPath() + " " + violation.getMessage())
+              .reduce((first, second) -> first + ", " + second)
+              .orElse(""));
+          continue;
+        }
+
+        final int partition = Math.floorMod(userTransaction.getUserId().hashCode(), partitions);
+        final List<UserTransactionRequest> batch = batches.get(partition);
+        batch.add(userTransaction);
+        if (batch.size() >= properties.getBatchSize()) {
+          submit(partition, new ArrayList<>(batch), applied, waiting, run);
+          batch.clear();
+        }
+      }
+    } catch (JsonParseException exception) {
+      run.reject(0, "Stopped reading: " + exception.getOriginalMessage() + " at line " + exception.getLocation().getLineNr());
+    } finally {
+      for (int i = 0; i < partitions; i++) {
+        if (!batches.get(i).isEmpty()) {
+          submit(i, batches.get(i), applied, waiting, run);
+        }
+      }
+      try {
+        CompletableFuture.allOf(applied.toArray(CompletableFuture[]::new)).get();
+      } catch (ExecutionException exception) {
+        throw new IllegalStateException("Import worker failed", exception.getCause());
+      }
+    }
+
+    return ImportResponse.builder()
+        .linesRead(run.linesRead.get())
+        .transactionsApplied(run.applied.get())
+        .transactionsRejected(run.rejected.get())
+        .errors(run.errors)
+        .build();
+  }
+
+  @Override
+  public void destroy() {
+    workers.shutdown();
+  }
+
+  /**
+   * Queues a batch to be applied after the partition's previous one, blocking while too many batches are waiting.
+   */
+  private void submit(
+      final int partition,
+      final List<UserTransactionRequest> batch,
+      final List<CompletableFuture<Void>> applied,
+      final Semaphore waiting,
+      final Run run
+  ) throws InterruptedException {
+    waiting.acquire();
+    applied.set(partition, applied.get(partition).thenRunAsync(() -> {
+      try {
+        apply(batch, run);
+      } finally {
+        waiting.release();
+      }
+    }, workers));
+  }
+
+  /**
+   * Applies a batch in one database transaction. If that fails, each user in it is retried on its own so that only
+   * the failing users' lines are rejected.
+   */
+  private void apply(final List<UserTransactionRequest> batch, final Run run) {
+    final Map<Long, List<TransactionRequest>> transactionsByUser = new LinkedHashMap<>();
+    batch.forEach(userTransaction -> transactionsByUser
+        .computeIfAbsent(userTransaction.getUserId(), userId -> new ArrayList<>())
+        .add(userTransaction.getTransaction())
+    );
+    final List<BulkTransactionRequest> bulkTransactionRequests = new ArrayList<>();
+    transactionsByUser.forEach((userId, transactions) -> bulkTransactionRequests.add(
+        new BulkTransactionRequest(userId, transactions)
+    ));
+
+    try {
+      pointsService.addTransactions(bulkTransactionRequests);
+      run.applied.addAndGet(batch.size());
+    } catch (RuntimeException | InsufficientBalanceException | UserNotOwnedException batchException) {
+      for (var bulkTransactionRequest : bulkTransactionRequests) {
+        try {
+          pointsService.addTransactions(bulkTransactionRequest.getUserId(), bulkTransactionRequest.getTransactions());
+          run.applied.addAndGet(bulkTransactionRequest.getTransactions().size());
+        } catch (RuntimeException | InsufficientBalanceException | UserNotOwnedException exception) {
+          run.reject(
+              bulkTransactionRequest.getTransactions().size(),
+              "User " + bulkTransactionRequest.getUserId() + ": " + exception
+          );
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the rest of the current object. A malformed field rejects the line, but the whole object is still consumed
+   * so that reading can carry on with the next line.
+   */
+  private static UserTransactionRequest readTransaction(
+      final JsonParser parser,
+      final StdDateFormat dateFormat
+  ) throws IOException, ParseException {
+    final TransactionRequest transaction = new TransactionRequest();
+    final UserTransactionRequest userTransaction = new UserTransactionRequest(null, transaction);
+    String problem = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.getCurrentName();
+      final JsonToken value = parser.nextToken();
+      if (value.isStructStart()) {
+        parser.skipChildren();
+        problem = field + " must not be an object or array";
+        continue;
+      }
+      if (value == JsonToken.VALUE_NULL) {
+        continue;
+      }
+      switch (field) {
+        case "userId":
+          if (value == JsonToken.VALUE_NUMBER_INT) {
+            userTransaction.setUserId(parser.getLongValue());
+          } else {
+            problem = "userId must be a whole number";
+          }
+          break;
+        case "payer":
+          transaction.setPayerName(parser.getText());
+          break;
+        case "points":
+          if (value == JsonToken.VALUE_NUMBER_INT) {
+            transaction.setTransactionPoints(parser.getLongValue());
+          } else {
+            problem = "points must be a whole number";
+          }
+          break;
+        case "timestamp":
+          try {
+            transaction.setTimestamp(value == JsonToken.VALUE_NUMBER_INT
+                ? new Date(parser.getLongValue())
+                : dateFormat.parse(parser.getText()));
+          } catch (ParseException exception) {
+            problem = exception.getMessage();
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    if (problem != null) {
+      throw new ParseException(problem, 0);
+    }
+    return userTransaction;
+  }
+
+  private static class Run {
+
+    private final AtomicLong linesRead = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+    private void reject(final long transactions, final String error) {
+      rejected.addAndGet(transactions);
+      if (errors.size() < MAX_ERRORS) {
+        errors.add(error);
+      }
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package pointsservice.ingest;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
+import javax.validation.Validator;
+import org.springframework.stereotype.Component;
+import pointsservice.model.request.BulkTransactionRequest;
+import pointsservice.model.request.TransactionRequest;
+import pointsservice.model.request.UserTransactionRequest;
+
+/**
+ * Reads newline-delimited JSON request bodies one value at a time, validating each line as it is bound.
+ */
+@Component
+public class NdjsonReader {
+
+  private final ObjectMapper objectMapper;
+  private final Validator validator;
+
+  public NdjsonReader(final ObjectMapper objectMapper, final Validator validator) {
+    this.objectMapper = objectMapper;
+    this.validator = validator;
+  }
+
+  public List<TransactionRequest> readTransactions(final InputStream inputStream) throws IOException {
+    return readAll(inputStream, TransactionRequest.class);
+  }
+
+  /**
+   * Groups a multi-user feed by user, keeping each user's transactions in feed order.
+   */
+  public List<BulkTransactionRequest> readUserTransactions(final InputStream inputStream) throws IOException {
+    final Map<Long, List<TransactionRequest>> transactionsByUser = new LinkedHashMap<>();
+    readAll(inputStream, UserTransactionRequest.class).forEach(userTransaction -> transactionsByUser
+        .computeIfAbsent(userTransaction.getUserId(), userId -> new ArrayList<>())
+        .add(userTransaction.getTransaction())
+    );
+    final List<BulkTransactionRequest> bulkTransactionRequests = new ArrayList<>();
+    transactionsByUser.forEach((userId, transactions) -> bulkTransactionRequests.add(
+        new BulkTransactionRequest(userId, transactions)
+    ));
+    return bulkTransactionRequests;
+  }
+
+  private <T> List<T> readAll(final InputStream inputStream, final Class<T> type) throws IOException {
+    final List<T> values = new ArrayList<>();
+    try (MappingIterator<T> iterator = objectMapper.readerFor(type).readValues(inputStream)) {
+      while (iterator.hasNextValue()) {
+        values.add(validate(iterator.nextValue()));
+      }
+    }
+    return values;
+  }
+
+  private <T> T validate(final T value) {
+    final Set<ConstraintViolation<T>> violations = validator.validate(value);
+    if (!violations.isEmpty()) {
+      throw new ConstraintViolationException(violations);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,89 @@
+package pointsservice.ledger;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The lots a spend or reversal took points from, in the order it took them, with each lot's remaining points after.
+ * <p>
+ * Held in primitive arrays that only grow, so a {@link UserLedger} can fill one without allocating once it is big
+ * enough.
+ */
+public class Allocations {
+
+  private static final int INITIAL_CAPACITY = 4;
+
+  private long[] transactionIds = new long[INITIAL_CAPACITY];
+  private int[] payerIds = new int[INITIAL_CAPACITY];
+  private long[] points = new long[INITIAL_CAPACITY];
+  private long[] remaining = new long[INITIAL_CAPACITY];
+  private int size;
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public long getTransactionId(final int index) {
+    return transactionIds[index];
+  }
+
+  public long getPayerId(final int index) {
+    return payerIds[index];
+  }
+
+  public long getPoints(final int index) {
+    return points[index];
+  }
+
+  public long getRemaining(final int index) {
+    return remaining[index];
+  }
+
+  public void addAll(final Allocations other) {
+    for (int i = 0; i < other.size; i++) {
+      add(other.transactionIds[i], other.payerIds[i], other.points[i], other.remaining[i]);
+    }
+  }
+
+  /**
+   * Points taken from each payer.
+   */
+  public Map<Long, Long> payerDeductions() {
+    final Map<Long, Long> payerDeductions = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      payerDeductions.merge((long) payerIds[i], points[i], Long::sum);
+    }
+    return payerDeductions;
+  }
+
+  /**
+   * Points taken from each lot, by transaction id.
+   */
+  public Map<Long, Long> lotDeductions() {
+    final Map<Long, Long> lotDeductions = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      lotDeductions.merge(transactionIds[i], points[i], Long::sum);
+    }
+    return lotDeductions;
+  }
+
+  void add(final long transactionId, final int payerId, final long taken, final long left) {
+    if (size == transactionIds.length) {
+      final int capacity = size * 2;
+      transactionIds = Arrays.copyOf(transactionIds, capacity);
+      payerIds = Arrays.copyOf(payerIds, capacity);
+      points = Arrays.copyOf(points, capacity);
+      remaining = Arrays.copyOf(remaining, capacity);
+    }
+    transactionIds[size] = transactionId;
+    payerIds[size] = payerId;
+    points[size] = taken;
+    remaining[size] = left;
+    size++;
+  }
+}
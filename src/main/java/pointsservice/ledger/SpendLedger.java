@@ -0,0 +1,96 @@
+package pointsservice.ledger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import pointsservice.model.entity.TransactionEntity;
+import pointsservice.repository.TransactionRepository;
+
+/**
+ * Per-user {@link UserLedger}s, loaded on first spend and kept up to date by later earns and spends.
+ * <p>
+ * Callers that change a user's ledger and then write the change to the database hold that user's
+ * {@linkplain #getLocks() lock} throughout, so a ledger is never loaded or changed mid-write. Other users proceed in
+ * parallel.
+ */
+@Component
+public class SpendLedger {
+
+  private static final int LOT_PAGE_SIZE = 500;
+
+  private final Map<Long, UserLedger> ledgers = new ConcurrentHashMap<>();
+  private final UserLocks locks = new UserLocks();
+  private final TransactionRepository transactionRepository;
+
+  public SpendLedger(final TransactionRepository transactionRepository) {
+    this.transactionRepository = transactionRepository;
+  }
+
+  public UserLocks getLocks() {
+    return locks;
+  }
+
+  public UserLedger forUser(final Long userId) {
+    return ledgers.computeIfAbsent(userId, this::load);
+  }
+
+  public Optional<UserLedger> ifLoaded(final Long userId) {
+    return Optional.ofNullable(ledgers.get(userId));
+  }
+
+  public void evict(final Long userId) {
+    ledgers.remove(userId);
+  }
+
+  /**
+   * Evicts the user's ledger if the current database transaction rolls back, since the ledger is updated before the
+   * transaction commits.
+   */
+  public void evictOnRollback(final Long userId) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(final int status) {
+          if (status != STATUS_COMMITTED) {
+            evict(userId);
+          }
+        }
+      });
+    }
+  }
+
+  public static void credit(final UserLedger ledger, final TransactionEntity transaction) {
+    ledger.credit(
+        transaction.getTransactionId(),
+        transaction.getBalance().getPayer().getPayerId(),
+        transaction.getTimestamp().getTime(),
+        transaction.getRemainingPoints()
+    );
+  }
+
+  /**
+   * Loads a user's open lots in spend order, a page at a time, from the open lot index, without caching the ledger.
+   * Readers that do not hold the user's lock use this for a cold user: a ledger they cached could miss a lot that a
+   * concurrent earn commits while it loads.
+   */
+  public UserLedger load(final Long userId) {
+    final UserLedger ledger = new UserLedger();
+    List<TransactionEntity> lots = transactionRepository.findOpenLots(userId, PageRequest.of(0, LOT_PAGE_SIZE));
+    while (!lots.isEmpty()) {
+      lots.forEach(lot -> credit(ledger, lot));
+      if (lots.size() < LOT_PAGE_SIZE) {
+        break;
+      }
+      final TransactionEntity last = lots.get(lots.size() - 1);
+      lots = transactionRepository.findOpenLotsAfter(
+          userId, last.getTimestamp(), last.getTransactionId(), PageRequest.of(0, LOT_PAGE_SIZE)
+      );
+    }
+    return ledger;
+  }
+}
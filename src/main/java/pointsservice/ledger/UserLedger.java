@@ -0,0 +1,349 @@
+package pointsservice.ledger;
+
+import java.util.Arrays;
+import pointsservice.error.model.InsufficientBalanceException;
+
+/**
+ * Open earn lots for one user, spent oldest first across all of the user's payers.
+ * <p>
+ * Each payer's lots are kept in their own sequence, sorted by timestamp, then transaction id, in primitive arrays
+ * (24 bytes a lot). Spends and reversals only ever consume a payer's oldest lots, so a sequence only shrinks from its
+ * head. A spend is a k-way merge over the sequences: a binary heap of payers keyed by their oldest lot gives the next
+ * lot to take, so it costs the lots it consumes times log(payers) however many lots the user holds, and a reversal
+ * only walks its own payer's lots. Spends and reversals allocate nothing beyond growing the caller's
+ * {@link Allocations}.
+ */
+public class UserLedger {
+
+  private static final int INITIAL_CAPACITY = 4;
+
+  private PayerLots[] heap = new PayerLots[2];
+  private int payers;
+  private int lots;
+  private long available;
+
+  /**
+   * Adds an earn lot. A lot the ledger already holds is ignored.
+   */
+  public synchronized void credit(final long transactionId, final long payerId, final long timestamp, final long points) {
+    if (points <= 0) {
+      return;
+    }
+    final PayerLots payer = payerLots(payerId);
+    final int index = payer.insert(transactionId, timestamp, points);
+    if (index < 0) {
+      return;
+    }
+    lots++;
+    available += points;
+    if (index == payer.head) {
+      siftUp(payer.heapIndex);
+    }
+  }
+
+  /**
+   * Applies a payer reversal (a negative earn) by taking points from that payer's oldest open lots, adding the lots it
+   * took points from to {@code into}. Nothing is taken if that payer's lots do not hold enough points, as the payer's
+   * balance would go negative and no longer match its lots.
+   */
+  public synchronized void reverse(
+      final long payerId,
+      final long points,
+      final Allocations into
+  ) throws InsufficientBalanceException {
+    final PayerLots payer = find(payerId);
+    if (payer == null || points > payer.available) {
+      throw new InsufficientBalanceException(String.format("Insufficient funds to reverse %d points", points));
+    }
+    long pointsRemaining = points;
+    while (pointsRemaining > 0) {
+      pointsRemaining -= take(payer, pointsRemaining, into);
+      dropIfUsedUp(payer);
+    }
+  }
+
+  /**
+   * Takes points from the oldest lots first, adding the lots it took points from to {@code into}. Nothing is taken if
+   * the user does not have enough points.
+   *
+   * @return the lots visited: each lot taken from, plus each other payer's oldest lot compared while finding the next
+   */
+  public synchronized int allocate(final long points, final Allocations into) throws InsufficientBalanceException {
+    if (points > available) {
+      throw new InsufficientBalanceException(String.format("Insufficient funds for requested %d points", points));
+    }
+    int visited = 0;
+    long pointsRemaining = points;
+    while (pointsRemaining > 0) {
+      final PayerLots payer = heap[0];
+      pointsRemaining -= take(payer, pointsRemaining, into);
+      visited += 1 + dropIfUsedUp(payer);
+    }
+    return visited;
+  }
+
+  /**
+   * Adds to {@code into} what {@link #allocate} would take for {@code points}, without taking it. Walks each payer's
+   * lots with its own cursor rather than the heap, picking the next payer linearly, as users have few payers.
+   */
+  public synchronized void quote(final long points, final Allocations into) throws InsufficientBalanceException {
+    if (points > available) {
+      throw new InsufficientBalanceException(String.format("Insufficient funds for requested %d points", points));
+    }
+    final int[] cursors = new int[payers];
+    for (int i = 0; i < payers; i++) {
+      cursors[i] = heap[i].head;
+    }
+    long pointsRemaining = points;
+    while (pointsRemaining > 0) {
+      int next = -1;
+      for (int i = 0; i < payers; i++) {
+        final PayerLots payer = heap[i];
+        final int index = cursors[i];
+        if (index < payer.tail && (next < 0 || precedes(
+            payer.timestamps[index], payer.transactionIds[index],
+            heap[next].timestamps[cursors[next]], heap[next].transactionIds[cursors[next]]
+        ))) {
+          next = i;
+        }
+      }
+      final PayerLots payer = heap[next];
+      final int index = cursors[next]++;
+      final long deductionAmount = Math.min(payer.remaining[index], pointsRemaining);
+      pointsRemaining -= deductionAmount;
+      into.add(payer.transactionIds[index], payer.payerId, deductionAmount, payer.remaining[index] - deductionAmount);
+    }
+  }
+
+  public synchronized long getAvailable() {
+    return available;
+  }
+
+  /**
+   * The points left in one payer's open lots, which is as much as a reversal for that payer can take.
+   */
+  public synchronized long getAvailable(final long payerId) {
+    final PayerLots payer = find(payerId);
+    return payer == null ? 0 : payer.available;
+  }
+
+  public synchronized int size() {
+    return lots;
+  }
+
+  /**
+   * Takes up to {@code points} from the payer's oldest lot.
+   */
+  private long take(final PayerLots payer, final long points, final Allocations into) {
+    final int index = payer.head;
+    final long deductionAmount = Math.min(payer.remaining[index], points);
+    payer.remaining[index] -= deductionAmount;
+    payer.available -= deductionAmount;
+    available -= deductionAmount;
+    into.add(payer.transactionIds[index], payer.payerId, deductionAmount, payer.remaining[index]);
+    return deductionAmount;
+  }
+
+  /**
+   * Removes the payer's oldest lot if it is used up, moving the payer down the heap.
+   *
+   * @return the other payers' lots compared on the way down
+   */
+  private int dropIfUsedUp(final PayerLots payer) {
+    if (payer.remaining[payer.head] != 0) {
+      return 0;
+    }
+    payer.removeHead();
+    lots--;
+    return siftDown(payer.heapIndex);
+  }
+
+  /**
+   * Linear, as users have few payers.
+   */
+  private PayerLots find(final long payerId) {
+    for (int i = 0; i < payers; i++) {
+      if (heap[i].payerId == payerId) {
+        return heap[i];
+      }
+    }
+    return null;
+  }
+
+  private PayerLots payerLots(final long payerId) {
+    final PayerLots existing = find(payerId);
+    if (existing != null) {
+      return existing;
+    }
+    if (payers == heap.length) {
+      heap = Arrays.copyOf(heap, payers * 2);
+    }
+    final PayerLots added = new PayerLots(Math.toIntExact(payerId), payers);
+    heap[payers++] = added;
+    return added;
+  }
+
+  /**
+   * Whether {@code payer}'s oldest lot is spent before {@code other}'s. A payer with no open lots comes last.
+   */
+  private static boolean spentBefore(final PayerLots payer, final PayerLots other) {
+    if (payer.isEmpty() || other.isEmpty()) {
+      return !payer.isEmpty();
+    }
+    return precedes(
+        payer.timestamps[payer.head], payer.transactionIds[payer.head],
+        other.timestamps[other.head], other.transactionIds[other.head]
+    );
+  }
+
+  /**
+   * Whether a lot with this timestamp and transaction id is spent before one with {@code otherTimestamp} and
+   * {@code otherTransactionId}.
+   */
+  private static boolean precedes(
+      final long timestamp,
+      final long transactionId,
+      final long otherTimestamp,
+      final long otherTransactionId
+  ) {
+    return timestamp < otherTimestamp || (timestamp == otherTimestamp && transactionId < otherTransactionId);
+  }
+
+  private void siftUp(final int from) {
+    int index = from;
+    while (index > 0) {
+      final int parent = (index - 1) >>> 1;
+      if (!spentBefore(heap[index], heap[parent])) {
+        return;
+      }
+      swap(index, parent);
+      index = parent;
+    }
+  }
+
+  /**
+   * @return the children compared
+   */
+  private int siftDown(final int from) {
+    int compared = 0;
+    int index = from;
+    while (true) {
+      final int left = 2 * index + 1;
+      if (left >= payers) {
+        return compared;
+      }
+      final int right = left + 1;
+      compared += right < payers ? 2 : 1;
+      final int first = right < payers && spentBefore(heap[right], heap[left]) ? right : left;
+      if (!spentBefore(heap[first], heap[index])) {
+        return compared;
+      }
+      swap(index, first);
+      index = first;
+    }
+  }
+
+  private void swap(final int index, final int other) {
+    final PayerLots payer = heap[index];
+    heap[index] = heap[other];
+    heap[other] = payer;
+    heap[index].heapIndex = index;
+    heap[other].heapIndex = other;
+  }
+
+  /**
+   * One payer's open lots in {@code [head, tail)}, sorted by timestamp, then transaction id.
+   */
+  private static class PayerLots {
+
+    private final int payerId;
+    private long[] transactionIds = new long[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private long[] remaining = new long[INITIAL_CAPACITY];
+    private int head;
+    private int tail;
+    private long available;
+    private int heapIndex;
+
+    private PayerLots(final int payerId, final int heapIndex) {
+      this.payerId = payerId;
+      this.heapIndex = heapIndex;
+    }
+
+    private boolean isEmpty() {
+      return head == tail;
+    }
+
+    /**
+     * @return the index the lot was inserted at, or {@code -1} if it is already held
+     */
+    private int insert(final long transactionId, final long timestamp, final long points) {
+      if (tail == transactionIds.length) {
+        compact();
+      }
+      final int index = isEmpty() || precedes(timestamps[tail - 1], transactionIds[tail - 1], timestamp, transactionId)
+          ? tail
+          : search(timestamp, transactionId);
+      if (index < tail && timestamps[index] == timestamp && transactionIds[index] == transactionId) {
+        return -1;
+      }
+      if (index < tail) {
+        final int moved = tail - index;
+        System.arraycopy(transactionIds, index, transactionIds, index + 1, moved);
+        System.arraycopy(timestamps, index, timestamps, index + 1, moved);
+        System.arraycopy(remaining, index, remaining, index + 1, moved);
+      }
+      transactionIds[index] = transactionId;
+      timestamps[index] = timestamp;
+      remaining[index] = points;
+      tail++;
+      available += points;
+      return index;
+    }
+
+    private void removeHead() {
+      head++;
+      if (head == tail) {
+        head = 0;
+        tail = 0;
+      }
+    }
+
+    /**
+     * The first index in {@code [head, tail)} whose lot is not spent before this timestamp and transaction id.
+     */
+    private int search(final long timestamp, final long transactionId) {
+      int low = head;
+      int high = tail;
+      while (low < high) {
+        final int middle = (low + high) >>> 1;
+        if (precedes(timestamps[middle], transactionIds[middle], timestamp, transactionId)) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * Makes room for at least one more lot: moves the open lots down to index 0, and grows the arrays if that leaves
+     * them more than half full.
+     */
+    private void compact() {
+      final int open = tail - head;
+      final int capacity = open * 2 >= transactionIds.length ? transactionIds.length * 2 : transactionIds.length;
+      transactionIds = moveDown(transactionIds, capacity);
+      timestamps = moveDown(timestamps, capacity);
+      remaining = moveDown(remaining, capacity);
+      head = 0;
+      tail = open;
+    }
+
+    private long[] moveDown(final long[] values, final int capacity) {
+      final long[] moved = capacity == values.length ? values : new long[capacity];
+      System.arraycopy(values, head, moved, 0, tail - head);
+      return moved;
+    }
+  }
+}
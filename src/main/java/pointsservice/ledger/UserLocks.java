@@ -0,0 +1,60 @@
+package pointsservice.ledger;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * One reentrant lock per user, created when it is first asked for and dropped once no caller holds or waits for it,
+ * so holding one user's lock never blocks another user and idle users cost nothing.
+ * <p>
+ * Callers that hold several take them through {@link #lockAll(Collection)}, in user id order, so they never deadlock
+ * each other.
+ */
+public class UserLocks {
+
+  private final Map<Long, ClaimedLock> locks = new ConcurrentHashMap<>();
+
+  public void lock(final Long userId) {
+    locks.compute(userId, (id, lock) -> {
+      final ClaimedLock claimed = lock == null ? new ClaimedLock() : lock;
+      claimed.claims++;
+      return claimed;
+    }).lock();
+  }
+
+  public void unlock(final Long userId) {
+    locks.get(userId).unlock();
+    locks.computeIfPresent(userId, (id, lock) -> --lock.claims == 0 ? null : lock);
+  }
+
+  /**
+   * Locks each of {@code userIds} once, in user id order.
+   *
+   * @return the users locked, for {@link #unlockAll(List)}
+   */
+  public List<Long> lockAll(final Collection<Long> userIds) {
+    final List<Long> locked = userIds.stream().distinct().sorted().collect(Collectors.toList());
+    locked.forEach(this::lock);
+    return locked;
+  }
+
+  public void unlockAll(final List<Long> userIds) {
+    userIds.forEach(this::unlock);
+  }
+
+  int size() {
+    return locks.size();
+  }
+
+  /**
+   * A lock with the number of callers holding or waiting for it, only changed inside the map's {@code compute}.
+   */
+  private static class ClaimedLock extends ReentrantLock {
+
+    private int claims;
+  }
+}
@@ -0,0 +1,91 @@
+package pointsservice.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import pointsservice.ledger.Allocations;
+
+/**
+ * Meters for the earn, spend and balance paths. Percentiles and histograms for everything under {@code points.} are
+ * switched on in {@code management.metrics.distribution}, so they can be tuned without a code change.
+ */
+@Component
+public class PointsMetrics {
+
+  private final MeterRegistry registry;
+  private final DistributionSummary lotsScanned;
+  private final DistributionSummary lotsConsumed;
+  private final Counter insufficientBalance;
+  private final Counter writeConflicts;
+  private final Counter lotsArchived;
+
+  public PointsMetrics(final MeterRegistry registry) {
+    this.registry = registry;
+    this.lotsScanned = DistributionSummary.builder("points.spend.lots.scanned")
+        .description("Lots visited by a spend")
+        .register(registry);
+    this.lotsConsumed = DistributionSummary.builder("points.spend.lots.consumed")
+        .description("Lots a spend used up")
+        .register(registry);
+    this.insufficientBalance = Counter.builder("points.spend.rejected")
+        .description("Spends rejected for insufficient balance")
+        .register(registry);
+    this.writeConflicts = Counter.builder("points.write.conflicts")
+        .description("Earn and spend writes retried after losing to a concurrent request")
+        .register(registry);
+    this.lotsArchived = Counter.builder("points.compaction.lots.archived")
+        .description("Consumed lots moved to transaction_history")
+        .register(registry);
+  }
+
+  public Timer.Sample start() {
+    return Timer.start(registry);
+  }
+
+  /**
+   * Records a whole service call, tagged with its operation and whether it completed.
+   */
+  public void stopOperation(final Timer.Sample sample, final String operation, final boolean succeeded) {
+    sample.stop(Timer.builder("points.service")
+        .tag("operation", operation)
+        .tag("outcome", succeeded ? "success" : "error")
+        .register(registry));
+  }
+
+  /**
+   * Records one step of a spend: {@code load} (reading open lots), {@code allocate} (walking them in order) or
+   * {@code write} (flushing balances and lots).
+   */
+  public void stopSpendPhase(final Timer.Sample sample, final String phase) {
+    sample.stop(Timer.builder("points.spend.phase").tag("phase", phase).register(registry));
+  }
+
+  /**
+   * Records a spend's allocations and the lots it visited to make them, as counted by
+   * {@link pointsservice.ledger.UserLedger#allocate}.
+   */
+  public void recordAllocations(final Allocations allocations, final int lotsVisited) {
+    int consumed = 0;
+    for (int i = 0; i < allocations.size(); i++) {
+      if (allocations.getRemaining(i) == 0) {
+        consumed++;
+      }
+    }
+    lotsScanned.record(lotsVisited);
+    lotsConsumed.record(consumed);
+  }
+
+  public void recordInsufficientBalance() {
+    insufficientBalance.increment();
+  }
+
+  public void recordWriteConflict() {
+    writeConflicts.increment();
+  }
+
+  public void recordLotsArchived(final int lots) {
+    lotsArchived.increment(lots);
+  }
+}
@@ -0,0 +1,28 @@
+package pointsservice.metrics;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.springframework.stereotype.Component;
+
+/**
+ * Counts the SQL statements Hibernate prepares on the current thread. {@link SqlStatementsInterceptor} resets and
+ * reads the count around each web request.
+ */
+@Component
+public class RequestStatementCounter implements StatementInspector {
+
+  private final ThreadLocal<long[]> statements = ThreadLocal.withInitial(() -> new long[1]);
+
+  @Override
+  public String inspect(final String sql) {
+    statements.get()[0]++;
+    return sql;
+  }
+
+  public void reset() {
+    statements.get()[0] = 0;
+  }
+
+  public long count() {
+    return statements.get()[0];
+  }
+}
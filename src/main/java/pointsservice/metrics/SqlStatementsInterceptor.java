@@ -0,0 +1,45 @@
+package pointsservice.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+/**
+ * Records how many SQL statements each request issued, as {@code points.sql.statements} tagged with the request's
+ * method and URI template.
+ */
+public class SqlStatementsInterceptor implements HandlerInterceptor {
+
+  private final RequestStatementCounter statementCounter;
+  private final MeterRegistry registry;
+
+  public SqlStatementsInterceptor(final RequestStatementCounter statementCounter, final MeterRegistry registry) {
+    this.statementCounter = statementCounter;
+    this.registry = registry;
+  }
+
+  @Override
+  public boolean preHandle(final HttpServletRequest request, final HttpServletResponse response, final Object handler) {
+    statementCounter.reset();
+    return true;
+  }
+
+  @Override
+  public void afterCompletion(
+      final HttpServletRequest request,
+      final HttpServletResponse response,
+      final Object handler,
+      final Exception exception
+  ) {
+    final Object uri = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+    DistributionSummary.builder("points.sql.statements")
+        .description("SQL statements issued per request")
+        .tag("method", request.getMethod())
+        .tag("uri", uri == null ? "UNKNOWN" : uri.toString())
+        .register(registry)
+        .record(statementCounter.count());
+  }
+}
@@ -1,11 +1,13 @@
 package pointsservice.model.entity;
 
+import java.util.Date;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.IdClass;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.Table;
+import javax.persistence.Version;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
@@ -24,6 +26,20 @@ public class BalanceEntity {
 
   private Long pointBalance;
 
+  /**
+   * Bumped on every update, so concurrent read-modify-writes of the same (user, payer) balance cannot both succeed.
+   * Primitive so that Spring Data still tells new balances apart by id and merges them, as their payer is usually a
+   * detached {@link pointsservice.cache.PayerCache} entry.
+   */
+  @Version
+  private long version;
+
+  /**
+   * No {@code balance_checkpoints} row for this balance is later than this, so an earn dated after it cannot have made
+   * one stale. Null until the first checkpoint.
+   */
+  private Date checkpointedThrough;
+
   @Id
   @ManyToOne
   @JoinColumn(name = "user_id")
@@ -33,4 +49,10 @@ public class BalanceEntity {
   @ManyToOne
   @JoinColumn(name = "payer_id")
   private PayerEntity payer;
+
+  public BalanceEntity(final Long pointBalance, final UserEntity user, final PayerEntity payer) {
+    this.pointBalance = pointBalance;
+    this.user = user;
+    this.payer = payer;
+  }
 }
@@ -0,0 +1,40 @@
+package pointsservice.model.entity;
+
+import java.util.Date;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * The response first returned for a client's {@code Idempotency-Key}, replayed when the client retries.
+ */
+@Entity
+@IdClass(IdempotencyKeyId.class)
+@Table(name = "idempotency_keys")
+@Getter
+@Setter
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class IdempotencyKeyEntity {
+
+  @Id
+  private Long userId;
+  @Id
+  private String operation;
+  @Id
+  private String idempotencyKey;
+
+  /**
+   * The first eight bytes of the SHA-256 of the request, so a key sent again with a different request is rejected.
+   */
+  private Long requestHash;
+  private String response;
+  private Date createdAt;
+}
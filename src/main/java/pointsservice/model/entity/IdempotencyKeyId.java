@@ -0,0 +1,20 @@
+package pointsservice.model.entity;
+
+import java.io.Serializable;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@EqualsAndHashCode
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+public class IdempotencyKeyId implements Serializable {
+
+  private Long userId;
+  private String operation;
+  private String idempotencyKey;
+}
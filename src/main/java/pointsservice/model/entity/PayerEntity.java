@@ -1,6 +1,7 @@
 package pointsservice.model.entity;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
@@ -10,8 +11,10 @@ import lombok.Builder;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import pointsservice.cache.PayerCacheInvalidator;
 
 @Entity
+@EntityListeners(PayerCacheInvalidator.class)
 @Table(name = "payers")
 @Getter
 @Setter
@@ -0,0 +1,64 @@
+package pointsservice.model.entity;
+
+import java.util.Date;
+import java.util.Map;
+import javax.persistence.CollectionTable;
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.MapKeyColumn;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * One spend request, the points it took from each payer and from each lot. Never updated once written.
+ */
+@Entity
+@Table(name = "spends")
+@Getter
+@Setter
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SpendEntity {
+
+  /**
+   * Ids handed out per {@code spends_seq} call, matching the sequence's increment in {@code schema.sql}.
+   */
+  public static final int SPEND_ID_BLOCK = 50;
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "spends_seq")
+  @SequenceGenerator(name = "spends_seq", allocationSize = SPEND_ID_BLOCK)
+  private Long spendId;
+  private Long userId;
+  private Date spentAt;
+
+  /**
+   * Points deducted by payer id.
+   */
+  @ElementCollection
+  @CollectionTable(name = "spend_deductions", joinColumns = @JoinColumn(name = "spend_id"))
+  @MapKeyColumn(name = "payer_id")
+  @Column(name = "points")
+  private Map<Long, Long> deductions;
+
+  /**
+   * Points taken by lot (transaction id), in {@code transactions} or, once consumed and archived,
+   * {@code transaction_history}.
+   */
+  @ElementCollection
+  @CollectionTable(name = "spend_allocations", joinColumns = @JoinColumn(name = "spend_id"))
+  @MapKeyColumn(name = "transaction_id")
+  @Column(name = "points")
+  private Map<Long, Long> allocations;
+}
@@ -1,13 +1,16 @@
 package pointsservice.model.entity;
 
 import java.util.Date;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
+import javax.persistence.Version;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
@@ -23,12 +26,28 @@ import lombok.Setter;
 @AllArgsConstructor
 public class TransactionEntity {
 
+  /**
+   * Ids handed out per {@code transactions_seq} call, matching the sequence's increment in {@code schema.sql}.
+   */
+  public static final int TRANSACTION_ID_BLOCK = 50;
+
   @Id
-  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "transactions_seq")
+  @SequenceGenerator(name = "transactions_seq", allocationSize = TRANSACTION_ID_BLOCK)
   private Long transactionId;
   private Long transactionPoints;
+  private Long remainingPoints;
   private Date timestamp;
 
+  @Version
+  private Long version;
+
+  @Column(insertable = false, updatable = false)
+  private Boolean openLot;
+
+  @Column(name = "user_id", insertable = false, updatable = false)
+  private Long userId;
+
   @ManyToOne
   @JoinColumn(name = "user_id", referencedColumnName = "user_id")
   @JoinColumn(name = "payer_id", referencedColumnName = "payer_id")
@@ -0,0 +1,20 @@
+package pointsservice.model.request;
+
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.PositiveOrZero;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkSpendRequest {
+
+  @NotNull
+  private Long userId;
+
+  @NotNull
+  @PositiveOrZero
+  private Long points;
+}
@@ -0,0 +1,21 @@
+package pointsservice.model.request;
+
+import java.util.List;
+import javax.validation.Valid;
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.NotNull;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkTransactionRequest {
+
+  @NotNull
+  private Long userId;
+
+  @NotEmpty
+  private List<@Valid @NotNull TransactionRequest> transactions;
+}
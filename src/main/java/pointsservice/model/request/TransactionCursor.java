@@ -0,0 +1,38 @@
+package pointsservice.model.request;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+import java.util.Date;
+import lombok.Value;
+
+/**
+ * Where a page of a user's transactions ends: the timestamp and transaction id of its last transaction, written as
+ * {@code <epoch millis>.<transaction id>}.
+ */
+@Value
+public class TransactionCursor {
+
+  Date timestamp;
+  Long transactionId;
+
+  /**
+   * Parses a cursor written by {@link #toString()}.
+   *
+   * @throws IllegalArgumentException if {@code cursor} is not one
+   */
+  public static TransactionCursor valueOf(final String cursor) {
+    final int separator = cursor.indexOf('.');
+    if (separator < 0) {
+      throw new IllegalArgumentException("Invalid cursor " + cursor);
+    }
+    return new TransactionCursor(
+        new Date(Long.parseLong(cursor.substring(0, separator))),
+        Long.parseLong(cursor.substring(separator + 1))
+    );
+  }
+
+  @JsonValue
+  @Override
+  public String toString() {
+    return timestamp.getTime() + "." + transactionId;
+  }
+}
@@ -0,0 +1,24 @@
+package pointsservice.model.request;
+
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A {@link TransactionRequest} that names its user, one per line of a multi-user NDJSON feed.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserTransactionRequest {
+
+  @NotNull
+  private Long userId;
+
+  @Valid
+  @JsonUnwrapped
+  private TransactionRequest transaction;
+}
@@ -0,0 +1,29 @@
+package pointsservice.model.response;
+
+import java.util.Set;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One user's result from a bulk spend: the points taken from each payer, or why nothing was spent.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkSpendResponse {
+
+  private Long userId;
+  private Set<UserSpendResponse> spent;
+  private String error;
+
+  public static BulkSpendResponse spent(final Long userId, final Set<UserSpendResponse> spent) {
+    return BulkSpendResponse.builder().userId(userId).spent(spent).build();
+  }
+
+  public static BulkSpendResponse failed(final Long userId, final String error) {
+    return BulkSpendResponse.builder().userId(userId).error(error).build();
+  }
+}
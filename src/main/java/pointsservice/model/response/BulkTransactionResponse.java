@@ -0,0 +1,21 @@
+package pointsservice.model.response;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import java.util.Map;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkTransactionResponse {
+
+  private Long userId;
+  private Integer transactionCount;
+
+  @Schema(example = "{ \"payer\": \"balance\"}")
+  private Map<String, Long> totalPoints;
+}
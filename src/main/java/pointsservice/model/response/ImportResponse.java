@@ -0,0 +1,19 @@
+package pointsservice.model.response;
+
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImportResponse {
+
+  private Long linesRead;
+  private Long transactionsApplied;
+  private Long transactionsRejected;
+  private List<String> errors;
+}
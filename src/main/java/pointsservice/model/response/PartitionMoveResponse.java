@@ -0,0 +1,21 @@
+package pointsservice.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PartitionMoveResponse {
+
+  private Integer partition;
+  private String owner;
+  private Long users;
+  private Long balances;
+  private Long openLots;
+  private Long historyRows;
+  private Long bytes;
+}
@@ -0,0 +1,22 @@
+package pointsservice.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SnapshotResponse {
+
+  private String path;
+  private Long logPosition;
+  private Long users;
+  private Long payers;
+  private Long balances;
+  private Long openLots;
+  private Long historyRows;
+  private Long bytes;
+}
@@ -0,0 +1,19 @@
+package pointsservice.model.response;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import pointsservice.model.request.TransactionCursor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TransactionPageResponse {
+
+  private List<UserTransactionResponse> transactions;
+
+  @Schema(description = "Pass as `after` for the next page, absent on the last page", type = "string")
+  private TransactionCursor next;
+}
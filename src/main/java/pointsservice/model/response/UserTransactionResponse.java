@@ -0,0 +1,22 @@
+package pointsservice.model.response;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Date;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserTransactionResponse {
+
+  private Long transactionId;
+  @JsonProperty("payer")
+  private String payerName;
+  private Long transactionPoints;
+  private Long remainingPoints;
+  private Date timestamp;
+}
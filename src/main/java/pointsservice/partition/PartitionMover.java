@@ -0,0 +1,219 @@
+package pointsservice.partition;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import pointsservice.cache.BalanceCache;
+import pointsservice.engine.BalanceEngine;
+import pointsservice.error.model.PartitionNotOwnedException;
+import pointsservice.ledger.SpendLedger;
+import pointsservice.model.response.PartitionMoveResponse;
+import pointsservice.model.response.SnapshotResponse;
+import pointsservice.snapshot.SnapshotStore;
+
+/**
+ * Moves a partition's users from this node to another.
+ * <p>
+ * Holding the partition's write lock, so no request for its users is being served, the users and everything held for
+ * them (balances, open and consumed lots, archived transactions, spends, balance checkpoints and idempotency keys) are
+ * written out as a {@link SnapshotStore} partition snapshot and streamed to the new owner, which loads them in one
+ * transaction and takes the partition over. This node then points the partition at the new owner, tells every other
+ * node, and deletes its own copy; in {@code memory} mode the deletion is logged, so a restart does not replay the
+ * moved users back in.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "points.partitioning", name = "enabled", havingValue = "true")
+public class PartitionMover {
+
+  static final String PARTITIONS_PATH = "/points/partitions/";
+  /**
+   * Names the node sending a partition or a new owner, which must be one of the configured nodes.
+   */
+  public static final String NODE = "X-Points-Node";
+
+  private static final String SELECT_USER_IDS = "SELECT user_id FROM users WHERE MOD(user_id, ?) = ?";
+
+  private final PartitionTable partitionTable;
+  private final SnapshotStore snapshotStore;
+  private final JdbcTemplate jdbcTemplate;
+  private final SpendLedger spendLedger;
+  private final BalanceCache balanceCache;
+  private final ObjectProvider<BalanceEngine> balanceEngine;
+  private final HttpClient httpClient;
+
+  public PartitionMover(
+      final PartitionTable partitionTable,
+      final SnapshotStore snapshotStore,
+      final JdbcTemplate jdbcTemplate,
+      final SpendLedger spendLedger,
+      final BalanceCache balanceCache,
+      final ObjectProvider<BalanceEngine> balanceEngine,
+      final HttpClient httpClient
+  ) {
+    this.partitionTable = partitionTable;
+    this.snapshotStore = snapshotStore;
+    this.jdbcTemplate = jdbcTemplate;
+    this.spendLedger = spendLedger;
+    this.balanceCache = balanceCache;
+    this.balanceEngine = balanceEngine;
+    this.httpClient = httpClient;
+  }
+
+  /**
+   * Moves {@code partition}, which this node must own, to {@code target}.
+   */
+  public PartitionMoveResponse move(final int partition, final String target) throws PartitionNotOwnedException {
+    partitionTable.node(target);
+    final Lock lock = partitionTable.lockFor(partition).writeLock();
+    lock.lock();
+    try {
+      if (!partitionTable.isLocal(partition)) {
+        throw new PartitionNotOwnedException(String.format(
+            "Partition %d is owned by %s", partition, partitionTable.ownerOf(partition)
+        ));
+      }
+      if (target.equals(partitionTable.getSelf())) {
+        return toResponse(partition, null);
+      }
+      final SnapshotResponse transfer = transfer(partition, target);
+      partitionTable.setOwner(partition, target);
+      for (String node : partitionTable.getNodes()) {
+        if (!node.equals(target) && !node.equals(partitionTable.getSelf())) {
+          announce(node, partition, target);
+        }
+      }
+      final List<Long> userIds = userIds(partition);
+      final BalanceEngine engine = balanceEngine.getIfAvailable();
+      if (engine != null) {
+        engine.dropPartition(partition, partitionTable.size(), userIds);
+      } else {
+        snapshotStore.deletePartition(partition, partitionTable.size());
+      }
+      userIds.forEach(this::evict);
+      log.info("Moved partition {} ({} users, {} open lots, {} history rows) to {}",
+          partition, transfer.getUsers(), transfer.getOpenLots(), transfer.getHistoryRows(), target
+      );
+      return toResponse(partition, transfer);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Loads a partition snapshot another node is moving here, and takes the partition over.
+   */
+  public PartitionMoveResponse receive(final int partition, final InputStream snapshot) {
+    final Lock lock = partitionTable.lockFor(partition).writeLock();
+    lock.lock();
+    try {
+      final Path file = Files.createTempFile("points-partition-" + partition + "-", ".bin");
+      try {
+        Files.copy(snapshot, file, StandardCopyOption.REPLACE_EXISTING);
+        final SnapshotResponse loaded = snapshotStore.loadPartition(file);
+        userIds(partition).forEach(this::evict);
+        partitionTable.setOwner(partition, partitionTable.getSelf());
+        return toResponse(partition, loaded);
+      } finally {
+        Files.deleteIfExists(file);
+      }
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes the partition to a temporary file and streams it to {@code target}.
+   */
+  private SnapshotResponse transfer(final int partition, final String target) {
+    try {
+      final Path file = Files.createTempFile("points-partition-" + partition + "-", ".bin");
+      try {
+        final SnapshotResponse written = snapshotStore.writePartition(file, partition, partitionTable.size());
+        final HttpResponse<String> response = httpClient.send(
+            HttpRequest.newBuilder(URI.create(target + PARTITIONS_PATH + partition))
+                .PUT(HttpRequest.BodyPublishers.ofFile(file))
+                .header("Content-Type", "application/octet-stream")
+                .header(NODE, partitionTable.getSelf())
+                .build(),
+            HttpResponse.BodyHandlers.ofString()
+        );
+        if (response.statusCode() != 200) {
+          throw new IllegalStateException(String.format(
+              "%s refused partition %d: %d %s", target, partition, response.statusCode(), response.body()
+          ));
+        }
+        return written;
+      } finally {
+        Files.deleteIfExists(file);
+      }
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted moving partition " + partition, exception);
+    }
+  }
+
+  /**
+   * Tells {@code node} the partition's new owner. A node that cannot be told keeps routing the partition's requests
+   * here, to be redirected on to the new owner, until its table is set through the same endpoint.
+   */
+  private void announce(final String node, final int partition, final String owner) {
+    try {
+      final HttpResponse<String> response = httpClient.send(
+          HttpRequest.newBuilder(URI.create(node + PARTITIONS_PATH + partition + "/owner"))
+              .PUT(HttpRequest.BodyPublishers.ofString(owner))
+              .header("Content-Type", "text/plain")
+              .header(NODE, partitionTable.getSelf())
+              .build(),
+          HttpResponse.BodyHandlers.ofString()
+      );
+      if (response.statusCode() != 200) {
+        log.warn("{} refused owner {} for partition {}: {}", node, owner, partition, response.statusCode());
+      }
+    } catch (IOException exception) {
+      log.warn("Could not tell {} that partition {} moved to {}", node, partition, owner, exception);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private List<Long> userIds(final int partition) {
+    return jdbcTemplate.queryForList(SELECT_USER_IDS, Long.class, partitionTable.size(), partition);
+  }
+
+  private void evict(final Long userId) {
+    balanceEngine.ifAvailable(engine -> engine.evict(userId));
+    spendLedger.evict(userId);
+    balanceCache.evict(userId);
+  }
+
+  private PartitionMoveResponse toResponse(final int partition, final SnapshotResponse transfer) {
+    return PartitionMoveResponse.builder()
+        .partition(partition)
+        .owner(partitionTable.ownerOf(partition))
+        .users(transfer == null ? 0 : transfer.getUsers())
+        .balances(transfer == null ? 0 : transfer.getBalances())
+        .openLots(transfer == null ? 0 : transfer.getOpenLots())
+        .historyRows(transfer == null ? 0 : transfer.getHistoryRows())
+        .bytes(transfer == null ? 0 : transfer.getBytes())
+        .build();
+  }
+}
@@ -0,0 +1,148 @@
+package pointsservice.partition;
+
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.filter.OncePerRequestFilter;
+import pointsservice.error.model.ErrorResponse;
+
+/**
+ * Sits in front of {@code /points/user/**} and serves a request here only if this node owns the user's partition.
+ * Otherwise it answers with a {@code 307} to the owner, which keeps the method and body, or in {@code forward} mode
+ * sends the request on itself and relays the owner's response.
+ * <p>
+ * A local request holds its partition's read lock until it has been served, so a {@link PartitionMover} waits for
+ * it, and requests arriving during a move wait for the move and then go to the new owner.
+ */
+@Slf4j
+public class PartitionRoutingFilter extends OncePerRequestFilter {
+
+  static final String USER_PATH = "/points/user";
+  /**
+   * Marks a request one node forwarded to another, which must not forward it again.
+   */
+  static final String FORWARDED = "X-Points-Forwarded";
+  private static final int MISDIRECTED_REQUEST = 421;
+  private static final List<String> FORWARDED_HEADERS = List.of(
+      HttpHeaders.ACCEPT, HttpHeaders.CONTENT_TYPE, "Idempotency-Key"
+  );
+
+  private final PartitionTable partitionTable;
+  private final HttpClient httpClient;
+  private final ObjectMapper objectMapper;
+  private final boolean forward;
+
+  public PartitionRoutingFilter(
+      final PartitionTable partitionTable,
+      final HttpClient httpClient,
+      final ObjectMapper objectMapper,
+      final boolean forward
+  ) {
+    this.partitionTable = partitionTable;
+    this.httpClient = httpClient;
+    this.objectMapper = objectMapper;
+    this.forward = forward;
+  }
+
+  @Override
+  protected void doFilterInternal(
+      final HttpServletRequest request,
+      final HttpServletResponse response,
+      final FilterChain filterChain
+  ) throws ServletException, IOException {
+    final int partition = partitionTable.partitionOf(userIdOf(request.getRequestURI()));
+    final Lock lock = partitionTable.lockFor(partition).readLock();
+    final String owner;
+    lock.lock();
+    try {
+      if (partitionTable.isLocal(partition)) {
+        filterChain.doFilter(request, response);
+        return;
+      }
+      owner = partitionTable.ownerOf(partition);
+    } finally {
+      lock.unlock();
+    }
+
+    final String location = owner + request.getRequestURI()
+        + (request.getQueryString() == null ? "" : "?" + request.getQueryString());
+    if (request.getHeader(FORWARDED) != null) {
+      error(response, MISDIRECTED_REQUEST, "Partition " + partition + " is owned by " + owner);
+    } else if (forward) {
+      forward(request, response, location);
+    } else {
+      response.setStatus(HttpStatus.TEMPORARY_REDIRECT.value());
+      response.setHeader(HttpHeaders.LOCATION, location);
+    }
+  }
+
+  /**
+   * The user a {@code /points/user/**} path is for. A path without a numeric id after {@code /points/user} is one of
+   * the default user's.
+   */
+  static long userIdOf(final String path) {
+    final int start = USER_PATH.length() + 1;
+    if (path.length() <= start) {
+      return 0;
+    }
+    final int end = path.indexOf('/', start);
+    try {
+      return Long.parseLong(path.substring(start, end < 0 ? path.length() : end));
+    } catch (NumberFormatException exception) {
+      return 0;
+    }
+  }
+
+  private void forward(
+      final HttpServletRequest request,
+      final HttpServletResponse response,
+      final String location
+  ) throws IOException {
+    final byte[] body = request.getInputStream().readAllBytes();
+    final HttpRequest.Builder forwarded = HttpRequest.newBuilder(URI.create(location))
+        .method(request.getMethod(), body.length == 0
+            ? HttpRequest.BodyPublishers.noBody()
+            : HttpRequest.BodyPublishers.ofByteArray(body))
+        .header(FORWARDED, "true");
+    for (String header : FORWARDED_HEADERS) {
+      if (request.getHeader(header) != null) {
+        forwarded.header(header, request.getHeader(header));
+      }
+    }
+    final HttpResponse<byte[]> ownerResponse;
+    try {
+      ownerResponse = httpClient.send(forwarded.build(), HttpResponse.BodyHandlers.ofByteArray());
+    } catch (IOException exception) {
+      log.warn("Could not forward {} {}", request.getMethod(), location, exception);
+      error(response, HttpStatus.BAD_GATEWAY.value(), "Could not reach " + location);
+      return;
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      error(response, HttpStatus.SERVICE_UNAVAILABLE.value(), "Interrupted forwarding to " + location);
+      return;
+    }
+    response.setStatus(ownerResponse.statusCode());
+    ownerResponse.headers().firstValue(HttpHeaders.CONTENT_TYPE).ifPresent(response::setContentType);
+    response.getOutputStream().write(ownerResponse.body());
+  }
+
+  private void error(final HttpServletResponse response, final int status, final String message) throws IOException {
+    response.setStatus(status);
+    response.setContentType(APPLICATION_JSON_VALUE);
+    objectMapper.writeValue(response.getOutputStream(), new ErrorResponse(status, message));
+  }
+}
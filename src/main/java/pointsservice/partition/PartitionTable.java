@@ -0,0 +1,130 @@
+package pointsservice.partition;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import pointsservice.configuration.PointsProperties;
+
+/**
+ * Which node owns each partition of user ids.
+ * <p>
+ * A user belongs to partition {@code userId mod partitions}, so sequentially assigned ids spread evenly. Partition
+ * {@code p} starts on node {@code p mod nodes} unless {@code points.partitioning.owners} says otherwise, and moves
+ * when {@link PartitionMover} hands it to another node. Ownership is only held in memory, so a restarted node starts
+ * from its configuration again.
+ * <p>
+ * Requests for a partition's users hold its read lock while they are served, and a move holds its write lock, so a
+ * partition never moves part way through a request.
+ */
+@Component
+@ConditionalOnProperty(prefix = "points.partitioning", name = "enabled", havingValue = "true")
+public class PartitionTable {
+
+  private final String self;
+  private final List<String> nodes;
+  private final AtomicReferenceArray<String> owners;
+  private final ReadWriteLock[] locks;
+
+  public PartitionTable(final PointsProperties properties) {
+    final PointsProperties.Partitioning partitioning = properties.getPartitioning();
+    if (!partitioning.getNodes().contains(partitioning.getSelf())) {
+      throw new IllegalStateException(
+          "points.partitioning.self " + partitioning.getSelf() + " is not one of " + partitioning.getNodes()
+      );
+    }
+    this.self = partitioning.getSelf();
+    this.nodes = List.copyOf(partitioning.getNodes());
+    this.owners = new AtomicReferenceArray<>(partitioning.getPartitions());
+    this.locks = new ReadWriteLock[partitioning.getPartitions()];
+    for (int partition = 0; partition < locks.length; partition++) {
+      owners.set(partition, partitioning.getOwners().getOrDefault(partition, nodes.get(partition % nodes.size())));
+      locks[partition] = new ReentrantReadWriteLock();
+    }
+  }
+
+  public int partitionOf(final long userId) {
+    return (int) Math.floorMod(userId, (long) owners.length());
+  }
+
+  public String ownerOf(final int partition) {
+    return owners.get(checked(partition));
+  }
+
+  public boolean isLocal(final int partition) {
+    return self.equals(ownerOf(partition));
+  }
+
+  public void setOwner(final int partition, final String owner) {
+    owners.set(checked(partition), node(owner));
+  }
+
+  public ReadWriteLock lockFor(final int partition) {
+    return locks[checked(partition)];
+  }
+
+  /**
+   * @return each partition's owner, by partition
+   */
+  public Map<Integer, String> owners() {
+    final Map<Integer, String> byPartition = new TreeMap<>();
+    for (int partition = 0; partition < owners.length(); partition++) {
+      byPartition.put(partition, owners.get(partition));
+    }
+    return byPartition;
+  }
+
+  public int size() {
+    return owners.length();
+  }
+
+  public String getSelf() {
+    return self;
+  }
+
+  public List<String> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Whether a request from {@code remoteAddress} can be from {@code node}: it must be one of the configured nodes and
+   * its host must resolve to that address.
+   */
+  public boolean isNodeAt(final String node, final String remoteAddress) {
+    if (node == null || !nodes.contains(node)) {
+      return false;
+    }
+    try {
+      return Arrays.asList(InetAddress.getAllByName(URI.create(node).getHost()))
+          .contains(InetAddress.getByName(remoteAddress));
+    } catch (UnknownHostException exception) {
+      return false;
+    }
+  }
+
+  /**
+   * @throws NoSuchElementException if {@code node} is not one of the configured nodes
+   */
+  public String node(final String node) {
+    if (!nodes.contains(node)) {
+      throw new NoSuchElementException("No node " + node);
+    }
+    return node;
+  }
+
+  private int checked(final int partition) {
+    if (partition < 0 || partition >= owners.length()) {
+      throw new NoSuchElementException("No partition " + partition);
+    }
+    return partition;
+  }
+}
@@ -1,6 +1,9 @@
 package pointsservice.repository;
 
+import java.util.List;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import pointsservice.model.entity.BalanceEntity;
 import pointsservice.model.entity.BalanceId;
@@ -8,4 +11,17 @@ import pointsservice.model.entity.BalanceId;
 @Repository
 public interface BalanceRepository extends JpaRepository<BalanceEntity, BalanceId> {
 
-}
\ No newline at end of file
+  List<BalanceEntity> findAllByUserUserId(final Long userId);
+
+  @Query("SELECT p.payerName AS payerName, b.pointBalance AS pointBalance"
+      + " FROM BalanceEntity b JOIN b.payer p"
+      + " WHERE b.user.userId = :userId")
+  List<PayerBalance> findPayerBalances(@Param("userId") final Long userId);
+
+  interface PayerBalance {
+
+    String getPayerName();
+
+    Long getPointBalance();
+  }
+}
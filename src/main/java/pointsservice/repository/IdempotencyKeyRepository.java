@@ -0,0 +1,10 @@
+package pointsservice.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+import pointsservice.model.entity.IdempotencyKeyEntity;
+import pointsservice.model.entity.IdempotencyKeyId;
+
+@Repository
+public interface IdempotencyKeyRepository extends JpaRepository<IdempotencyKeyEntity, IdempotencyKeyId> {
+}
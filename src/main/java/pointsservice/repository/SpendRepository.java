@@ -0,0 +1,9 @@
+package pointsservice.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+import pointsservice.model.entity.SpendEntity;
+
+@Repository
+public interface SpendRepository extends JpaRepository<SpendEntity, Long> {
+}
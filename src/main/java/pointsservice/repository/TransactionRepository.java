@@ -1,10 +1,90 @@
 package pointsservice.repository;
 
+import java.util.Date;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import pointsservice.model.entity.TransactionEntity;
 
 @Repository
 public interface TransactionRepository extends JpaRepository<TransactionEntity, Long> {
 
+  @Query("SELECT t FROM TransactionEntity t WHERE t.userId = :userId AND t.openLot = true"
+      + " ORDER BY t.timestamp, t.transactionId")
+  List<TransactionEntity> findOpenLots(final Long userId, final Pageable pageable);
+
+  @Query("SELECT t FROM TransactionEntity t WHERE t.userId = :userId AND t.openLot = true"
+      + " AND (t.timestamp > :timestamp OR (t.timestamp = :timestamp AND t.transactionId > :transactionId))"
+      + " ORDER BY t.timestamp, t.transactionId")
+  List<TransactionEntity> findOpenLotsAfter(
+      final Long userId,
+      final Date timestamp,
+      final Long transactionId,
+      final Pageable pageable
+  );
+
+  /**
+   * Up to {@code limit} of the user's live and archived transactions after the keyset ({@code timestamp},
+   * {@code transactionId}) and before {@code until}, in that order. Each table is read in order from
+   * {@code user_transactions_idx} or {@code user_transaction_history_idx}, stopping after {@code limit} rows, so a page
+   * costs the same however far into the history it starts. H2 only reads an index in order if the {@code ORDER BY}
+   * names its leading columns, hence {@code user_id}.
+   */
+  @Query(nativeQuery = true, value = "SELECT * FROM ("
+      + "(SELECT transaction_id AS transactionId, payer_id AS payerId, transaction_points AS transactionPoints,"
+      + " remaining_points AS remainingPoints, timestamp FROM transactions WHERE user_id = :userId"
+      + " AND timestamp >= :timestamp AND (timestamp > :timestamp OR transaction_id > :transactionId)"
+      + " AND timestamp < :until ORDER BY user_id, timestamp, transaction_id LIMIT :limit)"
+      + " UNION ALL (SELECT transaction_id, payer_id, transaction_points, 0, timestamp FROM transaction_history"
+      + " WHERE user_id = :userId"
+      + " AND timestamp >= :timestamp AND (timestamp > :timestamp OR transaction_id > :transactionId)"
+      + " AND timestamp < :until ORDER BY user_id, timestamp, transaction_id LIMIT :limit)"
+      + ") ORDER BY timestamp, transactionId LIMIT :limit")
+  List<TransactionRecord> findPage(
+      @Param("userId") final Long userId,
+      @Param("timestamp") final Date timestamp,
+      @Param("transactionId") final Long transactionId,
+      @Param("until") final Date until,
+      @Param("limit") final int limit
+  );
+
+  /**
+   * As {@link #findPage}, for one payer's transactions, read from {@code transaction_time_idx} and
+   * {@code transaction_history_idx}.
+   */
+  @Query(nativeQuery = true, value = "SELECT * FROM ("
+      + "(SELECT transaction_id AS transactionId, payer_id AS payerId, transaction_points AS transactionPoints,"
+      + " remaining_points AS remainingPoints, timestamp FROM transactions WHERE user_id = :userId"
+      + " AND payer_id = :payerId"
+      + " AND timestamp >= :timestamp AND (timestamp > :timestamp OR transaction_id > :transactionId)"
+      + " AND timestamp < :until ORDER BY user_id, payer_id, timestamp, transaction_id LIMIT :limit)"
+      + " UNION ALL (SELECT transaction_id, payer_id, transaction_points, 0, timestamp FROM transaction_history"
+      + " WHERE user_id = :userId AND payer_id = :payerId"
+      + " AND timestamp >= :timestamp AND (timestamp > :timestamp OR transaction_id > :transactionId)"
+      + " AND timestamp < :until ORDER BY user_id, payer_id, timestamp, transaction_id LIMIT :limit)"
+      + ") ORDER BY timestamp, transactionId LIMIT :limit")
+  List<TransactionRecord> findPayerPage(
+      @Param("userId") final Long userId,
+      @Param("payerId") final Long payerId,
+      @Param("timestamp") final Date timestamp,
+      @Param("transactionId") final Long transactionId,
+      @Param("until") final Date until,
+      @Param("limit") final int limit
+  );
+
+  interface TransactionRecord {
+
+    Long getTransactionId();
+
+    Long getPayerId();
+
+    Long getTransactionPoints();
+
+    Long getRemainingPoints();
+
+    Date getTimestamp();
+  }
 }
@@ -1,134 +1,856 @@
 package pointsservice.service;
 
-import java.util.Comparator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import io.micrometer.core.instrument.Timer;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import lombok.AllArgsConstructor;
 import lombok.SneakyThrows;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import pointsservice.cache.BalanceCache;
+import pointsservice.cache.IdempotencyCache;
+import pointsservice.cache.PayerCache;
+import pointsservice.engine.BalanceEngine;
+import pointsservice.error.model.IdempotencyKeyReusedException;
 import pointsservice.error.model.InsufficientBalanceException;
+import pointsservice.error.model.UserNotOwnedException;
+import pointsservice.history.BalanceHistory;
+import pointsservice.ledger.Allocations;
+import pointsservice.ledger.SpendLedger;
+import pointsservice.ledger.UserLedger;
+import pointsservice.metrics.PointsMetrics;
 import pointsservice.model.entity.BalanceEntity;
 import pointsservice.model.entity.BalanceId;
 import pointsservice.model.entity.PayerEntity;
+import pointsservice.model.entity.SpendEntity;
 import pointsservice.model.entity.TransactionEntity;
 import pointsservice.model.entity.UserEntity;
+import pointsservice.model.request.BulkSpendRequest;
+import pointsservice.model.request.BulkTransactionRequest;
+import pointsservice.model.request.TransactionCursor;
 import pointsservice.model.request.TransactionRequest;
 import pointsservice.model.request.UserSpendRequest;
+import pointsservice.model.response.BulkSpendResponse;
+import pointsservice.model.response.BulkTransactionResponse;
 import pointsservice.model.response.PointsBalanceResponse;
+import pointsservice.model.response.TransactionPageResponse;
 import pointsservice.model.response.TransactionResponse;
 import pointsservice.model.response.UserSpendResponse;
+import pointsservice.model.response.UserTransactionResponse;
+import pointsservice.partition.PartitionTable;
 import pointsservice.repository.BalanceRepository;
-import pointsservice.repository.PayerRepository;
+import pointsservice.repository.SpendRepository;
 import pointsservice.repository.TransactionRepository;
 import pointsservice.repository.UserRepository;
 
 @Service
 public class PointsService {
 
+  /**
+   * Attempts at a write that keeps losing to concurrent requests for the same balances or lots.
+   */
+  private static final int MAX_WRITE_ATTEMPTS = 5;
+  private static final String ADD_TRANSACTION = "addTransaction";
+  private static final String SPEND_POINTS = "spendPoints";
+  /**
+   * Stand in for an open start or end of a transaction page's time range.
+   */
+  private static final Timestamp START_OF_TIME = Timestamp.valueOf("0001-01-01 00:00:00");
+  private static final Timestamp END_OF_TIME = Timestamp.valueOf("9999-12-31 23:59:59");
+
   private final UserRepository userRepository;
-  private final PayerRepository payerRepository;
+  private final PayerCache payerCache;
+  private final BalanceCache balanceCache;
+  private final IdempotencyCache idempotencyCache;
   private final BalanceRepository balanceRepository;
   private final TransactionRepository transactionRepository;
+  private final SpendRepository spendRepository;
+  private final SpendLedger spendLedger;
+  private final BalanceHistory balanceHistory;
+  private final Optional<BalanceEngine> balanceEngine;
+  private final Optional<PartitionTable> partitionTable;
+  private final PointsMetrics pointsMetrics;
+  private final TransactionTemplate transactionTemplate;
 
   public PointsService(
       final UserRepository userRepository,
-      final PayerRepository payerRepository,
+      final PayerCache payerCache,
+      final BalanceCache balanceCache,
+      final IdempotencyCache idempotencyCache,
       final BalanceRepository balanceRepository,
-      final TransactionRepository transactionRepository
+      final TransactionRepository transactionRepository,
+      final SpendRepository spendRepository,
+      final SpendLedger spendLedger,
+      final BalanceHistory balanceHistory,
+      final Optional<BalanceEngine> balanceEngine,
+      final Optional<PartitionTable> partitionTable,
+      final PointsMetrics pointsMetrics,
+      final PlatformTransactionManager transactionManager
   ) {
     this.userRepository = userRepository;
-    this.payerRepository = payerRepository;
+    this.payerCache = payerCache;
+    this.balanceCache = balanceCache;
+    this.idempotencyCache = idempotencyCache;
     this.balanceRepository = balanceRepository;
     this.transactionRepository = transactionRepository;
+    this.spendRepository = spendRepository;
+    this.spendLedger = spendLedger;
+    this.balanceHistory = balanceHistory;
+    this.balanceEngine = balanceEngine;
+    this.partitionTable = partitionTable;
+    this.pointsMetrics = pointsMetrics;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
   }
 
+  /**
+   * Records one earn event. Only the (user, payer) balance row and the new transaction row are written, so the cost
+   * does not depend on how many transactions the user already has.
+   */
   public TransactionResponse addTransaction(
       final Long userId,
       final TransactionRequest transactionRequest
   ) {
-    final UserEntity user = userRepository.getById(userId);
-    final PayerEntity payer = payerRepository
-        .findByPayerNameIgnoreCase(transactionRequest.getPayerName().toUpperCase())
-        .orElseThrow();
-    final BalanceEntity balance = balanceRepository
-        .findById(new BalanceId(user.getUserId(), payer.getPayerId()))
-        .orElse(new BalanceEntity(0L, user, payer));
-
-    balance.setPointBalance(balance.getPointBalance() + transactionRequest.getTransactionPoints());
-    balanceRepository.save(balance);
-
-    final TransactionEntity transaction = transactionRepository.save(TransactionEntity.builder()
-        .transactionPoints(transactionRequest.getTransactionPoints())
-        .timestamp(transactionRequest.getTimestamp())
-        .balance(balance)
-        .build()
-    );
+    return addTransaction(userId, transactionRequest, null);
+  }
+
+  /**
+   * As {@link #addTransaction(Long, TransactionRequest)}, but if the user already sent a request with the same
+   * {@code idempotencyKey} its response is returned instead and nothing is written. Reusing the key for a different
+   * request throws {@link IdempotencyKeyReusedException}.
+   */
+  public TransactionResponse addTransaction(
+      final Long userId,
+      final TransactionRequest transactionRequest,
+      final String idempotencyKey
+  ) {
+    return timed(ADD_TRANSACTION, () -> owned(List.of(userId), () -> serialised(userId, () -> {
+      final Optional<TransactionResponse> replay = idempotencyKey == null
+          ? Optional.empty()
+          : idempotencyCache.find(userId, ADD_TRANSACTION, idempotencyKey, transactionRequest, new TypeReference<>() {});
+      return replay.isPresent() ? replay.get() : recordTransaction(userId, transactionRequest, idempotencyKey);
+    })));
+  }
 
-    user.getTransactions().add(transaction);
-    user.getBalances().add(balance);
-    userRepository.save(user);
+  private TransactionResponse recordTransaction(
+      final Long userId,
+      final TransactionRequest transactionRequest,
+      final String idempotencyKey
+  ) throws InsufficientBalanceException {
+    final PayerEntity payer = payerCache.get(transactionRequest.getPayerName()).orElseThrow();
+    if (balanceEngine.isPresent()) {
+      return balanceEngine.get().addTransaction(userId, payer, transactionRequest, idempotencyKey == null
+          ? null
+          : idempotencyCache.recorder(userId, ADD_TRANSACTION, idempotencyKey, transactionRequest)
+      );
+    }
+    final long transactionPoints = transactionRequest.getTransactionPoints();
+    final TransactionEntity transaction = writeWithRetry(userId, () -> {
+      final Allocations reversals = new Allocations();
+      if (transactionPoints < 0) {
+        spendLedger.forUser(userId).reverse(payer.getPayerId(), -transactionPoints, reversals);
+      }
+      final BalanceEntity balance = balanceRepository.findById(new BalanceId(userId, payer.getPayerId()))
+          .map(currentBalance -> {
+            currentBalance.setPointBalance(currentBalance.getPointBalance() + transactionPoints);
+            invalidateCheckpoints(currentBalance, transactionRequest.getTimestamp());
+            return currentBalance;
+          })
+          .orElseGet(() -> balanceRepository.save(
+              new BalanceEntity(transactionPoints, userRepository.findById(userId).orElseThrow(), payer)
+          ));
+      final TransactionEntity saved = transactionRepository.save(TransactionEntity.builder()
+          .transactionPoints(transactionPoints)
+          .remainingPoints(Math.max(transactionPoints, 0))
+          .timestamp(transactionRequest.getTimestamp())
+          .balance(balance)
+          .build()
+      );
+      saveRemainingPoints(reversals);
+      if (idempotencyKey != null) {
+        idempotencyCache.save(
+            userId, ADD_TRANSACTION, idempotencyKey, transactionRequest, toTransactionResponse(payer, saved)
+        );
+      }
+      return saved;
+    });
+    balanceCache.evict(userId);
+    if (transactionPoints > 0) {
+      spendLedger.ifLoaded(userId).ifPresent(ledger -> SpendLedger.credit(ledger, transaction));
+    }
+    return toTransactionResponse(payer, transaction);
+  }
 
+  private static TransactionResponse toTransactionResponse(
+      final PayerEntity payer,
+      final TransactionEntity transaction
+  ) {
     return TransactionResponse.builder()
         .payerName(payer.getPayerName())
         .transactionPoints(transaction.getTransactionPoints())
-        .totalPoints(balance.getPointBalance())
+        .totalPoints(transaction.getBalance().getPointBalance())
         .timestamp(transaction.getTimestamp())
         .build();
   }
 
-  @SneakyThrows
+  /**
+   * Applies a user's transactions in order, in one database transaction, holding the user's lock until it commits.
+   * Transaction rows are inserted in JDBC batches and each (user, payer) balance is written once, however many of the
+   * transactions it receives. A reversal the payer's open lots cannot cover rolls back the whole call.
+   */
+  public BulkTransactionResponse addTransactions(
+      final Long userId,
+      final List<TransactionRequest> transactionRequests
+  ) throws InsufficientBalanceException, UserNotOwnedException {
+    return timed("addTransactions", () -> owned(List.of(userId), () -> serialised(userId, () -> inTransaction(
+        () -> recordTransactions(userId, transactionRequests)
+    ))));
+  }
+
+  private BulkTransactionResponse recordTransactions(
+      final Long userId,
+      final List<TransactionRequest> transactionRequests
+  ) throws InsufficientBalanceException {
+    final UserEntity user = userRepository.findById(userId).orElseThrow();
+    final Function<TransactionRequest, PayerEntity> payerLookup = transactionRequest -> payerCache
+        .get(transactionRequest.getPayerName())
+        .orElseThrow();
+
+    if (balanceEngine.isPresent()) {
+      return balanceEngine.get().addTransactions(
+          List.of(new BulkTransactionRequest(userId, transactionRequests)),
+          payerName -> payerCache.get(payerName).orElseThrow()
+      ).get(0);
+    }
+
+    balanceCache.evict(userId);
+    spendLedger.evictOnRollback(userId);
+    final Map<Long, BalanceEntity> balances = balanceRepository.findAllByUserUserId(userId).stream()
+        .collect(Collectors.toMap(balance -> balance.getPayer().getPayerId(), Function.identity()));
+    final Map<Long, BalanceEntity> touchedBalances = new HashMap<>();
+    try {
+      for (var transactionRequest : transactionRequests) {
+        final PayerEntity payer = payerLookup.apply(transactionRequest);
+        final BalanceEntity balance = balances.computeIfAbsent(
+            payer.getPayerId(),
+            payerId -> balanceRepository.save(new BalanceEntity(0L, user, payer))
+        );
+        balance.setPointBalance(balance.getPointBalance() + transactionRequest.getTransactionPoints());
+        invalidateCheckpoints(balance, transactionRequest.getTimestamp());
+        touchedBalances.put(payer.getPayerId(), balance);
+
+        final TransactionEntity transaction = transactionRepository.save(TransactionEntity.builder()
+            .transactionPoints(transactionRequest.getTransactionPoints())
+            .remainingPoints(Math.max(transactionRequest.getTransactionPoints(), 0))
+            .timestamp(transactionRequest.getTimestamp())
+            .balance(balance)
+            .build()
+        );
+        if (transaction.getTransactionPoints() < 0) {
+          final Allocations reversals = new Allocations();
+          spendLedger.forUser(userId).reverse(payer.getPayerId(), -transaction.getTransactionPoints(), reversals);
+          saveRemainingPoints(reversals);
+        } else {
+          spendLedger.ifLoaded(userId).ifPresent(ledger -> SpendLedger.credit(ledger, transaction));
+        }
+      }
+    } catch (RuntimeException | InsufficientBalanceException exception) {
+      spendLedger.evict(userId);
+      throw exception;
+    }
+
+    return new BulkTransactionResponse(
+        userId,
+        transactionRequests.size(),
+        touchedBalances.values().stream().collect(Collectors.toMap(
+            balance -> balance.getPayer().getPayerName(),
+            BalanceEntity::getPointBalance
+        ))
+    );
+  }
+
+  /**
+   * Applies several users' transactions in one database transaction, holding all of their locks until it commits.
+   * Nothing is applied if another node owns any of the users.
+   */
+  public List<BulkTransactionResponse> addTransactions(
+      final List<BulkTransactionRequest> bulkTransactionRequests
+  ) throws InsufficientBalanceException, UserNotOwnedException {
+    final Set<Long> userIds = bulkTransactionRequests.stream()
+        .map(BulkTransactionRequest::getUserId)
+        .collect(Collectors.toSet());
+    if (balanceEngine.isPresent()) {
+      return timed("addTransactionsForUsers", () -> owned(userIds, () -> serialised(userIds, () -> balanceEngine.get()
+          .addTransactions(bulkTransactionRequests, payerName -> payerCache.get(payerName).orElseThrow())
+      )));
+    }
+    return timed("addTransactionsForUsers", () -> owned(userIds, () -> serialised(userIds, () -> inTransaction(() -> {
+      final List<BulkTransactionResponse> responses = new ArrayList<>();
+      try {
+        for (var bulkTransactionRequest : bulkTransactionRequests) {
+          responses.add(recordTransactions(bulkTransactionRequest.getUserId(), bulkTransactionRequest.getTransactions()));
+        }
+      } catch (RuntimeException | InsufficientBalanceException exception) {
+        bulkTransactionRequests.forEach(bulkTransactionRequest -> spendLedger.evict(bulkTransactionRequest.getUserId()));
+        throw exception;
+      }
+      return responses;
+    }))));
+  }
+
   public Set<UserSpendResponse> spendPoints(final Long userId, final UserSpendRequest userSpendRequest) {
-    final List<TransactionEntity> transactions = userRepository.getById(userId)
-        .getTransactions()
-        .stream()
-        .sorted(Comparator
-            .comparing(TransactionEntity::getTimestamp)
-            .thenComparing(TransactionEntity::getTransactionPoints)
-            .thenComparing(transactionEntity -> transactionEntity.getBalance().getPointBalance(), Comparator.reverseOrder())
-        ).collect(Collectors.toList());
-
-    final Map<String, Long> payerDeductions = new HashMap<>();
-    final Set<BalanceEntity> balancesToUpdate = new HashSet<>();
-    long pointsRemaining = userSpendRequest.getPoints();
-
-    for (var transaction : transactions) {
-      BalanceEntity balance = transaction.getBalance();
-      if (transaction.getTransactionPoints() <= balance.getPointBalance()) {
-        final long deductionAmount = Math.min(
-            transaction.getTransactionPoints(),
-            pointsRemaining
+    return spendPoints(userId, userSpendRequest, null);
+  }
+
+  /**
+   * As {@link #spendPoints(Long, UserSpendRequest)}, but if the user already sent a request with the same
+   * {@code idempotencyKey} its response is returned instead and nothing is written. Reusing the key for a different
+   * request throws {@link IdempotencyKeyReusedException}.
+   */
+  public Set<UserSpendResponse> spendPoints(
+      final Long userId,
+      final UserSpendRequest userSpendRequest,
+      final String idempotencyKey
+  ) {
+    return timed(SPEND_POINTS, () -> owned(List.of(userId), () -> serialised(userId, () -> {
+      final Optional<Set<UserSpendResponse>> replay = idempotencyKey == null
+          ? Optional.empty()
+          : idempotencyCache.find(userId, SPEND_POINTS, idempotencyKey, userSpendRequest, new TypeReference<>() {});
+      return replay.isPresent() ? replay.get() : spend(userId, userSpendRequest, idempotencyKey);
+    })));
+  }
+
+  private Set<UserSpendResponse> spend(
+      final Long userId,
+      final UserSpendRequest userSpendRequest,
+      final String idempotencyKey
+  ) throws InsufficientBalanceException {
+    if (balanceEngine.isPresent()) {
+      try {
+        return balanceEngine.get().spendPoints(userId, userSpendRequest.getPoints(), idempotencyKey == null
+            ? null
+            : idempotencyCache.recorder(userId, SPEND_POINTS, idempotencyKey, userSpendRequest)
         );
-        pointsRemaining -= deductionAmount;
-        balance.setPointBalance(balance.getPointBalance() - deductionAmount);
-        balancesToUpdate.add(balance);
-        payerDeductions.put(
-            balance.getPayer().getPayerName(),
-            payerDeductions.getOrDefault(balance.getPayer().getPayerName(), 0L) - deductionAmount
+      } catch (InsufficientBalanceException exception) {
+        pointsMetrics.recordInsufficientBalance();
+        throw exception;
+      }
+    }
+    final Set<UserSpendResponse> response = writeWithRetry(userId, () -> {
+      final Allocations allocations = allocate(userId, userSpendRequest.getPoints());
+      final Map<Long, Long> payerDeductions = allocations.payerDeductions();
+      final Timer.Sample write = pointsMetrics.start();
+      try {
+        final List<BalanceEntity> balances = findAllBalances(payerDeductions.keySet().stream()
+            .map(payerId -> new BalanceId(userId, payerId))
+            .collect(Collectors.toList())
+        );
+        balances.forEach(balance -> balance.setPointBalance(
+            balance.getPointBalance() - payerDeductions.get(balance.getPayer().getPayerId())
+        ));
+        balanceRepository.saveAll(balances);
+        saveRemainingPoints(allocations);
+        spendRepository.save(SpendEntity.builder()
+            .userId(userId)
+            .spentAt(new Date())
+            .deductions(new HashMap<>(payerDeductions))
+            .allocations(allocations.lotDeductions())
+            .build()
         );
-        if (pointsRemaining == 0) {
-          break;
+        final Set<UserSpendResponse> spent = balances.stream()
+            .map(balance -> new UserSpendResponse(balance.getPayer().getPayerName(), -payerDeductions.get(balance.getPayer().getPayerId())))
+            .collect(Collectors.toSet());
+        if (idempotencyKey != null) {
+          idempotencyCache.save(userId, SPEND_POINTS, idempotencyKey, userSpendRequest, spent);
         }
+        return spent;
+      } finally {
+        pointsMetrics.stopSpendPhase(write, "write");
       }
+    });
+    balanceCache.evict(userId);
+    return response;
+  }
+
+  /**
+   * Takes {@code points} from the user's ledger, loading it first if it is not cached.
+   */
+  private Allocations allocate(final Long userId, final long points) throws InsufficientBalanceException {
+    final Timer.Sample load = pointsMetrics.start();
+    final UserLedger ledger = spendLedger.ifLoaded(userId).orElseGet(() -> {
+      userRepository.findById(userId).orElseThrow();
+      return spendLedger.forUser(userId);
+    });
+    pointsMetrics.stopSpendPhase(load, "load");
+
+    final Timer.Sample allocate = pointsMetrics.start();
+    final Allocations allocations = new Allocations();
+    final int lotsVisited;
+    try {
+      lotsVisited = ledger.allocate(points, allocations);
+    } catch (InsufficientBalanceException exception) {
+      pointsMetrics.recordInsufficientBalance();
+      throw exception;
+    } finally {
+      pointsMetrics.stopSpendPhase(allocate, "allocate");
     }
-    if (pointsRemaining > 0) {
-      throw new InsufficientBalanceException(String.format("Insufficient funds for requested %d points", userSpendRequest.getPoints()));
+    pointsMetrics.recordAllocations(allocations, lotsVisited);
+    return allocations;
+  }
+
+  /**
+   * Spends points for several users in one database transaction, holding all of their locks until it commits.
+   * Each user's points are allocated from their own ledger exactly as a single spend would be. A user who is unknown
+   * or short of points, or owned by another node, gets an error in their response and the others are still spent.
+   */
+  public List<BulkSpendResponse> spendPoints(final List<BulkSpendRequest> bulkSpendRequests) {
+    final Set<Long> userIds = bulkSpendRequests.stream().map(BulkSpendRequest::getUserId).collect(Collectors.toSet());
+    return timed("spendPointsForUsers", () -> inPartitions(userIds, () -> {
+      final List<BulkSpendRequest> localRequests = bulkSpendRequests.stream()
+          .filter(bulkSpendRequest -> isLocal(bulkSpendRequest.getUserId()))
+          .collect(Collectors.toList());
+      final Set<Long> localUserIds = localRequests.stream()
+          .map(BulkSpendRequest::getUserId)
+          .collect(Collectors.toSet());
+      final Iterator<BulkSpendResponse> spent = localRequests.isEmpty()
+          ? Collections.emptyIterator()
+          : serialised(localUserIds, () -> spendAll(localRequests)).iterator();
+      return bulkSpendRequests.stream()
+          .map(bulkSpendRequest -> isLocal(bulkSpendRequest.getUserId())
+              ? spent.next()
+              : BulkSpendResponse.failed(bulkSpendRequest.getUserId(), notOwned(bulkSpendRequest.getUserId())))
+          .collect(Collectors.toList());
+    }));
+  }
+
+  private List<BulkSpendResponse> spendAll(final List<BulkSpendRequest> bulkSpendRequests) {
+    if (balanceEngine.isPresent()) {
+      final List<BulkSpendResponse> responses = new ArrayList<>(bulkSpendRequests.size());
+      for (var bulkSpendRequest : bulkSpendRequests) {
+        final Long userId = bulkSpendRequest.getUserId();
+        try {
+          responses.add(BulkSpendResponse.spent(
+              userId,
+              balanceEngine.get().spendPoints(userId, bulkSpendRequest.getPoints(), null)
+          ));
+        } catch (InsufficientBalanceException exception) {
+          pointsMetrics.recordInsufficientBalance();
+          responses.add(BulkSpendResponse.failed(userId, exception.getMessage()));
+        }
+      }
+      return responses;
     }
-    balanceRepository.saveAll(balancesToUpdate);
-    return payerDeductions.entrySet().stream()
-        .map(entry -> new UserSpendResponse(entry.getKey(), entry.getValue()))
-        .collect(Collectors.toSet());
+
+    final Set<Long> userIds = bulkSpendRequests.stream()
+        .map(BulkSpendRequest::getUserId)
+        .collect(Collectors.toCollection(LinkedHashSet::new));
+    final List<BulkSpendResponse> spent = writeWithRetry(userIds, () -> writeAll(bulkSpendRequests));
+    userIds.forEach(balanceCache::evict);
+    return spent;
+  }
+
+  /**
+   * Allocates every request from its user's ledger, then writes the spends in the current database transaction.
+   */
+  private List<BulkSpendResponse> writeAll(final List<BulkSpendRequest> bulkSpendRequests) {
+    final List<BulkSpendResponse> responses = new ArrayList<>(bulkSpendRequests.size());
+    final Set<Long> knownUsers = new HashSet<>();
+    userRepository.findAllById(bulkSpendRequests.stream()
+        .map(BulkSpendRequest::getUserId)
+        .filter(userId -> spendLedger.ifLoaded(userId).isEmpty())
+        .collect(Collectors.toSet())
+    ).forEach(user -> knownUsers.add(user.getUserId()));
+
+    final List<PendingSpend> pending = new ArrayList<>();
+    for (var bulkSpendRequest : bulkSpendRequests) {
+      final Long userId = bulkSpendRequest.getUserId();
+      final Optional<UserLedger> ledger = spendLedger.ifLoaded(userId);
+      if (ledger.isEmpty() && !knownUsers.contains(userId)) {
+        responses.add(BulkSpendResponse.failed(userId, "User " + userId + " not found"));
+        continue;
+      }
+      try {
+        final Allocations allocations = new Allocations();
+        final int lotsVisited = ledger.orElseGet(() -> spendLedger.forUser(userId))
+            .allocate(bulkSpendRequest.getPoints(), allocations);
+        pointsMetrics.recordAllocations(allocations, lotsVisited);
+        pending.add(new PendingSpend(responses.size(), userId, allocations));
+        responses.add(null);
+      } catch (InsufficientBalanceException exception) {
+        pointsMetrics.recordInsufficientBalance();
+        responses.add(BulkSpendResponse.failed(userId, exception.getMessage()));
+      }
+    }
+    if (pending.isEmpty()) {
+      return responses;
+    }
+
+    final Map<BalanceId, Long> deductions = new HashMap<>();
+    final Allocations allocations = new Allocations();
+    final List<SpendEntity> spends = new ArrayList<>(pending.size());
+    final Date spentAt = new Date();
+    for (var spend : pending) {
+      spend.allocations.payerDeductions().forEach((payerId, points) ->
+          deductions.merge(new BalanceId(spend.userId, payerId), points, Long::sum)
+      );
+      allocations.addAll(spend.allocations);
+      spends.add(spend.toEntity(spentAt));
+    }
+    final List<BalanceEntity> balances = findAllBalances(deductions.keySet());
+    balances.forEach(balance -> balance.setPointBalance(balance.getPointBalance() - deductions.get(
+        new BalanceId(balance.getUser().getUserId(), balance.getPayer().getPayerId())
+    )));
+    balanceRepository.saveAll(balances);
+    saveRemainingPoints(allocations);
+    spendRepository.saveAll(spends);
+    final Map<Long, String> payerNames = new HashMap<>();
+    balances.forEach(balance -> payerNames.put(balance.getPayer().getPayerId(), balance.getPayer().getPayerName()));
+
+    pending.forEach(spend -> responses.set(spend.index, BulkSpendResponse.spent(
+        spend.userId,
+        spend.allocations.payerDeductions().entrySet().stream()
+            .map(entry -> new UserSpendResponse(payerNames.get(entry.getKey()), -entry.getValue()))
+            .collect(Collectors.toSet())
+    )));
+    return responses;
+  }
+
+  /**
+   * What {@link #spendPoints(Long, UserSpendRequest)} would deduct from each payer for {@code points} right now, worked
+   * out from the user's ledger without taking their lock or writing anything. A spend made after the quote may deduct
+   * differently.
+   */
+  public Set<UserSpendResponse> quoteSpend(final Long userId, final long points) {
+    return timed("quoteSpend", () -> {
+      final UserLedger ledger = spendLedger.ifLoaded(userId).orElseGet(() -> {
+        userRepository.findById(userId).orElseThrow();
+        balanceEngine.ifPresent(BalanceEngine::flush);
+        return spendLedger.load(userId);
+      });
+      final Allocations allocations = new Allocations();
+      ledger.quote(points, allocations);
+      return allocations.payerDeductions().entrySet().stream()
+          .map(entry -> new UserSpendResponse(
+              payerCache.get(entry.getKey()).orElseThrow().getPayerName(), -entry.getValue()
+          ))
+          .collect(Collectors.toSet());
+    });
+  }
+
+  /**
+   * Up to {@code limit} of the user's earns and reversals, live and archived, in timestamp then transaction id order,
+   * starting after {@code after} (or from the start), optionally for one payer and within {@code [from, until)}.
+   */
+  public TransactionPageResponse getTransactions(
+      final Long userId,
+      final String payerName,
+      final Date from,
+      final Date until,
+      final TransactionCursor after,
+      final int limit
+  ) {
+    return timed("getTransactions", () -> {
+      final Date start = from == null ? START_OF_TIME : from;
+      final TransactionCursor cursor = after == null || after.getTimestamp().before(start)
+          ? new TransactionCursor(start, -1L)
+          : after;
+      final Date end = until == null ? END_OF_TIME : until;
+      balanceEngine.ifPresent(BalanceEngine::flush);
+      final List<TransactionRepository.TransactionRecord> records = payerName == null
+          ? transactionRepository.findPage(userId, cursor.getTimestamp(), cursor.getTransactionId(), end, limit + 1)
+          : transactionRepository.findPayerPage(
+              userId, payerCache.get(payerName).orElseThrow().getPayerId(),
+              cursor.getTimestamp(), cursor.getTransactionId(), end, limit + 1
+          );
+      if (records.isEmpty()) {
+        userRepository.findById(userId).orElseThrow();
+      }
+      final List<UserTransactionResponse> transactions = records.stream()
+          .limit(limit)
+          .map(record -> UserTransactionResponse.builder()
+              .transactionId(record.getTransactionId())
+              .payerName(payerCache.get(record.getPayerId()).orElseThrow().getPayerName())
+              .transactionPoints(record.getTransactionPoints())
+              .remainingPoints(record.getRemainingPoints())
+              .timestamp(record.getTimestamp())
+              .build()
+          )
+          .collect(Collectors.toList());
+      final UserTransactionResponse last = transactions.isEmpty() ? null : transactions.get(transactions.size() - 1);
+      return new TransactionPageResponse(
+          transactions,
+          records.size() > limit ? new TransactionCursor(last.getTimestamp(), last.getTransactionId()) : null
+      );
+    });
   }
 
   public PointsBalanceResponse getPointsBalance(final Long userId) {
-    return new PointsBalanceResponse(
-        userRepository.getById(userId).getBalances().stream()
-            .collect(Collectors.toMap(
-                balance -> balance.getPayer().getPayerName(),
-                BalanceEntity::getPointBalance
-            ))
+    return timed("getPointsBalance", () -> balanceEngine.isPresent()
+        ? new PointsBalanceResponse(balanceEngine.get().getPointsBalance(userId))
+        : balanceCache.get(userId, this::loadPointsBalance)
     );
   }
+
+  /**
+   * The user's balance with each payer as it stood at {@code asOf}: earns dated up to then, less spends made up to
+   * then. See {@link BalanceHistory} for how far back it reads.
+   */
+  public PointsBalanceResponse getPointsBalance(final Long userId, final Date asOf) {
+    return timed("getPointsBalanceAsOf", () -> serialised(userId, () -> {
+      userRepository.findById(userId).orElseThrow();
+      balanceEngine.ifPresent(BalanceEngine::flush);
+      return new PointsBalanceResponse(balanceHistory.balancesAsOf(userId, asOf));
+    }));
+  }
+
+  /**
+   * Reads the user's balances in a single statement. A user with no balances is looked up so that unknown users are
+   * still reported as not found.
+   */
+  private PointsBalanceResponse loadPointsBalance(final Long userId) {
+    final List<BalanceRepository.PayerBalance> payerBalances = balanceRepository.findPayerBalances(userId);
+    if (payerBalances.isEmpty()) {
+      userRepository.findById(userId).orElseThrow();
+    }
+    return new PointsBalanceResponse(payerBalances.stream().collect(Collectors.toMap(
+        BalanceRepository.PayerBalance::getPayerName,
+        BalanceRepository.PayerBalance::getPointBalance
+    )));
+  }
+
+  /**
+   * Runs {@code call} holding the user's ledger lock, so earns and spends for one user are applied one at a time while
+   * other users' run in parallel.
+   */
+  @SneakyThrows
+  private <T> T serialised(final Long userId, final Callable<T> call) {
+    spendLedger.getLocks().lock(userId);
+    try {
+      return call.call();
+    } finally {
+      spendLedger.getLocks().unlock(userId);
+    }
+  }
+
+  /**
+   * As {@link #serialised(Long, Callable)}, holding the lock of each of the users and no others, so a bulk request
+   * only waits for and holds up requests for its own users.
+   */
+  @SneakyThrows
+  private <T> T serialised(final Collection<Long> userIds, final Callable<T> call) {
+    final List<Long> locked = spendLedger.getLocks().lockAll(userIds);
+    try {
+      return call.call();
+    } finally {
+      spendLedger.getLocks().unlockAll(locked);
+    }
+  }
+
+  /**
+   * Runs {@code call} holding the read lock of each partition the users are in, so none of them moves to another node
+   * part way through. The locks are taken in partition order, as requests for several users may overlap.
+   */
+  @SneakyThrows
+  private <T> T inPartitions(final Collection<Long> userIds, final Callable<T> call) {
+    if (partitionTable.isEmpty()) {
+      return call.call();
+    }
+    final List<Lock> locks = userIds.stream()
+        .map(partitionTable.get()::partitionOf)
+        .distinct()
+        .sorted()
+        .map(partition -> partitionTable.get().lockFor(partition).readLock())
+        .collect(Collectors.toList());
+    locks.forEach(Lock::lock);
+    try {
+      return call.call();
+    } finally {
+      locks.forEach(Lock::unlock);
+    }
+  }
+
+  /**
+   * As {@link #inPartitions}, but throws {@link UserNotOwnedException} instead if another node owns any of the users.
+   */
+  private <T> T owned(final Collection<Long> userIds, final Callable<T> call) {
+    return inPartitions(userIds, () -> {
+      for (var userId : userIds) {
+        if (!isLocal(userId)) {
+          throw new UserNotOwnedException(notOwned(userId));
+        }
+      }
+      return call.call();
+    });
+  }
+
+  /**
+   * Must be called holding the user's partition lock.
+   */
+  private boolean isLocal(final Long userId) {
+    return partitionTable.map(partitions -> partitions.isLocal(partitions.partitionOf(userId))).orElse(true);
+  }
+
+  private String notOwned(final Long userId) {
+    final PartitionTable partitions = partitionTable.orElseThrow();
+    return String.format("User %d is owned by %s", userId, partitions.ownerOf(partitions.partitionOf(userId)));
+  }
+
+  private <T> T writeWithRetry(final Long userId, final Callable<T> write) {
+    return writeWithRetry(List.of(userId), write);
+  }
+
+  /**
+   * Runs {@code write} in its own database transaction, retrying with a short random backoff when a writer outside
+   * {@link #serialised} (a bulk import, another instance) changed one of its balances or lots first. {@code write}
+   * takes what it needs from the users' ledgers, so they are evicted whenever it does not go through, and a retry
+   * allocates again from the reloaded ledgers rather than writing lot values the other writer has already changed. A
+   * caller's transaction is joined instead, as it cannot be retried from here.
+   */
+  @SneakyThrows
+  private <T> T writeWithRetry(final Collection<Long> userIds, final Callable<T> write) {
+    if (TransactionSynchronizationManager.isActualTransactionActive()) {
+      userIds.forEach(spendLedger::evictOnRollback);
+      try {
+        return write.call();
+      } catch (InsufficientBalanceException exception) {
+        throw exception;
+      } catch (Exception exception) {
+        userIds.forEach(spendLedger::evict);
+        throw exception;
+      }
+    }
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return inTransaction(write);
+      } catch (OptimisticLockingFailureException | DataIntegrityViolationException exception) {
+        pointsMetrics.recordWriteConflict();
+        userIds.forEach(spendLedger::evict);
+        if (attempt == MAX_WRITE_ATTEMPTS) {
+          throw exception;
+        }
+        try {
+          Thread.sleep(ThreadLocalRandom.current().nextLong(1L << attempt));
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw exception;
+        }
+      } catch (InsufficientBalanceException exception) {
+        throw exception;
+      } catch (Exception exception) {
+        userIds.forEach(spendLedger::evict);
+        throw exception;
+      }
+    }
+  }
+
+  /**
+   * Runs {@code call} in a database transaction, or joins the caller's, rolling it back on any exception.
+   */
+  private <T> T inTransaction(final Callable<T> call) throws Exception {
+    try {
+      return transactionTemplate.execute(status -> {
+        try {
+          return call.call();
+        } catch (RuntimeException exception) {
+          throw exception;
+        } catch (Exception exception) {
+          throw new UndeclaredThrowableException(exception);
+        }
+      });
+    } catch (UndeclaredThrowableException exception) {
+      throw (Exception) exception.getUndeclaredThrowable();
+    }
+  }
+
+  @SneakyThrows
+  private <T> T timed(final String operation, final Callable<T> call) {
+    final Timer.Sample sample = pointsMetrics.start();
+    boolean succeeded = false;
+    try {
+      final T result = call.call();
+      succeeded = true;
+      return result;
+    } finally {
+      pointsMetrics.stopOperation(sample, operation, succeeded);
+    }
+  }
+
+  /**
+   * Drops the balance's checkpoints that an earn dated {@code timestamp} makes stale. Most earns are dated after the
+   * last checkpoint and skip this.
+   */
+  private void invalidateCheckpoints(final BalanceEntity balance, final Date timestamp) {
+    if (balance.getCheckpointedThrough() != null && !timestamp.after(balance.getCheckpointedThrough())) {
+      balanceHistory.invalidateCheckpoints(balance.getUser().getUserId(), balance.getPayer().getPayerId(), timestamp);
+      balance.setCheckpointedThrough(timestamp);
+    }
+  }
+
+  private void saveRemainingPoints(final Allocations allocations) {
+    if (allocations.isEmpty()) {
+      return;
+    }
+    final Map<Long, Long> remainingPoints = new HashMap<>();
+    for (int i = 0; i < allocations.size(); i++) {
+      remainingPoints.put(allocations.getTransactionId(i), allocations.getRemaining(i));
+    }
+    final List<TransactionEntity> lots = transactionRepository.findAllById(remainingPoints.keySet());
+    if (lots.size() != remainingPoints.size()) {
+      throw new OptimisticLockingFailureException("Lots were archived or moved by another writer");
+    }
+    lots.forEach(lot -> lot.setRemainingPoints(remainingPoints.get(lot.getTransactionId())));
+    transactionRepository.saveAll(lots);
+  }
+
+  /**
+   * The balances with these ids, all of which the caller's ledgers say exist.
+   */
+  private List<BalanceEntity> findAllBalances(final Collection<BalanceId> balanceIds) {
+    final List<BalanceEntity> balances = balanceRepository.findAllById(balanceIds);
+    if (balances.size() != balanceIds.size()) {
+      throw new OptimisticLockingFailureException("Balances were moved by another writer");
+    }
+    return balances;
+  }
+
+  /**
+   * A bulk spend allocated from the ledger and waiting to be written, with the position of its response.
+   */
+  @AllArgsConstructor
+  private static class PendingSpend {
+
+    private final int index;
+    private final Long userId;
+    private final Allocations allocations;
+
+    private SpendEntity toEntity(final Date spentAt) {
+      return SpendEntity.builder()
+          .userId(userId)
+          .spentAt(spentAt)
+          .deductions(allocations.payerDeductions())
+          .allocations(allocations.lotDeductions())
+          .build();
+    }
+  }
 }
@@ -0,0 +1,613 @@
+package pointsservice.snapshot;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import pointsservice.configuration.PointsProperties;
+import pointsservice.engine.BalanceEngine;
+import pointsservice.engine.IdBlock;
+import pointsservice.model.entity.SpendEntity;
+import pointsservice.model.entity.TransactionEntity;
+import pointsservice.model.response.SnapshotResponse;
+
+/**
+ * Writes users, payers, balances and open lots to a binary file, and loads it back on startup in place of replaying
+ * their history.
+ * <p>
+ * The file is a {@value #HEADER_SIZE} byte header (magic number, format version, section count, the
+ * {@link BalanceEngine}'s log position when the snapshot was taken, when it was taken and each section's row count)
+ * followed by each {@link Section} in turn. Names are length-prefixed UTF-8, timestamps are epoch millis with
+ * {@link Long#MIN_VALUE} for none and every other field is a {@code long}, so each section is read straight out of a
+ * large buffer refilled from the file channel and merged in JDBC batches. A snapshot is written to a temporary file and
+ * moved into place, so a crash part way through leaves the previous one.
+ * <p>
+ * A full snapshot leaves the history sections (consumed lots, archived transactions, spends, balance checkpoints and
+ * idempotency keys) empty, so balances as of a time before the snapshot was loaded are not available afterwards. In
+ * {@code memory} mode the engine is flushed first, and on startup it replays its log from the snapshot's position;
+ * mutations after that position that were already in the snapshot carry absolute values, so applying them again is
+ * harmless.
+ * <p>
+ * The same format carries one partition's users, with their history, to another node, see
+ * {@link pointsservice.partition.PartitionMover}.
+ */
+@Slf4j
+@Component
+public class SnapshotStore implements SmartLifecycle {
+
+  static final int HEADER_SIZE = 128;
+  private static final long MAGIC = 0x504f494e54534e50L;
+  private static final int VERSION = 3;
+  private static final long NO_TIME = Long.MIN_VALUE;
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final int BATCH_SIZE = 1000;
+
+  private static final String ALL_USERS = "TRUE";
+  private static final String PARTITION_USERS = "MOD(user_id, ?) = ?";
+  /**
+   * In the order they are written and loaded, parents before children.
+   */
+  private static final List<Section> SECTIONS = List.of(
+      Section.of("SELECT user_id, user_name FROM users WHERE %s ORDER BY user_id",
+          "MERGE INTO users (user_id, user_name) KEY (user_id) VALUES (?, ?)",
+          Column.LONG, Column.TEXT),
+      Section.of("SELECT payer_id, payer_name FROM payers ORDER BY payer_id",
+          "MERGE INTO payers (payer_id, payer_name) KEY (payer_id) VALUES (?, ?)",
+          Column.LONG, Column.TEXT).unfiltered(),
+      Section.of("SELECT user_id, payer_id, point_balance, version, checkpointed_through FROM balances"
+              + " WHERE %s ORDER BY user_id, payer_id",
+          "MERGE INTO balances (user_id, payer_id, point_balance, version, checkpointed_through)"
+              + " KEY (user_id, payer_id) VALUES (?, ?, ?, ?, ?)",
+          Column.LONG, Column.LONG, Column.LONG, Column.LONG, Column.TIME),
+      Section.of("SELECT transaction_id, user_id, payer_id, transaction_points, remaining_points, timestamp"
+              + " FROM transactions WHERE open_lot = TRUE AND %s ORDER BY transaction_id",
+          "MERGE INTO transactions (transaction_id, user_id, payer_id, transaction_points, remaining_points, timestamp)"
+              + " KEY (transaction_id) VALUES (?, ?, ?, ?, ?, ?)",
+          Column.TRANSACTION_ID, Column.LONG, Column.LONG, Column.LONG, Column.LONG, Column.TIME),
+      Section.of("SELECT transaction_id, user_id, payer_id, transaction_points, remaining_points, timestamp"
+              + " FROM transactions WHERE open_lot = FALSE AND %s ORDER BY transaction_id",
+          "MERGE INTO transactions (transaction_id, user_id, payer_id, transaction_points, remaining_points, timestamp)"
+              + " KEY (transaction_id) VALUES (?, ?, ?, ?, ?, ?)",
+          Column.TRANSACTION_ID, Column.LONG, Column.LONG, Column.LONG, Column.LONG, Column.TIME).history(),
+      Section.of("SELECT transaction_id, user_id, payer_id, transaction_points, timestamp, archived_at"
+              + " FROM transaction_history WHERE %s ORDER BY transaction_id",
+          "MERGE INTO transaction_history (transaction_id, user_id, payer_id, transaction_points, timestamp, archived_at)"
+              + " KEY (transaction_id) VALUES (?, ?, ?, ?, ?, ?)",
+          Column.TRANSACTION_ID, Column.LONG, Column.LONG, Column.LONG, Column.TIME, Column.TIME).history(),
+      Section.of("SELECT user_id, payer_id, archived_points, archived_lots, archived_through FROM balance_snapshots"
+              + " WHERE %s ORDER BY user_id, payer_id",
+          "MERGE INTO balance_snapshots (user_id, payer_id, archived_points, archived_lots, archived_through)"
+              + " KEY (user_id, payer_id) VALUES (?, ?, ?, ?, ?)",
+          Column.LONG, Column.LONG, Column.LONG, Column.LONG, Column.TIME).history(),
+      Section.of("SELECT spend_id, user_id, spent_at FROM spends WHERE %s ORDER BY spend_id",
+          "MERGE INTO spends (spend_id, user_id, spent_at) KEY (spend_id) VALUES (?, ?, ?)",
+          Column.SPEND_ID, Column.LONG, Column.TIME).history(),
+      Section.of("SELECT d.spend_id, d.payer_id, d.points FROM spend_deductions d"
+              + " JOIN spends s ON s.spend_id = d.spend_id WHERE %s ORDER BY d.spend_id, d.payer_id",
+          "MERGE INTO spend_deductions (spend_id, payer_id, points) KEY (spend_id, payer_id) VALUES (?, ?, ?)",
+          Column.SPEND_ID, Column.LONG, Column.LONG).history(),
+      Section.of("SELECT a.spend_id, a.transaction_id, a.points FROM spend_allocations a"
+              + " JOIN spends s ON s.spend_id = a.spend_id WHERE %s ORDER BY a.spend_id, a.transaction_id",
+          "MERGE INTO spend_allocations (spend_id, transaction_id, points) KEY (spend_id, transaction_id)"
+              + " VALUES (?, ?, ?)",
+          Column.SPEND_ID, Column.TRANSACTION_ID, Column.LONG).history(),
+      Section.of("SELECT user_id, payer_id, as_of, point_balance, balance_version FROM balance_checkpoints"
+              + " WHERE %s ORDER BY user_id, payer_id, as_of",
+          "MERGE INTO balance_checkpoints (user_id, payer_id, as_of, point_balance, balance_version)"
+              + " KEY (user_id, payer_id, as_of) VALUES (?, ?, ?, ?, ?)",
+          Column.LONG, Column.LONG, Column.TIME, Column.LONG, Column.LONG).history(),
+      Section.of("SELECT user_id, operation, idempotency_key, request_hash, response, created_at FROM idempotency_keys"
+              + " WHERE %s ORDER BY user_id, operation, idempotency_key",
+          "MERGE INTO idempotency_keys (user_id, operation, idempotency_key, request_hash, response, created_at)"
+              + " KEY (user_id, operation, idempotency_key) VALUES (?, ?, ?, ?, ?, ?)",
+          Column.LONG, Column.TEXT, Column.TEXT, Column.LONG, Column.TEXT, Column.TIME).history()
+  );
+  private static final int USERS = 0;
+  private static final int PAYERS = 1;
+  private static final int BALANCES = 2;
+  private static final int OPEN_LOTS = 3;
+  /**
+   * Everything held for a partition's users, children first.
+   */
+  private static final List<String> DELETE_PARTITION = List.of(
+      "DELETE FROM spend_allocations WHERE spend_id IN (SELECT spend_id FROM spends WHERE MOD(user_id, ?) = ?)",
+      "DELETE FROM spend_deductions WHERE spend_id IN (SELECT spend_id FROM spends WHERE MOD(user_id, ?) = ?)",
+      "DELETE FROM spends WHERE MOD(user_id, ?) = ?",
+      "DELETE FROM idempotency_keys WHERE MOD(user_id, ?) = ?",
+      "DELETE FROM balance_checkpoints WHERE MOD(user_id, ?) = ?",
+      "DELETE FROM balance_snapshots WHERE MOD(user_id, ?) = ?",
+      "DELETE FROM transaction_history WHERE MOD(user_id, ?) = ?",
+      "DELETE FROM transactions WHERE MOD(user_id, ?) = ?",
+      "DELETE FROM balances WHERE MOD(user_id, ?) = ?",
+      "DELETE FROM users WHERE MOD(user_id, ?) = ?"
+  );
+
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+  private final TransactionTemplate snapshotTemplate;
+  private final ObjectProvider<BalanceEngine> balanceEngine;
+  private final PointsProperties.Snapshot properties;
+  private final IdBlock transactionIds;
+  private final IdBlock spendIds;
+
+  private volatile long loadedLogPosition;
+  private volatile boolean running;
+
+  public SnapshotStore(
+      final JdbcTemplate jdbcTemplate,
+      final TransactionTemplate transactionTemplate,
+      final PlatformTransactionManager transactionManager,
+      final ObjectProvider<BalanceEngine> balanceEngine,
+      final PointsProperties properties
+  ) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionTemplate = transactionTemplate;
+    this.snapshotTemplate = new TransactionTemplate(transactionManager);
+    this.snapshotTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+    this.snapshotTemplate.setReadOnly(true);
+    this.balanceEngine = balanceEngine;
+    this.properties = properties.getSnapshot();
+    this.transactionIds = new IdBlock(jdbcTemplate, "transactions_seq", TransactionEntity.TRANSACTION_ID_BLOCK);
+    this.spendIds = new IdBlock(jdbcTemplate, "spends_seq", SpendEntity.SPEND_ID_BLOCK);
+  }
+
+  public SnapshotResponse write() {
+    return write(properties.getPath());
+  }
+
+  /**
+   * Writes a snapshot to {@code path}, reading every table in one repeatable-read transaction so it is consistent.
+   */
+  public SnapshotResponse write(final Path path) {
+    final BalanceEngine engine = balanceEngine.getIfAvailable();
+    final long logPosition = engine == null ? 0 : engine.logPosition();
+    if (engine != null) {
+      engine.flush();
+    }
+    final SnapshotResponse snapshot = write(path, logPosition, false, ALL_USERS);
+    if (engine != null) {
+      engine.discardLogBefore(logPosition);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Writes a snapshot of the users in {@code partition} of {@code partitions} (by {@code userId mod partitions}) to
+   * {@code path}: those users and everything held for them, history included, and every payer.
+   */
+  public SnapshotResponse writePartition(final Path path, final int partition, final int partitions) {
+    balanceEngine.ifAvailable(BalanceEngine::flush);
+    return write(path, 0, true, PARTITION_USERS, partitions, partition);
+  }
+
+  /**
+   * Merges the snapshot at {@code path} into the database in one transaction. Meant for startup, before anything has
+   * read the rows it overwrites.
+   */
+  public SnapshotResponse load(final Path path) {
+    final SnapshotResponse snapshot = load(path, false);
+    loadedLogPosition = snapshot.getLogPosition();
+    return snapshot;
+  }
+
+  /**
+   * Merges a snapshot written by {@link #writePartition} into the database in one transaction. Its transactions and
+   * spends are given new ids from this database's sequences, as the ids they had on the node that wrote it may
+   * already be taken here.
+   */
+  public SnapshotResponse loadPartition(final Path path) {
+    return load(path, true);
+  }
+
+  /**
+   * Deletes everything held for the users in {@code partition} of {@code partitions}, joining the caller's database
+   * transaction if there is one.
+   */
+  public void deletePartition(final int partition, final int partitions) {
+    transactionTemplate.executeWithoutResult(status -> DELETE_PARTITION.forEach(sql ->
+        jdbcTemplate.update(sql, partitions, partition)
+    ));
+  }
+
+  /**
+   * @return the {@link BalanceEngine} log position of the snapshot loaded on startup, or {@code 0} if none was
+   */
+  public long getLoadedLogPosition() {
+    return loadedLogPosition;
+  }
+
+  @Override
+  public void start() {
+    if (properties.isEnabled() && Files.exists(properties.getPath())) {
+      final long started = System.currentTimeMillis();
+      final SnapshotResponse snapshot = load(properties.getPath());
+      log.info("Loaded {} users, {} balances and {} open lots from {} in {} ms",
+          snapshot.getUsers(), snapshot.getBalances(), snapshot.getOpenLots(), snapshot.getPath(),
+          System.currentTimeMillis() - started
+      );
+    }
+    running = true;
+  }
+
+  @Override
+  public void stop() {
+    if (properties.isEnabled()) {
+      final SnapshotResponse snapshot = write();
+      log.info("Wrote {} users, {} balances and {} open lots to {}",
+          snapshot.getUsers(), snapshot.getBalances(), snapshot.getOpenLots(), snapshot.getPath()
+      );
+    }
+    running = false;
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Starts before the web server and the {@link BalanceEngine}, so the snapshot is in place before either serves or
+   * replays anything, and stops after both, once the last request has been written.
+   */
+  @Override
+  public int getPhase() {
+    return Integer.MAX_VALUE - 2;
+  }
+
+  /**
+   * Writes the users {@code userFilter} (a condition on {@code user_id}) selects, with their history if
+   * {@code withHistory}, reading every table in one repeatable-read transaction so the snapshot is consistent.
+   */
+  private SnapshotResponse write(
+      final Path path,
+      final long logPosition,
+      final boolean withHistory,
+      final String userFilter,
+      final Object... filterArgs
+  ) {
+    final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    final SnapshotResponse snapshot;
+    try (FileChannel channel = FileChannel.open(
+        temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+    )) {
+      channel.position(HEADER_SIZE);
+      final Output output = new Output(channel);
+      final long[] rows = snapshotTemplate.execute(status -> {
+        final long[] sectionRows = new long[SECTIONS.size()];
+        for (int i = 0; i < SECTIONS.size(); i++) {
+          final Section section = SECTIONS.get(i);
+          if (!section.history || withHistory) {
+            jdbcTemplate.query(
+                String.format(section.select, userFilter),
+                (RowCallbackHandler) row -> output.putRow(section, row),
+                section.filtered ? filterArgs : new Object[0]
+            );
+          }
+          sectionRows[i] = output.endSection();
+        }
+        return sectionRows;
+      });
+      output.drain();
+      snapshot = toResponse(path, logPosition, rows);
+
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+          .putLong(MAGIC)
+          .putInt(VERSION)
+          .putInt(SECTIONS.size())
+          .putLong(logPosition)
+          .putLong(System.currentTimeMillis());
+      for (long sectionRows : rows) {
+        header.putLong(sectionRows);
+      }
+      header.flip();
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+      channel.force(true);
+      snapshot.setBytes(channel.size());
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+    try {
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+    return snapshot;
+  }
+
+  private SnapshotResponse load(final Path path, final boolean newIds) {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final Input input = new Input(channel);
+      final ByteBuffer header = input.need(HEADER_SIZE);
+      if (header.getLong() != MAGIC || header.getInt() != VERSION || header.getInt() != SECTIONS.size()) {
+        throw new IllegalStateException(path + " is not a version " + VERSION + " points snapshot");
+      }
+      final long logPosition = header.getLong();
+      header.getLong();
+      final long[] rows = new long[SECTIONS.size()];
+      for (int i = 0; i < rows.length; i++) {
+        rows[i] = header.getLong();
+      }
+      final SnapshotResponse snapshot = toResponse(path, logPosition, rows);
+      snapshot.setBytes(channel.size());
+
+      final Map<Long, Long> newTransactionIds = new HashMap<>();
+      final Map<Long, Long> newSpendIds = new HashMap<>();
+      transactionTemplate.executeWithoutResult(status -> {
+        for (int i = 0; i < SECTIONS.size(); i++) {
+          final Section section = SECTIONS.get(i);
+          merge(input, rows[i], section.merge, in -> in.getRow(section, (column, id) -> {
+            if (!newIds) {
+              return id;
+            }
+            return column == Column.TRANSACTION_ID
+                ? newTransactionIds.computeIfAbsent(id, oldId -> transactionIds.next())
+                : newSpendIds.computeIfAbsent(id, oldId -> spendIds.next());
+          }));
+        }
+        restartIdentity("users", "user_id");
+        restartIdentity("payers", "payer_id");
+        restartPast("transactions_seq",
+            "SELECT GREATEST(COALESCE(MAX(transaction_id), 0),"
+                + " (SELECT COALESCE(MAX(transaction_id), 0) FROM transaction_history)) FROM transactions"
+        );
+        restartPast("spends_seq", "SELECT COALESCE(MAX(spend_id), 0) FROM spends");
+      });
+      return snapshot;
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+  }
+
+  private static SnapshotResponse toResponse(final Path path, final long logPosition, final long[] rows) {
+    long historyRows = 0;
+    for (int i = 0; i < SECTIONS.size(); i++) {
+      historyRows += SECTIONS.get(i).history ? rows[i] : 0;
+    }
+    return SnapshotResponse.builder()
+        .path(path.toString())
+        .logPosition(logPosition)
+        .users(rows[USERS])
+        .payers(rows[PAYERS])
+        .balances(rows[BALANCES])
+        .openLots(rows[OPEN_LOTS])
+        .historyRows(historyRows)
+        .build();
+  }
+
+  private void merge(final Input input, final long rows, final String sql, final Function<Input, Object[]> reader) {
+    final List<Object[]> batch = new ArrayList<>(BATCH_SIZE);
+    for (long row = 0; row < rows; row++) {
+      batch.add(reader.apply(input));
+      if (batch.size() == BATCH_SIZE) {
+        jdbcTemplate.batchUpdate(sql, batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      jdbcTemplate.batchUpdate(sql, batch);
+    }
+  }
+
+  private void restartIdentity(final String table, final String column) {
+    final long maxId = jdbcTemplate.queryForObject("SELECT COALESCE(MAX(" + column + "), 0) FROM " + table, Long.class);
+    jdbcTemplate.execute("ALTER TABLE " + table + " ALTER COLUMN " + column + " RESTART WITH " + (maxId + 1));
+  }
+
+  /**
+   * Moves {@code sequence} past the largest id {@code maxIdQuery} finds, as loaded rows take ids the sequence may not
+   * have handed out in this database.
+   */
+  private void restartPast(final String sequence, final String maxIdQuery) {
+    final long maxId = jdbcTemplate.queryForObject(maxIdQuery, Long.class);
+    final long nextSequenceValue = jdbcTemplate.queryForObject(
+        "SELECT CURRENT_VALUE + INCREMENT FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = ?",
+        Long.class, sequence.toUpperCase()
+    );
+    if (maxId >= nextSequenceValue) {
+      jdbcTemplate.execute("ALTER SEQUENCE " + sequence + " RESTART WITH " + (maxId + 1));
+    }
+  }
+
+  /**
+   * Buffers rows and writes them to the channel a buffer at a time, counting the rows of the current section.
+   */
+  private static class Output {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long rows;
+
+    private Output(final FileChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Writes the current row of {@code result}, whose columns are the section's in order.
+     */
+    private void putRow(final Section section, final ResultSet result) throws SQLException {
+      rows++;
+      for (int i = 0; i < section.columns.length; i++) {
+        if (section.columns[i] == Column.TEXT) {
+          putString(result.getString(i + 1));
+        } else if (section.columns[i] == Column.TIME) {
+          final Timestamp time = result.getTimestamp(i + 1);
+          reserve(Long.BYTES).putLong(time == null ? NO_TIME : time.getTime());
+        } else {
+          reserve(Long.BYTES).putLong(result.getLong(i + 1));
+        }
+      }
+    }
+
+    private void putString(final String value) {
+      if (value == null) {
+        reserve(Integer.BYTES).putInt(-1);
+        return;
+      }
+      final byte[] bytes = value.getBytes(UTF_8);
+      reserve(Integer.BYTES + bytes.length).putInt(bytes.length).put(bytes);
+    }
+
+    private long endSection() {
+      final long sectionRows = rows;
+      rows = 0;
+      return sectionRows;
+    }
+
+    private ByteBuffer reserve(final int size) {
+      if (buffer.remaining() < size) {
+        drain();
+      }
+      return buffer;
+    }
+
+    private void drain() {
+      buffer.flip();
+      try {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } catch (IOException exception) {
+        throw new UncheckedIOException(exception);
+      }
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Reads the channel a buffer at a time.
+   */
+  private static class Input {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).flip();
+
+    private Input(final FileChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * @return the buffer, holding at least {@code size} more bytes
+     */
+    private ByteBuffer need(final int size) {
+      if (buffer.remaining() < size) {
+        buffer.compact();
+        try {
+          while (buffer.position() < size) {
+            if (channel.read(buffer) < 0) {
+              throw new EOFException("Snapshot ends part way through a row");
+            }
+          }
+        } catch (IOException exception) {
+          throw new UncheckedIOException(exception);
+        }
+        buffer.flip();
+      }
+      return buffer;
+    }
+
+    /**
+     * Reads a row of {@code section} as statement parameters, passing transaction and spend ids through
+     * {@code ids}.
+     */
+    private Object[] getRow(final Section section, final BiFunction<Column, Long, Long> ids) {
+      final Object[] row = new Object[section.columns.length];
+      for (int i = 0; i < row.length; i++) {
+        switch (section.columns[i]) {
+          case TEXT:
+            row[i] = getString();
+            break;
+          case TIME:
+            final long time = need(Long.BYTES).getLong();
+            row[i] = time == NO_TIME ? null : new Timestamp(time);
+            break;
+          case TRANSACTION_ID:
+          case SPEND_ID:
+            row[i] = ids.apply(section.columns[i], need(Long.BYTES).getLong());
+            break;
+          default:
+            row[i] = need(Long.BYTES).getLong();
+        }
+      }
+      return row;
+    }
+
+    private String getString() {
+      final int length = need(Integer.BYTES).getInt();
+      if (length < 0) {
+        return null;
+      }
+      final byte[] bytes = new byte[length];
+      need(length).get(bytes);
+      return new String(bytes, UTF_8);
+    }
+  }
+
+  private enum Column {
+    LONG,
+    /** Nullable. */
+    TIME,
+    /** Nullable. */
+    TEXT,
+    /** A {@code long} that a partition snapshot re-keys on load. */
+    TRANSACTION_ID,
+    /** A {@code long} that a partition snapshot re-keys on load. */
+    SPEND_ID
+  }
+
+  /**
+   * One table's rows: the query that selects them, with {@code %s} for the user filter, the statement that merges one
+   * back, and their columns in the order both list them.
+   */
+  @AllArgsConstructor(access = AccessLevel.PRIVATE)
+  private static class Section {
+
+    private final String select;
+    private final String merge;
+    private final Column[] columns;
+    /** Selected by user; otherwise written whole. */
+    private final boolean filtered;
+    /** Only written for a partition. */
+    private final boolean history;
+
+    private static Section of(final String select, final String merge, final Column... columns) {
+      return new Section(select, merge, columns, true, false);
+    }
+
+    private Section unfiltered() {
+      return new Section(select, merge, columns, false, history);
+    }
+
+    private Section history() {
+      return new Section(select, merge, columns, filtered, true);
+    }
+  }
+}
@@ -1,8 +1,25 @@
+DROP TABLE IF EXISTS idempotency_keys;
+DROP TABLE IF EXISTS balance_checkpoints;
+DROP TABLE IF EXISTS spend_allocations;
+DROP TABLE IF EXISTS spend_deductions;
+DROP TABLE IF EXISTS spends;
+DROP TABLE IF EXISTS balance_snapshots;
+DROP TABLE IF EXISTS transaction_history;
 DROP TABLE IF EXISTS transactions;
 DROP TABLE IF EXISTS balances;
 DROP TABLE IF EXISTS payers;
 DROP TABLE IF EXISTS users;
 DROP INDEX IF EXISTS payer_name_idx;
+DROP INDEX IF EXISTS open_lots_idx;
+DROP INDEX IF EXISTS consumed_lots_idx;
+DROP INDEX IF EXISTS transaction_history_idx;
+DROP INDEX IF EXISTS transaction_time_idx;
+DROP INDEX IF EXISTS user_transactions_idx;
+DROP INDEX IF EXISTS user_transaction_history_idx;
+DROP INDEX IF EXISTS spend_time_idx;
+DROP INDEX IF EXISTS lot_allocations_idx;
+DROP SEQUENCE IF EXISTS transactions_seq;
+DROP SEQUENCE IF EXISTS spends_seq;
 
 CREATE TABLE users
 (
@@ -20,6 +37,8 @@ CREATE UNIQUE INDEX payer_name_idx on payers (payer_name);
 CREATE TABLE balances
 (
     point_balance INT,
+    version       BIGINT DEFAULT 0 NOT NULL,
+    checkpointed_through TIMESTAMP,
     user_id       INT,
     CONSTRAINT fk_user_id_balances FOREIGN KEY (user_id) REFERENCES users,
     payer_id      INT,
@@ -27,10 +46,15 @@ CREATE TABLE balances
     CONSTRAINT pk_balance_id PRIMARY KEY (user_id, payer_id)
 );
 
+CREATE SEQUENCE transactions_seq START WITH 1 INCREMENT BY 50;
+
 CREATE TABLE transactions
 (
-    transaction_id     INT AUTO_INCREMENT PRIMARY KEY,
+    transaction_id     INT PRIMARY KEY,
     transaction_points INT,
+    remaining_points   INT,
+    open_lot           BOOLEAN AS (remaining_points > 0),
+    version            BIGINT DEFAULT 0 NOT NULL,
     timestamp          TIMESTAMP,
     user_id            INT,
     CONSTRAINT fk_user_id_transactions FOREIGN KEY (user_id) REFERENCES users,
@@ -38,3 +62,87 @@ CREATE TABLE transactions
     CONSTRAINT fk_payer_id_transactions FOREIGN KEY (payer_id) REFERENCES payers,
     CONSTRAINT fk_user_payer_id_transactions FOREIGN KEY (user_id, payer_id) REFERENCES balances
 );
+CREATE INDEX open_lots_idx on transactions (user_id, open_lot, timestamp, transaction_id);
+CREATE INDEX consumed_lots_idx on transactions (open_lot, transaction_id);
+CREATE INDEX transaction_time_idx on transactions (user_id, payer_id, timestamp, transaction_id);
+CREATE INDEX user_transactions_idx on transactions (user_id, timestamp, transaction_id);
+
+CREATE TABLE transaction_history
+(
+    transaction_id     INT PRIMARY KEY,
+    transaction_points INT,
+    timestamp          TIMESTAMP,
+    archived_at        TIMESTAMP,
+    user_id            INT,
+    CONSTRAINT fk_user_id_transaction_history FOREIGN KEY (user_id) REFERENCES users,
+    payer_id           INT,
+    CONSTRAINT fk_payer_id_transaction_history FOREIGN KEY (payer_id) REFERENCES payers
+);
+CREATE INDEX transaction_history_idx on transaction_history (user_id, payer_id, timestamp, transaction_id);
+CREATE INDEX user_transaction_history_idx on transaction_history (user_id, timestamp, transaction_id);
+
+CREATE TABLE balance_snapshots
+(
+    archived_points  BIGINT,
+    archived_lots    BIGINT,
+    archived_through TIMESTAMP,
+    user_id          INT,
+    payer_id         INT,
+    CONSTRAINT fk_user_payer_id_balance_snapshots FOREIGN KEY (user_id, payer_id) REFERENCES balances,
+    CONSTRAINT pk_balance_snapshot_id PRIMARY KEY (user_id, payer_id)
+);
+
+CREATE SEQUENCE spends_seq START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE spends
+(
+    spend_id INT PRIMARY KEY,
+    spent_at TIMESTAMP,
+    user_id  INT,
+    CONSTRAINT fk_user_id_spends FOREIGN KEY (user_id) REFERENCES users
+);
+CREATE INDEX spend_time_idx on spends (user_id, spent_at);
+
+CREATE TABLE spend_deductions
+(
+    spend_id INT,
+    CONSTRAINT fk_spend_id_spend_deductions FOREIGN KEY (spend_id) REFERENCES spends,
+    payer_id INT,
+    CONSTRAINT fk_payer_id_spend_deductions FOREIGN KEY (payer_id) REFERENCES payers,
+    points   INT,
+    CONSTRAINT pk_spend_deduction_id PRIMARY KEY (spend_id, payer_id)
+);
+
+-- No foreign key to transactions, as consumed lots move to transaction_history
+CREATE TABLE spend_allocations
+(
+    spend_id       INT,
+    CONSTRAINT fk_spend_id_spend_allocations FOREIGN KEY (spend_id) REFERENCES spends,
+    transaction_id INT,
+    points         INT,
+    CONSTRAINT pk_spend_allocation_id PRIMARY KEY (spend_id, transaction_id)
+);
+CREATE INDEX lot_allocations_idx on spend_allocations (transaction_id);
+
+CREATE TABLE balance_checkpoints
+(
+    as_of           TIMESTAMP,
+    point_balance   INT,
+    balance_version BIGINT,
+    user_id         INT,
+    payer_id        INT,
+    CONSTRAINT fk_user_payer_id_balance_checkpoints FOREIGN KEY (user_id, payer_id) REFERENCES balances,
+    CONSTRAINT pk_balance_checkpoint_id PRIMARY KEY (user_id, payer_id, as_of)
+);
+
+CREATE TABLE idempotency_keys
+(
+    user_id         INT,
+    CONSTRAINT fk_user_id_idempotency_keys FOREIGN KEY (user_id) REFERENCES users,
+    operation       VARCHAR(32),
+    idempotency_key VARCHAR(255),
+    request_hash    BIGINT NOT NULL,
+    response        VARCHAR NOT NULL,
+    created_at      TIMESTAMP,
+    CONSTRAINT pk_idempotency_key PRIMARY KEY (user_id, operation, idempotency_key)
+);
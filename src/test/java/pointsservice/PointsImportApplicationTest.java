@@ -0,0 +1,41 @@
+package pointsservice;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PointsImportApplicationTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void main_NdjsonFile_PrintsImportResponse() throws Exception {
+    final Path receipts = Files.writeString(directory.resolve("receipts.ndjson"), String.join("\n",
+        "{\"userId\": 1, \"payer\": \"DANNON\", \"points\": 300, \"timestamp\": \"2020-10-31T10:00:00Z\"}",
+        "{\"userId\": 1, \"payer\": \"DANNON\", \"points\": \"many\", \"timestamp\": \"2020-10-31T11:00:00Z\"}",
+        "{\"userId\": 1, \"payer\": \"UNILEVER\", \"points\": 200, \"timestamp\": 1604142000000}"
+    ));
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final PrintStream systemOut = System.out;
+    System.setOut(new PrintStream(output, true, StandardCharsets.UTF_8));
+    try {
+      PointsImportApplication.main(new String[]{
+          "--spring.datasource.url=jdbc:h2:mem:points_import_db",
+          "--points.compaction.enabled=false",
+          receipts.toString()
+      });
+    } finally {
+      System.setOut(systemOut);
+    }
+
+    assertThat(output.toString(StandardCharsets.UTF_8))
+        .contains(receipts + ": ImportResponse(linesRead=3, transactionsApplied=2, transactionsRejected=1");
+  }
+}
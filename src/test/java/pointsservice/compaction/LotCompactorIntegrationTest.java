@@ -0,0 +1,138 @@
+package pointsservice.compaction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import pointsservice.model.entity.UserEntity;
+import pointsservice.model.request.TransactionRequest;
+import pointsservice.model.request.TransactionCursor;
+import pointsservice.model.request.UserSpendRequest;
+import pointsservice.model.response.TransactionPageResponse;
+import pointsservice.model.response.UserSpendResponse;
+import pointsservice.model.response.UserTransactionResponse;
+import pointsservice.repository.UserRepository;
+import pointsservice.service.PointsService;
+
+@ActiveProfiles({"unit"})
+@SpringBootTest(properties = "points.compaction.enabled=false")
+class LotCompactorIntegrationTest {
+
+  private static final Instant EPOCH = Instant.parse("2020-10-01T00:00:00Z");
+
+  @Autowired
+  private LotCompactor lotCompactor;
+  @Autowired
+  private PointsService pointsService;
+  @Autowired
+  private UserRepository userRepository;
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  @Test
+  void compact_ConsumedLots_MovedToHistoryAndFoldedIntoSnapshots() {
+    final Long userId = userRepository.save(UserEntity.builder().userName("COMPACTED").build()).getUserId();
+    pointsService.addTransaction(userId, new TransactionRequest("DANNON", 100L, Date.from(EPOCH)));
+    pointsService.addTransaction(userId, new TransactionRequest("UNILEVER", 200L, Date.from(EPOCH.plusSeconds(60))));
+    pointsService.addTransaction(userId, new TransactionRequest("DANNON", 300L, Date.from(EPOCH.plusSeconds(120))));
+    pointsService.spendPoints(userId, new UserSpendRequest(350L));
+
+    lotCompactor.compact();
+
+    assertThat(jdbcTemplate.queryForList(
+        "SELECT transaction_points, remaining_points FROM transactions WHERE user_id = ?", userId
+    )).extracting(row -> row.get("TRANSACTION_POINTS"), row -> row.get("REMAINING_POINTS"))
+        .containsExactly(tuple(300, 250));
+    assertThat(jdbcTemplate.queryForList(
+        "SELECT transaction_points FROM transaction_history WHERE user_id = ? ORDER BY timestamp", Integer.class, userId
+    )).containsExactly(100, 200);
+    assertThat(jdbcTemplate.queryForList(
+        "SELECT p.payer_name, s.archived_points, s.archived_lots FROM balance_snapshots s"
+            + " JOIN payers p ON p.payer_id = s.payer_id WHERE s.user_id = ? ORDER BY p.payer_name", userId
+    )).extracting(row -> row.get("PAYER_NAME"), row -> row.get("ARCHIVED_POINTS"), row -> row.get("ARCHIVED_LOTS"))
+        .containsExactly(tuple("DANNON", 100L, 1L), tuple("UNILEVER", 200L, 1L));
+    assertThat(transactionPages(userId, 1))
+        .extracting(
+            UserTransactionResponse::getPayerName,
+            UserTransactionResponse::getTransactionPoints,
+            UserTransactionResponse::getRemainingPoints
+        )
+        .containsExactly(tuple("DANNON", 100L, 0L), tuple("UNILEVER", 200L, 0L), tuple("DANNON", 300L, 250L));
+
+    assertThat(pointsService.spendPoints(userId, new UserSpendRequest(250L)))
+        .containsExactly(new UserSpendResponse("DANNON", -250L));
+    assertThat(pointsService.getPointsBalance(userId).getPayerBalances())
+        .isEqualTo(Map.of("DANNON", 0L, "UNILEVER", 0L));
+  }
+
+  @Test
+  void compact_ConcurrentSpends_ConservePoints() {
+    final Long userId = userRepository.save(UserEntity.builder().userName("COMPACTED_WHILE_SPENDING").build()).getUserId();
+    final AtomicBoolean spending = new AtomicBoolean(true);
+    final CompletableFuture<Void> compaction = CompletableFuture.runAsync(() -> {
+      while (spending.get()) {
+        lotCompactor.compact();
+      }
+    });
+
+    long earned = 0;
+    long spent = 0;
+    for (int i = 0; i < 200; i++) {
+      pointsService.addTransaction(userId, new TransactionRequest(
+          i % 2 == 0 ? "DANNON" : "MILLER_COORS", 10L, Date.from(EPOCH.plus(i, ChronoUnit.MINUTES))
+      ));
+      earned += 10;
+      pointsService.spendPoints(userId, new UserSpendRequest(7L));
+      spent += 7;
+    }
+    spending.set(false);
+    compaction.join();
+    lotCompactor.compact();
+
+    final long remaining = jdbcTemplate.queryForObject(
+        "SELECT SUM(remaining_points) FROM transactions WHERE user_id = ?", Long.class, userId
+    );
+    final long archived = jdbcTemplate.queryForObject(
+        "SELECT SUM(archived_points) FROM balance_snapshots WHERE user_id = ?", Long.class, userId
+    );
+    final long lots = jdbcTemplate.queryForObject(
+        "SELECT SUM(archived_lots) FROM balance_snapshots WHERE user_id = ?", Long.class, userId
+    ) + jdbcTemplate.queryForObject("SELECT COUNT(*) FROM transactions WHERE user_id = ?", Long.class, userId);
+    assertThat(remaining).isEqualTo(earned - spent);
+    assertThat(jdbcTemplate.queryForObject(
+        "SELECT COUNT(*) FROM transactions WHERE user_id = ? AND remaining_points = 0", Long.class, userId
+    )).isZero();
+    assertThat(lots).isEqualTo(200);
+    assertThat(archived).isEqualTo(jdbcTemplate.queryForObject(
+        "SELECT SUM(transaction_points) FROM transaction_history WHERE user_id = ?", Long.class, userId
+    ));
+    assertThat(pointsService.getPointsBalance(userId).getPayerBalances().values().stream().mapToLong(Long::longValue).sum())
+        .isEqualTo(earned - spent);
+  }
+
+  /**
+   * Every transaction of the user's, read a page of {@code limit} at a time.
+   */
+  private List<UserTransactionResponse> transactionPages(final Long userId, final int limit) {
+    final List<UserTransactionResponse> transactions = new ArrayList<>();
+    TransactionCursor after = null;
+    do {
+      final TransactionPageResponse page = pointsService.getTransactions(userId, null, null, null, after, limit);
+      transactions.addAll(page.getTransactions());
+      after = page.getNext();
+    } while (after != null);
+    return transactions;
+  }
+}
@@ -1,31 +1,41 @@
 package pointsservice.controller;
 
+import static org.hamcrest.Matchers.contains;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.time.Instant;
 import java.util.Date;
+import java.util.List;
 import javax.servlet.ServletContext;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.mock.web.MockServletContext;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.context.WebApplicationContext;
+import pointsservice.model.request.BulkSpendRequest;
+import pointsservice.model.request.BulkTransactionRequest;
 import pointsservice.model.request.TransactionRequest;
 import pointsservice.model.request.UserSpendRequest;
 import pointsservice.service.PointsService;
@@ -157,4 +167,294 @@ class PointsControllerIntegrationTest {
         .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(requestBody)))
         .andExpect(status().isBadRequest());
   }
+
+  @Test
+  void addTransactions_Valid_200() throws Exception {
+    var requestBody = List.of(
+        new TransactionRequest("DANNON", 1000L, Date.from(Instant.parse("2020-11-02T14:00:00Z"))),
+        new TransactionRequest("UNILEVER", 200L, Date.from(Instant.parse("2020-10-31T11:00:00Z")))
+    );
+    mockMvc.perform(post(POINTS_URL + "/1/transactions")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(requestBody)))
+        .andExpect(status().isOk());
+  }
+
+  @Test
+  void addTransactions_ReversalExceedsPayerLots_418AndNothingApplied() throws Exception {
+    var before = mockMvc.perform(get(POINTS_URL + "/1"))
+        .andExpect(status().isOk())
+        .andReturn().getResponse().getContentAsString();
+    var requestBody = List.of(
+        new TransactionRequest("UNILEVER", 10L, Date.from(Instant.parse("2020-11-06T10:00:00Z"))),
+        new TransactionRequest("UNILEVER", -1_000_000L, Date.from(Instant.parse("2020-11-06T11:00:00Z")))
+    );
+    mockMvc.perform(post(POINTS_URL + "/1/transactions")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(requestBody)))
+        .andExpect(status().isIAmATeapot());
+    mockMvc.perform(get(POINTS_URL + "/1"))
+        .andExpect(status().isOk())
+        .andExpect(content().json(before, true));
+  }
+
+  @Test
+  void addTransactions_NullTimestamp_400() throws Exception {
+    var requestBody = List.of(new TransactionRequest("DANNON", 1000L, null));
+    mockMvc.perform(post(POINTS_URL + "/1/transactions")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(requestBody)))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  void addTransactionsNdjson_Valid_200() throws Exception {
+    var requestBody = mapper.writeValueAsString(new TransactionRequest("DANNON", 1000L, Date.from(Instant.parse("2020-11-02T14:00:00Z"))))
+        + "\n" + mapper.writeValueAsString(new TransactionRequest("UNILEVER", 200L, Date.from(Instant.parse("2020-10-31T11:00:00Z"))));
+    mockMvc.perform(post(POINTS_URL + "/1/transactions")
+        .contentType(APPLICATION_NDJSON).content(requestBody))
+        .andExpect(status().isOk());
+  }
+
+  @Test
+  void addTransactionsNdjson_MalformedLine_400() throws Exception {
+    mockMvc.perform(post(POINTS_URL + "/1/transactions")
+        .contentType(APPLICATION_NDJSON).content("{\"payer\": \"DANNON\", \"points\": "))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  void addTransactionsForUsers_Valid_200() throws Exception {
+    var requestBody = List.of(
+        new BulkTransactionRequest(2L, List.of(new TransactionRequest("DANNON", 1000L, Date.from(Instant.parse("2020-11-02T14:00:00Z"))))),
+        new BulkTransactionRequest(3L, List.of(new TransactionRequest("UNILEVER", 200L, Date.from(Instant.parse("2020-10-31T11:00:00Z")))))
+    );
+    mockMvc.perform(post("/points/users/transactions")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(requestBody)))
+        .andExpect(status().isOk());
+  }
+
+  @Test
+  void addTransactionsForUsersNdjson_UserNotFound_404() throws Exception {
+    mockMvc.perform(post("/points/users/transactions")
+        .contentType(APPLICATION_NDJSON).content("{\"userId\": 9999, \"payer\": \"DANNON\", \"points\": 10, \"timestamp\": \"2020-11-02T14:00:00Z\"}"))
+        .andExpect(status().isNotFound());
+  }
+
+  @Test
+  void importTransactions_MixedLines_200() throws Exception {
+    var file = new MockMultipartFile("file", "receipts.ndjson", "application/x-ndjson", String.join("\n",
+        "{\"userId\": 4, \"payer\": \"DANNON\", \"points\": 300, \"timestamp\": \"2020-10-31T10:00:00Z\"}",
+        "{\"userId\": 4, \"payer\": \"DANNON\", \"points\": \"many\", \"timestamp\": \"2020-10-31T11:00:00Z\"}",
+        "{\"userId\": 4, \"payer\": \"UNILEVER\", \"timestamp\": \"2020-10-31T11:00:00Z\"}",
+        "{\"userId\": 9999, \"payer\": \"DANNON\", \"points\": 10, \"timestamp\": \"2020-10-31T12:00:00Z\"}",
+        "{\"userId\": 4, \"payer\": \"UNILEVER\", \"points\": 200, \"timestamp\": 1604142000000}"
+    ).getBytes());
+    mockMvc.perform(multipart("/points/users/import").file(file))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.linesRead").value(5))
+        .andExpect(jsonPath("$.transactionsApplied").value(2))
+        .andExpect(jsonPath("$.transactionsRejected").value(3));
+  }
+
+  @Test
+  void spendPoints_Valid_PublishesSpendMetrics() throws Exception {
+    var earn = new TransactionRequest("DANNON", 300L, Date.from(Instant.parse("2020-11-02T14:00:00Z")));
+    mockMvc.perform(post(POINTS_URL + "/5")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(earn)))
+        .andExpect(status().isOk());
+    mockMvc.perform(patch(POINTS_URL + "/5")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(new UserSpendRequest(100L))))
+        .andExpect(status().isOk());
+
+    mockMvc.perform(get("/actuator/metrics/points.spend.lots.scanned"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.measurements[0].statistic").value("COUNT"));
+    mockMvc.perform(get("/actuator/metrics/points.service").param("tag", "operation:spendPoints"))
+        .andExpect(status().isOk());
+    mockMvc.perform(get("/actuator/metrics/points.sql.statements").param("tag", "method:PATCH"))
+        .andExpect(status().isOk());
+  }
+
+  @Test
+  void addTransaction_RepeatedIdempotencyKey_AppliedOnce() throws Exception {
+    var earn = mapper.writeValueAsString(
+        new TransactionRequest("UNILEVER", 250L, Date.from(Instant.parse("2020-11-03T14:00:00Z")))
+    );
+    var first = mockMvc.perform(post(POINTS_URL + "/4").header("Idempotency-Key", "earn-1")
+        .contentType(APPLICATION_JSON).content(earn))
+        .andExpect(status().isOk())
+        .andReturn().getResponse().getContentAsString();
+    var totalPoints = mapper.readTree(first).get("totalPoints").asLong();
+
+    mockMvc.perform(post(POINTS_URL + "/4").header("Idempotency-Key", "earn-1")
+        .contentType(APPLICATION_JSON).content(earn))
+        .andExpect(status().isOk())
+        .andExpect(content().json(first, true));
+    mockMvc.perform(get(POINTS_URL + "/4"))
+        .andExpect(jsonPath("$.UNILEVER").value(totalPoints));
+
+    mockMvc.perform(post(POINTS_URL + "/4").header("Idempotency-Key", "earn-2")
+        .contentType(APPLICATION_JSON).content(earn))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.totalPoints").value(totalPoints + 250));
+  }
+
+  @Test
+  void spendPoints_RepeatedIdempotencyKey_AppliedOnce() throws Exception {
+    var earn = new TransactionRequest("MILLER_COORS", 400L, Date.from(Instant.parse("2020-11-03T15:00:00Z")));
+    mockMvc.perform(post(POINTS_URL + "/4")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(earn)))
+        .andExpect(status().isOk());
+    var spend = mapper.writeValueAsString(new UserSpendRequest(50L));
+    var first = mockMvc.perform(patch(POINTS_URL + "/4").header("Idempotency-Key", "spend-1")
+        .contentType(APPLICATION_JSON).content(spend))
+        .andExpect(status().isOk())
+        .andReturn().getResponse().getContentAsString();
+    var balance = mockMvc.perform(get(POINTS_URL + "/4"))
+        .andReturn().getResponse().getContentAsString();
+
+    mockMvc.perform(patch(POINTS_URL + "/4").header("Idempotency-Key", "spend-1")
+        .contentType(APPLICATION_JSON).content(spend))
+        .andExpect(status().isOk())
+        .andExpect(content().json(first));
+    mockMvc.perform(get(POINTS_URL + "/4"))
+        .andExpect(content().json(balance, true));
+  }
+
+  @Test
+  void spendPoints_IdempotencyKeyReusedWithAnotherRequest_ReturnsUnprocessableEntity() throws Exception {
+    var earn = new TransactionRequest("MILLER_COORS", 400L, Date.from(Instant.parse("2020-11-03T16:00:00Z")));
+    mockMvc.perform(post(POINTS_URL + "/4")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(earn)))
+        .andExpect(status().isOk());
+    mockMvc.perform(patch(POINTS_URL + "/4").header("Idempotency-Key", "spend-2")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(new UserSpendRequest(50L))))
+        .andExpect(status().isOk());
+    var balance = mockMvc.perform(get(POINTS_URL + "/4"))
+        .andReturn().getResponse().getContentAsString();
+
+    mockMvc.perform(patch(POINTS_URL + "/4").header("Idempotency-Key", "spend-2")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(new UserSpendRequest(60L))))
+        .andExpect(status().isUnprocessableEntity());
+    mockMvc.perform(get(POINTS_URL + "/4"))
+        .andExpect(content().json(balance, true));
+  }
+
+  @Test
+  void quoteSpend_Valid_MatchesLaterSpendWithoutSpending() throws Exception {
+    var earn = new TransactionRequest("UNILEVER", 200L, Date.from(Instant.parse("2020-11-02T16:00:00Z")));
+    mockMvc.perform(post(POINTS_URL + "/5")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(earn)))
+        .andExpect(status().isOk());
+    var balance = mockMvc.perform(get(POINTS_URL + "/5"))
+        .andReturn().getResponse().getContentAsString();
+
+    var quote = mockMvc.perform(get(POINTS_URL + "/5/quote").param("points", "150"))
+        .andExpect(status().isOk())
+        .andReturn().getResponse().getContentAsString();
+    mockMvc.perform(get(POINTS_URL + "/5"))
+        .andExpect(content().json(balance, true));
+    mockMvc.perform(patch(POINTS_URL + "/5")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(new UserSpendRequest(150L))))
+        .andExpect(status().isOk())
+        .andExpect(content().json(quote));
+
+    mockMvc.perform(get(POINTS_URL + "/5/quote").param("points", "1000000000"))
+        .andExpect(status().isIAmATeapot());
+    mockMvc.perform(get(POINTS_URL + "/5/quote").param("points", "-1"))
+        .andExpect(status().isBadRequest());
+    mockMvc.perform(get("/points/user/99999/quote").param("points", "1"))
+        .andExpect(status().isNotFound());
+  }
+
+  @Test
+  void getTransactions_PagedAndFiltered_200() throws Exception {
+    for (var earn : List.of(
+        new TransactionRequest("UNILEVER", 10L, Date.from(Instant.parse("2019-01-01T00:00:00Z"))),
+        new TransactionRequest("MILLER_COORS", 20L, Date.from(Instant.parse("2019-01-02T00:00:00Z"))),
+        new TransactionRequest("UNILEVER", 30L, Date.from(Instant.parse("2019-01-03T00:00:00Z")))
+    )) {
+      mockMvc.perform(post(POINTS_URL + "/3")
+          .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(earn)))
+          .andExpect(status().isOk());
+    }
+
+    var first = mockMvc.perform(get(POINTS_URL + "/3/transactions")
+        .param("from", "2019-01-01T00:00:00Z").param("until", "2020-01-01T00:00:00Z").param("limit", "2"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.transactions[*].payer").value(contains("UNILEVER", "MILLER_COORS")))
+        .andExpect(jsonPath("$.transactions[*].transactionPoints").value(contains(10, 20)))
+        .andReturn().getResponse().getContentAsString();
+    mockMvc.perform(get(POINTS_URL + "/3/transactions")
+        .param("from", "2019-01-01T00:00:00Z").param("until", "2020-01-01T00:00:00Z").param("limit", "2")
+        .param("after", mapper.readTree(first).get("next").asText()))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.transactions[*].transactionPoints").value(contains(30)))
+        .andExpect(jsonPath("$.next").doesNotExist());
+    mockMvc.perform(get(POINTS_URL + "/3/transactions").param("payer", "UNILEVER")
+        .param("from", "2019-01-01T00:00:00Z").param("until", "2020-01-01T00:00:00Z"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.transactions[*].transactionPoints").value(contains(10, 30)));
+
+    mockMvc.perform(get(POINTS_URL + "/3/transactions").param("limit", "0"))
+        .andExpect(status().isBadRequest());
+    mockMvc.perform(get(POINTS_URL + "/3/transactions").param("after", "yesterday"))
+        .andExpect(status().isBadRequest());
+    mockMvc.perform(get("/points/user/99999/transactions"))
+        .andExpect(status().isNotFound());
+  }
+
+  @Test
+  void getPointsBalance_AsOf_200() throws Exception {
+    var earn = new TransactionRequest("DANNON", 100L, Date.from(Instant.parse("2020-11-04T00:00:00Z")));
+    mockMvc.perform(post(POINTS_URL + "/3")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(earn)))
+        .andExpect(status().isOk());
+
+    mockMvc.perform(get(POINTS_URL + "/3").param("asOf", "2020-11-03T00:00:00Z"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.DANNON").value(0));
+    mockMvc.perform(get(POINTS_URL + "/3").param("asOf", "2020-11-05T00:00:00Z"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.DANNON").value(100));
+    mockMvc.perform(get("/points/user/99999").param("asOf", "2020-11-05T00:00:00Z"))
+        .andExpect(status().isNotFound());
+  }
+
+  @Test
+  void spendPointsForUsers_MixedBalances_200() throws Exception {
+    var earns = List.of(
+        new BulkTransactionRequest(1L, List.of(new TransactionRequest("MILLER_COORS", 500L, Date.from(Instant.parse("2020-11-05T10:00:00Z"))))),
+        new BulkTransactionRequest(2L, List.of(new TransactionRequest("MILLER_COORS", 50L, Date.from(Instant.parse("2020-11-05T11:00:00Z")))))
+    );
+    mockMvc.perform(post("/points/users/transactions")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(earns)))
+        .andExpect(status().isOk());
+    var before = mapper.readTree(mockMvc.perform(get(POINTS_URL + "/1"))
+        .andReturn().getResponse().getContentAsString());
+
+    var spends = List.of(
+        new BulkSpendRequest(1L, 20L),
+        new BulkSpendRequest(9999L, 10L),
+        new BulkSpendRequest(2L, 1_000_000L),
+        new BulkSpendRequest(1L, 0L)
+    );
+    mockMvc.perform(patch("/points/users")
+        .contentType(APPLICATION_JSON).content(mapper.writeValueAsString(spends)))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.length()").value(4))
+        .andExpect(jsonPath("$[0].userId").value(1))
+        .andExpect(jsonPath("$[0].error").isEmpty())
+        .andExpect(jsonPath("$[1].userId").value(9999))
+        .andExpect(jsonPath("$[1].error").value("User 9999 not found"))
+        .andExpect(jsonPath("$[2].userId").value(2))
+        .andExpect(jsonPath("$[2].error").value("Insufficient funds for requested 1000000 points"))
+        .andExpect(jsonPath("$[3].spent").isEmpty());
+
+    var after = mapper.readTree(mockMvc.perform(get(POINTS_URL + "/1"))
+        .andReturn().getResponse().getContentAsString());
+    long spent = 0;
+    for (var payer : List.of("DANNON", "UNILEVER", "MILLER_COORS")) {
+      spent += before.path(payer).asLong() - after.path(payer).asLong();
+    }
+    assertEquals(20, spent);
+  }
 }
@@ -0,0 +1,55 @@
+package pointsservice.engine;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AppendLogTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void truncateAt_NewerMutationsAppended_DropsOnlyWhatTheDatabaseHas() throws Exception {
+    final Path path = directory.resolve("points-engine.log");
+    final List<Mutation> mutations = LongStream.range(0, 30)
+        .mapToObj(i -> Mutation.lot(i, i))
+        .collect(Collectors.toList());
+    try (AppendLog log = new AppendLog(path, 0)) {
+      final long written = log.append(mutations.subList(0, 20));
+      log.append(mutations.subList(20, 25));
+      log.truncateAt(written);
+      final long size = Files.size(path);
+      log.awaitDurable(log.append(mutations.subList(25, 30)));
+
+      assertThat(log.position()).isGreaterThan(Files.size(path));
+      assertThat(Files.size(path)).isEqualTo(2 * size);
+      assertThat(log.readFrom(0)).containsExactlyElementsOf(mutations.subList(20, 30));
+    }
+    try (AppendLog log = new AppendLog(path, 0)) {
+      assertThat(log.readFrom(0)).containsExactlyElementsOf(mutations.subList(20, 30));
+      log.truncateAt(log.position());
+      assertThat(log.readFrom(0)).isEmpty();
+    }
+  }
+
+  @Test
+  void truncateAt_LittleToDrop_KeepsTheFile() throws Exception {
+    final Path path = directory.resolve("points-engine.log");
+    try (AppendLog log = new AppendLog(path)) {
+      final long written = log.append(List.of(Mutation.lot(1, 1)));
+      log.append(List.of(Mutation.lot(2, 2)));
+      final long size = Files.size(path);
+      log.truncateAt(written);
+
+      assertThat(Files.size(path)).isEqualTo(size);
+      assertThat(log.readFrom(0)).containsExactly(Mutation.lot(1, 1), Mutation.lot(2, 2));
+    }
+  }
+}
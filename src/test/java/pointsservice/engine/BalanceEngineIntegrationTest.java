@@ -0,0 +1,212 @@
+package pointsservice.engine;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.transaction.support.TransactionTemplate;
+import pointsservice.configuration.PointsProperties;
+import pointsservice.error.model.IdempotencyKeyReusedException;
+import pointsservice.error.model.InsufficientBalanceException;
+import pointsservice.ingest.ImportPipeline;
+import pointsservice.model.entity.BalanceEntity;
+import pointsservice.model.entity.TransactionEntity;
+import pointsservice.model.entity.UserEntity;
+import pointsservice.model.request.BulkTransactionRequest;
+import pointsservice.model.request.TransactionRequest;
+import pointsservice.model.request.UserSpendRequest;
+import pointsservice.model.response.ImportResponse;
+import pointsservice.model.response.UserSpendResponse;
+import pointsservice.repository.BalanceRepository;
+import pointsservice.repository.TransactionRepository;
+import pointsservice.repository.UserRepository;
+import pointsservice.service.PointsService;
+import pointsservice.snapshot.SnapshotStore;
+
+@ActiveProfiles({"test"})
+@SpringBootTest
+class BalanceEngineIntegrationTest {
+
+  private static final long USER_ID = 5;
+  private static final int BATCH_SIZE = 3;
+  private static final long DANNON_ID = 11;
+  /**
+   * More than there are users, so each partition holds at most one.
+   */
+  private static final int PARTITIONS = 1_000_000;
+
+  @Autowired
+  private PointsService pointsService;
+  @Autowired
+  private BalanceEngine balanceEngine;
+  @Autowired
+  private BalanceRepository balanceRepository;
+  @Autowired
+  private TransactionRepository transactionRepository;
+  @Autowired
+  private UserRepository userRepository;
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+  @Autowired
+  private TransactionTemplate transactionTemplate;
+  @Autowired
+  private SnapshotStore snapshotStore;
+  @Autowired
+  private PointsProperties properties;
+  @Autowired
+  private ImportPipeline importPipeline;
+
+  @DynamicPropertySource
+  static void engineProperties(final DynamicPropertyRegistry registry) throws IOException {
+    registry.add("points.engine.mode", () -> "memory");
+    registry.add("points.engine.batch-size", () -> BATCH_SIZE);
+    registry.add("points.engine.log-path", Files.createTempFile("balance-engine", ".log")::toString);
+    registry.add("points.ingest.partitions", () -> 1);
+  }
+
+  @Test
+  void spendPoints_MemoryMode_ServesFromMemoryAndWritesBehind() throws Exception {
+    pointsService.addTransaction(USER_ID, new TransactionRequest("DANNON", 300L, Date.from(Instant.parse("2020-10-31T10:00:00Z"))));
+    pointsService.addTransaction(USER_ID, new TransactionRequest("UNILEVER", 200L, Date.from(Instant.parse("2020-10-31T11:00:00Z"))));
+    pointsService.addTransaction(USER_ID, new TransactionRequest("DANNON", -200L, Date.from(Instant.parse("2020-10-31T15:00:00Z"))));
+    pointsService.addTransaction(USER_ID, new TransactionRequest("MILLER_COORS", 10000L, Date.from(Instant.parse("2020-11-01T14:00:00Z"))));
+    pointsService.addTransaction(USER_ID, new TransactionRequest("DANNON", 1000L, Date.from(Instant.parse("2020-11-02T14:00:00Z"))));
+
+    assertThat(pointsService.spendPoints(USER_ID, new UserSpendRequest(5000L))).containsExactlyInAnyOrder(
+        new UserSpendResponse("DANNON", -100L),
+        new UserSpendResponse("UNILEVER", -200L),
+        new UserSpendResponse("MILLER_COORS", -4700L)
+    );
+    assertThatThrownBy(() -> pointsService.spendPoints(USER_ID, new UserSpendRequest(7000L)))
+        .isInstanceOf(InsufficientBalanceException.class);
+    assertThat(pointsService.getPointsBalance(USER_ID).getPayerBalances())
+        .isEqualTo(Map.of("DANNON", 1000L, "UNILEVER", 0L, "MILLER_COORS", 5300L));
+
+    balanceEngine.flush();
+
+    assertThat(balanceRepository.findAllByUserUserId(USER_ID))
+        .extracting(balance -> balance.getPayer().getPayerName(), BalanceEntity::getPointBalance)
+        .containsExactlyInAnyOrder(tuple("DANNON", 1000L), tuple("UNILEVER", 0L), tuple("MILLER_COORS", 5300L));
+    assertThat(transactionRepository.findAll())
+        .filteredOn(transaction -> transaction.getUserId() == USER_ID)
+        .extracting(TransactionEntity::getTransactionPoints, TransactionEntity::getRemainingPoints)
+        .containsExactlyInAnyOrder(
+            tuple(300L, 0L), tuple(200L, 0L), tuple(-200L, 0L), tuple(10000L, 5300L), tuple(1000L, 1000L)
+        );
+    assertThat(jdbcTemplate.queryForList(
+        "SELECT t.transaction_points, a.points FROM spend_allocations a"
+            + " JOIN spends s ON s.spend_id = a.spend_id JOIN transactions t ON t.transaction_id = a.transaction_id"
+            + " WHERE s.user_id = ?", USER_ID
+    )).extracting(row -> row.get("TRANSACTION_POINTS"), row -> row.get("POINTS"))
+        .containsExactlyInAnyOrder(tuple(300, 100), tuple(200, 200), tuple(10000, 4700));
+  }
+
+  @Test
+  void replay_PartitionMovedAway_DeletesItsUsersInsteadOfRestoringThem() throws Exception {
+    final long userId = userRepository.save(UserEntity.builder().userName("MOVED").build()).getUserId();
+    final long transactionId = jdbcTemplate.queryForObject("SELECT NEXT VALUE FOR transactions_seq", Long.class);
+    final WriteBehindWriter writer = new WriteBehindWriter(
+        new AppendLog(Files.createTempFile("moved", ".log")),
+        jdbcTemplate,
+        transactionTemplate,
+        snapshotStore,
+        properties.getEngine()
+    );
+
+    writer.replay(List.of(
+        Mutation.balance(userId, DANNON_ID, 100),
+        Mutation.earn(transactionId, userId, DANNON_ID, 100, Instant.parse("2020-10-31T10:00:00Z").toEpochMilli()),
+        Mutation.moved(Math.toIntExact(userId), PARTITIONS)
+    ));
+    writer.flush();
+
+    assertThat(userRepository.existsById(userId)).isFalse();
+    assertThat(jdbcTemplate.queryForObject(
+        "SELECT COUNT(*) FROM transactions WHERE transaction_id = ?", Long.class, transactionId
+    )).isZero();
+  }
+
+  @Test
+  void addTransactions_OneReversalUncovered_AppliesNoUserAndImportAppliesTheOthersOnce() throws Exception {
+    final long earningUserId = userRepository.save(UserEntity.builder().userName("EARNING").build()).getUserId();
+    final long reversingUserId = userRepository.save(UserEntity.builder().userName("REVERSING").build()).getUserId();
+    final Date timestamp = Date.from(Instant.parse("2020-10-31T10:00:00Z"));
+
+    assertThatThrownBy(() -> pointsService.addTransactions(List.of(
+        new BulkTransactionRequest(earningUserId, List.of(new TransactionRequest("DANNON", 300L, timestamp))),
+        new BulkTransactionRequest(reversingUserId, List.of(new TransactionRequest("DANNON", -100L, timestamp)))
+    ))).isInstanceOf(InsufficientBalanceException.class);
+    assertThat(pointsService.getPointsBalance(earningUserId).getPayerBalances()).isEmpty();
+
+    final ImportResponse imported = importPipeline.importTransactions(new ByteArrayInputStream(String.join("\n",
+        "{\"userId\": " + earningUserId + ", \"payer\": \"DANNON\", \"points\": 300, \"timestamp\": \"2020-10-31T10:00:00Z\"}",
+        "{\"userId\": " + reversingUserId + ", \"payer\": \"DANNON\", \"points\": -100, \"timestamp\": \"2020-10-31T10:00:00Z\"}"
+    ).getBytes(StandardCharsets.UTF_8)));
+    balanceEngine.flush();
+
+    assertThat(imported.getTransactionsApplied()).isEqualTo(1);
+    assertThat(imported.getTransactionsRejected()).isEqualTo(1);
+    assertThat(pointsService.getPointsBalance(earningUserId).getPayerBalances()).isEqualTo(Map.of("DANNON", 300L));
+    assertThat(pointsService.getPointsBalance(reversingUserId).getPayerBalances()).isEmpty();
+    assertThat(transactionRepository.findAll())
+        .filteredOn(transaction -> transaction.getUserId() == earningUserId || transaction.getUserId() == reversingUserId)
+        .extracting(TransactionEntity::getUserId, TransactionEntity::getTransactionPoints)
+        .containsExactly(tuple(earningUserId, 300L));
+  }
+
+  @Test
+  void spendPoints_IdempotencyKey_RepliesFromTheEngineAndRejectsAnotherRequest() throws Exception {
+    final long userId = userRepository.save(UserEntity.builder().userName("IDEMPOTENT").build()).getUserId();
+    pointsService.addTransaction(userId, new TransactionRequest("DANNON", 300L, Date.from(Instant.parse("2020-10-31T10:00:00Z"))));
+
+    final var spent = pointsService.spendPoints(userId, new UserSpendRequest(100L), "spend-1");
+    assertThat(pointsService.spendPoints(userId, new UserSpendRequest(100L), "spend-1")).isEqualTo(spent);
+    assertThatThrownBy(() -> pointsService.spendPoints(userId, new UserSpendRequest(150L), "spend-1"))
+        .isInstanceOf(IdempotencyKeyReusedException.class);
+    balanceEngine.flush();
+
+    assertThat(pointsService.getPointsBalance(userId).getPayerBalances()).isEqualTo(Map.of("DANNON", 200L));
+    assertThat(jdbcTemplate.queryForObject(
+        "SELECT COUNT(*) FROM idempotency_keys WHERE user_id = ? AND idempotency_key = 'spend-1'", Long.class, userId
+    )).isEqualTo(1L);
+    assertThat(pointsService.spendPoints(userId, new UserSpendRequest(100L), "spend-1")).isEqualTo(spent);
+  }
+
+  @Test
+  void spendPoints_MoreLotsThanFitInABatch_WritesBehind() throws Exception {
+    final long userId = 4;
+    for (int day = 1; day <= BATCH_SIZE * 2; day++) {
+      pointsService.addTransaction(userId, new TransactionRequest(
+          "UNILEVER", 100L, Date.from(Instant.parse(String.format("2020-10-%02dT10:00:00Z", day)))
+      ));
+    }
+
+    assertThat(pointsService.spendPoints(userId, new UserSpendRequest(550L)))
+        .containsExactly(new UserSpendResponse("UNILEVER", -550L));
+    balanceEngine.flush();
+
+    assertThat(jdbcTemplate.queryForList(
+        "SELECT a.points FROM spend_allocations a JOIN spends s ON s.spend_id = a.spend_id WHERE s.user_id = ?",
+        Long.class, userId
+    )).containsExactlyInAnyOrder(100L, 100L, 100L, 100L, 100L, 50L);
+    assertThat(jdbcTemplate.queryForObject(
+        "SELECT points FROM spend_deductions d JOIN spends s ON s.spend_id = d.spend_id WHERE s.user_id = ?",
+        Long.class, userId
+    )).isEqualTo(550L);
+  }
+}
@@ -0,0 +1,125 @@
+package pointsservice.engine;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedJournalTest {
+
+  private static final long SEGMENT_SIZE = 10 * MappedJournal.RECORD_SIZE;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void readFrom_AfterReopen_ReturnsEveryMutationAcrossSegments() throws Exception {
+    final List<Mutation> mutations = LongStream.range(0, 25)
+        .mapToObj(i -> Mutation.earn(i, 5, 11, 100 + i, 1_600_000_000_000L + i))
+        .collect(Collectors.toList());
+    try (MappedJournal journal = new MappedJournal(directory, SEGMENT_SIZE)) {
+      journal.awaitDurable(journal.append(mutations.subList(0, 15)));
+    }
+    try (MappedJournal journal = new MappedJournal(directory, SEGMENT_SIZE)) {
+      journal.awaitDurable(journal.append(mutations.subList(15, 25)));
+      journal.truncateAt(25 * MappedJournal.RECORD_SIZE);
+    }
+
+    assertThat(new MappedJournal(directory, SEGMENT_SIZE).readFrom(0)).containsExactlyElementsOf(mutations);
+    assertThat(Files.list(directory).count()).isEqualTo(3);
+  }
+
+  @Test
+  void readFrom_TornRecord_StopsThereAndIsOverwritten() throws Exception {
+    try (MappedJournal journal = new MappedJournal(directory, SEGMENT_SIZE)) {
+      journal.append(List.of(Mutation.balance(5, 11, 100), Mutation.balance(5, 11, 200), Mutation.balance(5, 11, 300)));
+    }
+    try (FileChannel segment = FileChannel.open(Files.list(directory).findFirst().orElseThrow(), StandardOpenOption.WRITE)) {
+      segment.write(ByteBuffer.wrap(new byte[]{1}), MappedJournal.RECORD_SIZE + MappedJournal.RECORD_SIZE - 1);
+    }
+
+    try (MappedJournal journal = new MappedJournal(directory, SEGMENT_SIZE)) {
+      assertThat(journal.readFrom(0)).containsExactly(Mutation.balance(5, 11, 100));
+      journal.append(List.of(Mutation.balance(5, 11, 400)));
+      assertThat(journal.readFrom(0)).containsExactly(Mutation.balance(5, 11, 100), Mutation.balance(5, 11, 400));
+    }
+  }
+
+  @Test
+  void readFrom_AfterDiscardBefore_SkipsCoveredMutations() throws Exception {
+    final List<Mutation> mutations = LongStream.range(0, 25)
+        .mapToObj(i -> Mutation.lot(i, i))
+        .collect(Collectors.toList());
+    final long covered;
+    try (MappedJournal journal = new MappedJournal(directory, SEGMENT_SIZE)) {
+      covered = journal.append(mutations.subList(0, 23));
+      journal.append(mutations.subList(23, 25));
+      journal.discardBefore(covered);
+    }
+
+    assertThat(Files.list(directory).count()).isEqualTo(1);
+    try (MappedJournal journal = new MappedJournal(directory, SEGMENT_SIZE)) {
+      assertThat(journal.position()).isEqualTo(25 * MappedJournal.RECORD_SIZE);
+      assertThat(journal.readFrom(covered)).containsExactlyElementsOf(mutations.subList(23, 25));
+      journal.append(List.of(Mutation.lot(25, 25)));
+      assertThat(journal.readFrom(0)).containsExactlyElementsOf(
+          List.of(mutations.get(20), mutations.get(21), mutations.get(22), mutations.get(23), mutations.get(24), Mutation.lot(25, 25))
+      );
+    }
+  }
+
+  @Test
+  void readFrom_PayloadDoesNotFitInSegment_StartsTheNextOne() throws Exception {
+    final List<Mutation> mutations = LongStream.range(0, 8)
+        .mapToObj(i -> Mutation.lot(i, i))
+        .collect(Collectors.toList());
+    mutations.add(Mutation.idempotencyKey(
+        5, "spendPoints", "retry-1", 42, "[{\"payerName\":\"DANNON\",\"points\":-100}]".repeat(3), 1_600_000_000_000L
+    ));
+    try (MappedJournal journal = new MappedJournal(directory, SEGMENT_SIZE)) {
+      journal.awaitDurable(journal.append(mutations));
+    }
+
+    try (MappedJournal journal = new MappedJournal(directory, SEGMENT_SIZE)) {
+      journal.awaitDurable(journal.append(List.of(Mutation.lot(8, 8))));
+    }
+    mutations.add(Mutation.lot(8, 8));
+
+    assertThat(new MappedJournal(directory, SEGMENT_SIZE).readFrom(0)).containsExactlyElementsOf(mutations);
+    assertThat(Files.list(directory).count()).isEqualTo(2);
+  }
+
+  @Test
+  void awaitDurable_ConcurrentAppenders_AllRecorded() throws Exception {
+    final ExecutorService appenders = Executors.newFixedThreadPool(8);
+    try (MappedJournal journal = new MappedJournal(directory, 1 << 16)) {
+      final List<Mutation> mutations = new ArrayList<>();
+      for (int i = 0; i < 400; i++) {
+        final Mutation mutation = Mutation.lot(i, i);
+        mutations.add(mutation);
+        appenders.execute(() -> journal.awaitDurable(journal.append(List.of(mutation))));
+      }
+      appenders.shutdown();
+      assertThat(appenders.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+      assertThat(journal.readFrom(0)).containsExactlyInAnyOrderElementsOf(mutations);
+    }
+  }
+
+  @Test
+  void constructor_NoSegments_StartsEmpty() throws IOException {
+    assertThat(new MappedJournal(directory.resolve("new"), SEGMENT_SIZE).readFrom(0)).isEmpty();
+  }
+}
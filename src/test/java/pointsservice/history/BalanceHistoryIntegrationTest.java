@@ -0,0 +1,87 @@
+package pointsservice.history;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import pointsservice.compaction.LotCompactor;
+import pointsservice.model.entity.UserEntity;
+import pointsservice.model.request.TransactionRequest;
+import pointsservice.model.request.UserSpendRequest;
+import pointsservice.repository.UserRepository;
+import pointsservice.service.PointsService;
+
+@ActiveProfiles({"unit"})
+@SpringBootTest(properties = "points.compaction.enabled=false")
+class BalanceHistoryIntegrationTest {
+
+  @Autowired
+  private PointsService pointsService;
+  @Autowired
+  private BalanceCheckpointer balanceCheckpointer;
+  @Autowired
+  private LotCompactor lotCompactor;
+  @Autowired
+  private UserRepository userRepository;
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  private Long userId;
+
+  @BeforeEach
+  void setUp() {
+    userId = userRepository.save(UserEntity.builder().userName("AUDITED").build()).getUserId();
+    earn("DANNON", 100L, "2020-10-01T00:00:00Z");
+    earn("UNILEVER", 200L, "2020-10-05T00:00:00Z");
+    earn("DANNON", 300L, "2020-10-10T00:00:00Z");
+    pointsService.spendPoints(userId, new UserSpendRequest(150L));
+  }
+
+  @Test
+  void getPointsBalance_AsOf_ReplaysEarnsAndSpendsUpToThen() {
+    assertThat(balanceAsOf("2020-09-30T00:00:00Z")).isEqualTo(Map.of("DANNON", 0L, "UNILEVER", 0L));
+    assertThat(balanceAsOf("2020-10-03T00:00:00Z")).isEqualTo(Map.of("DANNON", 100L, "UNILEVER", 0L));
+    assertThat(balanceAsOf("2020-10-11T00:00:00Z")).isEqualTo(Map.of("DANNON", 400L, "UNILEVER", 200L));
+    assertThat(pointsService.getPointsBalance(userId, Date.from(Instant.now().plusSeconds(1))).getPayerBalances())
+        .isEqualTo(Map.of("DANNON", 300L, "UNILEVER", 150L));
+  }
+
+  @Test
+  void getPointsBalance_AsOfAfterCheckpointAndCompaction_MatchesFullReplay() {
+    balanceCheckpointer.checkpoint();
+    lotCompactor.compact();
+    assertThat(checkpoints()).isEqualTo(2);
+    earn("UNILEVER", 25L, "2020-10-06T00:00:00Z");
+
+    assertThat(balanceAsOf("2020-10-03T00:00:00Z")).isEqualTo(Map.of("DANNON", 100L, "UNILEVER", 0L));
+    assertThat(balanceAsOf("2020-10-11T00:00:00Z")).isEqualTo(Map.of("DANNON", 400L, "UNILEVER", 225L));
+    assertThat(pointsService.getPointsBalance(userId, Date.from(Instant.now().plusSeconds(1))).getPayerBalances())
+        .isEqualTo(Map.of("DANNON", 300L, "UNILEVER", 175L));
+
+    earn("DANNON", 50L, "2099-01-01T00:00:00Z");
+    balanceCheckpointer.checkpoint();
+    assertThat(checkpoints()).isEqualTo(3);
+    assertThat(pointsService.getPointsBalance(userId, Date.from(Instant.now().plusSeconds(1))).getPayerBalances())
+        .isEqualTo(Map.of("DANNON", 300L, "UNILEVER", 175L));
+    assertThat(balanceAsOf("2099-01-02T00:00:00Z")).isEqualTo(Map.of("DANNON", 350L, "UNILEVER", 175L));
+  }
+
+  private void earn(final String payer, final long points, final String timestamp) {
+    pointsService.addTransaction(userId, new TransactionRequest(payer, points, Date.from(Instant.parse(timestamp))));
+  }
+
+  private Map<String, Long> balanceAsOf(final String asOf) {
+    return pointsService.getPointsBalance(userId, Date.from(Instant.parse(asOf))).getPayerBalances();
+  }
+
+  private long checkpoints() {
+    return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM balance_checkpoints WHERE user_id = ?", Long.class, userId);
+  }
+}
@@ -0,0 +1,228 @@
+package pointsservice.ledger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import pointsservice.error.model.InsufficientBalanceException;
+
+class UserLedgerTest {
+
+  private static final long DANNON = 11;
+  private static final long UNILEVER = 22;
+
+  @Test
+  void allocate_CreditsOutOfOrder_SpendsOldestFirst() throws InsufficientBalanceException {
+    final UserLedger ledger = new UserLedger();
+    ledger.credit(3, DANNON, 300, 30);
+    ledger.credit(1, UNILEVER, 100, 10);
+    ledger.credit(4, DANNON, 200, 40);
+    ledger.credit(2, DANNON, 100, 20);
+    ledger.credit(2, DANNON, 100, 20);
+
+    final Allocations allocations = new Allocations();
+    final int lotsVisited = ledger.allocate(45, allocations);
+
+    assertThat(transactionIds(allocations)).containsExactly(1L, 2L, 4L);
+    assertThat(lotsVisited).isEqualTo(5);
+    assertThat(allocations.getRemaining(2)).isEqualTo(25);
+    assertThat(allocations.payerDeductions()).containsEntry(DANNON, 35L).containsEntry(UNILEVER, 10L);
+    assertThat(ledger.getAvailable()).isEqualTo(55);
+    assertThat(ledger.size()).isEqualTo(2);
+  }
+
+  @Test
+  void allocate_MoreThanAvailable_TakesNothing() {
+    final UserLedger ledger = new UserLedger();
+    ledger.credit(1, DANNON, 100, 10);
+
+    final Allocations allocations = new Allocations();
+    assertThatThrownBy(() -> ledger.allocate(11, allocations)).isInstanceOf(InsufficientBalanceException.class);
+    assertThat(allocations.isEmpty()).isTrue();
+    assertThat(ledger.getAvailable()).isEqualTo(10);
+  }
+
+  @Test
+  void quote_SpendsOldestFirst_LeavesLedgerUnchanged() throws InsufficientBalanceException {
+    final UserLedger ledger = new UserLedger();
+    ledger.credit(1, DANNON, 100, 10);
+    ledger.credit(2, UNILEVER, 200, 20);
+    ledger.credit(3, DANNON, 300, 30);
+
+    final Allocations quoted = new Allocations();
+    ledger.quote(45, quoted);
+
+    assertThat(transactionIds(quoted)).containsExactly(1L, 2L, 3L);
+    assertThat(quoted.getRemaining(2)).isEqualTo(15);
+    assertThat(quoted.payerDeductions()).containsEntry(DANNON, 25L).containsEntry(UNILEVER, 20L);
+    assertThat(ledger.getAvailable()).isEqualTo(60);
+    assertThat(ledger.size()).isEqualTo(3);
+    assertThatThrownBy(() -> ledger.quote(61, new Allocations())).isInstanceOf(InsufficientBalanceException.class);
+  }
+
+  @Test
+  void reverse_UsesUpLotsMidLedger_SkippedByLaterSpendsAndCompacted() throws InsufficientBalanceException {
+    final UserLedger ledger = new UserLedger();
+    for (int i = 0; i < 8; i++) {
+      ledger.credit(i, i % 2 == 0 ? DANNON : UNILEVER, i, 10);
+    }
+    final Allocations reversals = new Allocations();
+    ledger.reverse(UNILEVER, 25, reversals);
+    assertThat(transactionIds(reversals)).containsExactly(1L, 3L, 5L);
+
+    for (int i = 8; i < 40; i++) {
+      ledger.credit(i, DANNON, i, 10);
+    }
+    final Allocations allocations = new Allocations();
+    ledger.allocate(50, allocations);
+
+    assertThat(transactionIds(allocations)).containsExactly(0L, 2L, 4L, 5L, 6L, 7L);
+    assertThat(ledger.getAvailable()).isEqualTo(400 - 25 - 50);
+  }
+
+  @Test
+  void reverse_MoreThanPayerHolds_TakesNothing() {
+    final UserLedger ledger = new UserLedger();
+    ledger.credit(1, DANNON, 100, 10);
+    ledger.credit(2, UNILEVER, 200, 50);
+    ledger.credit(3, DANNON, 300, 10);
+
+    final Allocations reversals = new Allocations();
+    assertThatThrownBy(() -> ledger.reverse(DANNON, 21, reversals)).isInstanceOf(InsufficientBalanceException.class);
+    assertThat(reversals.isEmpty()).isTrue();
+    assertThat(ledger.getAvailable()).isEqualTo(70);
+    assertThat(ledger.size()).isEqualTo(3);
+  }
+
+  @Test
+  void allocateQuoteAndReverse_RandomHistories_MatchSortedScan() {
+    for (long seed = 0; seed < 500; seed++) {
+      final Random random = new Random(seed);
+      final UserLedger ledger = new UserLedger();
+      final SortedScanLedger expected = new SortedScanLedger();
+      final List<long[]> credited = new ArrayList<>();
+      for (int step = 0; step < 200; step++) {
+        final int operation = random.nextInt(10);
+        if (operation < 5) {
+          final long[] lot = !credited.isEmpty() && random.nextInt(8) == 0
+              ? credited.get(random.nextInt(credited.size()))
+              : new long[]{credited.size() + 1, 1 + random.nextInt(4), random.nextInt(50), 1 + random.nextInt(100)};
+          credited.add(lot);
+          ledger.credit(lot[0], lot[1], lot[2], lot[3]);
+          expected.credit(lot[0], lot[1], lot[2], lot[3]);
+        } else if (operation < 8) {
+          final long points = random.nextInt(Math.toIntExact(expected.available() + 20));
+          final List<List<Long>> expectedAllocations = expected.allocate(points);
+          assertThat(allocations(into -> ledger.quote(points, into)))
+              .as("seed %d step %d quote", seed, step)
+              .isEqualTo(expectedAllocations);
+          assertThat(allocations(into -> ledger.allocate(points, into)))
+              .as("seed %d step %d", seed, step)
+              .isEqualTo(expectedAllocations);
+        } else {
+          final long payerId = 1 + random.nextInt(4);
+          final long points = 1 + random.nextInt(Math.toIntExact(expected.available(payerId) + 10));
+          assertThat(allocations(into -> ledger.reverse(payerId, points, into)))
+              .as("seed %d step %d", seed, step)
+              .isEqualTo(expected.reverse(payerId, points));
+        }
+        assertThat(ledger.getAvailable()).as("seed %d step %d", seed, step).isEqualTo(expected.available());
+        assertThat(ledger.size()).as("seed %d step %d", seed, step).isEqualTo(expected.lots.size());
+      }
+    }
+  }
+
+  /**
+   * @return each allocation as {transaction id, payer id, points, remaining}, or {@code null} if nothing could be taken
+   */
+  private static List<List<Long>> allocations(final Allocate allocate) {
+    final Allocations allocations = new Allocations();
+    try {
+      allocate.into(allocations);
+    } catch (InsufficientBalanceException exception) {
+      assertThat(allocations.isEmpty()).isTrue();
+      return null;
+    }
+    final List<List<Long>> taken = new ArrayList<>();
+    for (int i = 0; i < allocations.size(); i++) {
+      taken.add(List.of(
+          allocations.getTransactionId(i), allocations.getPayerId(i), allocations.getPoints(i), allocations.getRemaining(i)
+      ));
+    }
+    return taken;
+  }
+
+  private static List<Long> transactionIds(final Allocations allocations) {
+    final List<Long> transactionIds = new ArrayList<>();
+    for (int i = 0; i < allocations.size(); i++) {
+      transactionIds.add(allocations.getTransactionId(i));
+    }
+    return transactionIds;
+  }
+
+  private interface Allocate {
+
+    void into(Allocations allocations) throws InsufficientBalanceException;
+  }
+
+  /**
+   * Reference allocator: every open lot in one list, sorted by timestamp then transaction id on each spend.
+   */
+  private static class SortedScanLedger {
+
+    private static final Comparator<long[]> SPEND_ORDER = Comparator
+        .<long[]>comparingLong(lot -> lot[2])
+        .thenComparingLong(lot -> lot[0]);
+
+    /** Each lot is {transaction id, payer id, timestamp, remaining}. */
+    private final List<long[]> lots = new ArrayList<>();
+
+    private void credit(final long transactionId, final long payerId, final long timestamp, final long points) {
+      if (lots.stream().noneMatch(lot -> lot[0] == transactionId && lot[2] == timestamp)) {
+        lots.add(new long[]{transactionId, payerId, timestamp, points});
+      }
+    }
+
+    private List<List<Long>> allocate(final long points) {
+      return take(null, points, available());
+    }
+
+    private List<List<Long>> reverse(final long payerId, final long points) {
+      return take(payerId, points, available(payerId));
+    }
+
+    private List<List<Long>> take(final Long payerId, final long points, final long available) {
+      if (points > available) {
+        return null;
+      }
+      lots.sort(SPEND_ORDER);
+      final List<List<Long>> taken = new ArrayList<>();
+      long pointsRemaining = points;
+      for (var lot : lots) {
+        if (pointsRemaining == 0) {
+          break;
+        }
+        if (payerId == null || lot[1] == payerId) {
+          final long deduction = Math.min(lot[3], pointsRemaining);
+          lot[3] -= deduction;
+          pointsRemaining -= deduction;
+          taken.add(List.of(lot[0], lot[1], deduction, lot[3]));
+        }
+      }
+      lots.removeIf(lot -> lot[3] == 0);
+      return taken;
+    }
+
+    private long available() {
+      return lots.stream().mapToLong(lot -> lot[3]).sum();
+    }
+
+    private long available(final long payerId) {
+      return lots.stream().filter(lot -> lot[1] == payerId).mapToLong(lot -> lot[3]).sum();
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package pointsservice.ledger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class UserLocksTest {
+
+  @Test
+  void lockAll_OtherUser_DoesNotWait() throws Exception {
+    final UserLocks locks = new UserLocks();
+    final List<Long> locked = locks.lockAll(List.of(3L, 1L, 3L));
+
+    CompletableFuture.runAsync(() -> {
+      locks.lock(2L);
+      locks.unlock(2L);
+    }).get(5, TimeUnit.SECONDS);
+    final CompletableFuture<Void> waiting = CompletableFuture.runAsync(() -> {
+      locks.lock(3L);
+      locks.unlock(3L);
+    });
+    Thread.sleep(100);
+
+    assertThat(locked).containsExactly(1L, 3L);
+    assertThat(waiting).isNotDone();
+    locks.unlockAll(locked);
+    waiting.get(5, TimeUnit.SECONDS);
+    assertThat(locks.size()).isZero();
+  }
+
+  @Test
+  void lock_Reentered_KeptUntilLastUnlock() {
+    final UserLocks locks = new UserLocks();
+    locks.lock(1L);
+    locks.lock(1L);
+    locks.unlock(1L);
+
+    assertThat(locks.size()).isEqualTo(1);
+    locks.unlock(1L);
+    assertThat(locks.size()).isZero();
+  }
+}
@@ -0,0 +1,217 @@
+package pointsservice.partition;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import pointsservice.FetchChallengePointsServiceApplication;
+import pointsservice.compaction.LotCompactor;
+import pointsservice.history.BalanceCheckpointer;
+
+/**
+ * Two nodes on localhost, each with its own database, splitting the users into even (first node) and odd (second
+ * node) partitions. The first forwards requests for the other's users, the second redirects them.
+ */
+class PartitionRoutingIntegrationTest {
+
+  private static final HttpClient CLIENT = HttpClient.newHttpClient();
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static String forwarding;
+  private static String redirecting;
+  private static ConfigurableApplicationContext forwardingNode;
+  private static ConfigurableApplicationContext redirectingNode;
+
+  @BeforeAll
+  static void start() throws IOException {
+    forwarding = "http://localhost:" + freePort();
+    redirecting = "http://localhost:" + freePort();
+    forwardingNode = start(forwarding, "forward");
+    redirectingNode = start(redirecting, "redirect");
+  }
+
+  @AfterAll
+  static void stop() {
+    forwardingNode.close();
+    redirectingNode.close();
+  }
+
+  @Test
+  void requests_RoutedToOwner_AndFollowItWhenPartitionMoves() throws Exception {
+    final HttpResponse<String> earned = send(forwarding, "POST", "/points/user/1",
+        "{\"payer\": \"DANNON\", \"points\": 300, \"timestamp\": \"2020-11-02T14:00:00Z\"}"
+    );
+    assertThat(earned.statusCode()).isEqualTo(200);
+    assertThat(json(earned).get("totalPoints").asLong()).isEqualTo(300);
+    assertThat(json(send(redirecting, "GET", "/points/user/1", null)).get("DANNON").asLong()).isEqualTo(300);
+
+    final HttpResponse<String> redirected = send(redirecting, "GET", "/points/user/2/transactions?limit=5", null);
+    assertThat(redirected.statusCode()).isEqualTo(307);
+    assertThat(redirected.headers().firstValue("Location"))
+        .hasValue(forwarding + "/points/user/2/transactions?limit=5");
+
+    final HttpResponse<String> moved = send(redirecting, "POST", "/points/partitions/1/move?to=" + forwarding, null);
+    assertThat(moved.statusCode()).isEqualTo(200);
+    assertThat(json(moved).get("openLots").asLong()).isEqualTo(1);
+    assertThat(json(send(forwarding, "GET", "/points/partitions", null)).get("1").asText()).isEqualTo(forwarding);
+    assertThat(json(send(redirecting, "GET", "/points/partitions", null)).get("1").asText()).isEqualTo(forwarding);
+
+    assertThat(send(redirecting, "GET", "/points/user/1", null).headers().firstValue("Location"))
+        .hasValue(forwarding + "/points/user/1");
+    final HttpResponse<String> spent = send(forwarding, "PATCH", "/points/user/1", "{\"points\": 100}");
+    assertThat(spent.statusCode()).isEqualTo(200);
+    assertThat(json(spent).get(0).get("points").asLong()).isEqualTo(-100);
+    assertThat(json(send(forwarding, "GET", "/points/user/1", null)).get("DANNON").asLong()).isEqualTo(200);
+    assertThat(redirectingNode.getBean(JdbcTemplate.class)
+        .queryForObject("SELECT COUNT(*) FROM transactions WHERE user_id = 1", Long.class)).isZero();
+
+    assertThat(send(redirecting, "POST", "/points/partitions/1/move?to=" + redirecting, null).statusCode())
+        .isEqualTo(409);
+  }
+
+  @Test
+  void move_CarriesHistoryAndIdempotencyKeys_ToNewOwner() throws Exception {
+    final String earn = "{\"payer\": \"DANNON\", \"points\": 300, \"timestamp\": \"2020-11-02T14:00:00Z\"}";
+    final HttpResponse<String> earned = send(forwarding, "POST", "/points/user/4", earn, "move-4");
+    assertThat(earned.statusCode()).isEqualTo(200);
+    send(forwarding, "POST", "/points/user/4",
+        "{\"payer\": \"UNILEVER\", \"points\": 200, \"timestamp\": \"2020-11-03T14:00:00Z\"}"
+    );
+    send(forwarding, "POST", "/points/user/4",
+        "{\"payer\": \"MILLER_COORS\", \"points\": 50, \"timestamp\": \"2020-11-04T14:00:00Z\"}"
+    );
+    send(forwarding, "PATCH", "/points/user/4", "{\"points\": 300}");
+    forwardingNode.getBean(LotCompactor.class).compact();
+    send(forwarding, "PATCH", "/points/user/4", "{\"points\": 200}");
+    forwardingNode.getBean(BalanceCheckpointer.class).checkpoint();
+    final JsonNode asOf = json(send(forwarding, "GET", "/points/user/4?asOf=2020-11-03T20:00:00Z", null));
+    final JsonNode transactions = withoutIds(json(send(forwarding, "GET", "/points/user/4/transactions", null)));
+    assertThat(asOf.get("DANNON").asLong()).isEqualTo(300);
+    assertThat(transactions.get("transactions")).hasSize(3);
+
+    final HttpResponse<String> moved = send(forwarding, "POST", "/points/partitions/0/move?to=" + redirecting, null);
+    assertThat(moved.statusCode()).isEqualTo(200);
+    assertThat(json(moved).get("historyRows").asLong()).isPositive();
+    assertThat(spends(forwardingNode, 4)).isZero();
+    assertThat(spends(redirectingNode, 4)).isEqualTo(2);
+
+    assertThat(json(send(redirecting, "GET", "/points/user/4?asOf=2020-11-03T20:00:00Z", null))).isEqualTo(asOf);
+    assertThat(withoutIds(json(send(redirecting, "GET", "/points/user/4/transactions", null)))).isEqualTo(transactions);
+    final HttpResponse<String> replayed = send(redirecting, "POST", "/points/user/4", earn, "move-4");
+    assertThat(replayed.statusCode()).isEqualTo(200);
+    assertThat(json(replayed)).isEqualTo(json(earned));
+    assertThat(json(send(redirecting, "GET", "/points/user/4", null)).get("DANNON").asLong()).isZero();
+    assertThat(json(send(redirecting, "PATCH", "/points/user/4", "{\"points\": 50}")).get(0).get("points").asLong())
+        .isEqualTo(-50);
+
+    assertThat(send(redirecting, "POST", "/points/partitions/0/move?to=" + forwarding, null).statusCode())
+        .isEqualTo(200);
+    assertThat(spends(forwardingNode, 4)).isEqualTo(3);
+    assertThat(json(send(forwarding, "GET", "/points/user/4", null)).get("MILLER_COORS").asLong()).isZero();
+  }
+
+  @Test
+  void bulkRequests_AnotherNodesUser_RejectedWithoutWriting() throws Exception {
+    final String earns = "[{\"userId\": 2, \"transactions\": "
+        + "[{\"payer\": \"DANNON\", \"points\": 100, \"timestamp\": \"2020-11-02T14:00:00Z\"}]}, "
+        + "{\"userId\": 3, \"transactions\": "
+        + "[{\"payer\": \"DANNON\", \"points\": 100, \"timestamp\": \"2020-11-02T14:00:00Z\"}]}]";
+    final HttpResponse<String> earned = send(redirecting, "POST", "/points/users/transactions", earns);
+    assertThat(earned.statusCode()).isEqualTo(421);
+    assertThat(json(earned).get("message").asText()).isEqualTo("User 2 is owned by " + forwarding);
+
+    final HttpResponse<String> spent = send(redirecting, "PATCH", "/points/users", "[{\"userId\": 2, \"points\": 0}]");
+    assertThat(spent.statusCode()).isEqualTo(200);
+    assertThat(json(spent).get(0).get("error").asText()).isEqualTo("User 2 is owned by " + forwarding);
+    assertThat(redirectingNode.getBean(JdbcTemplate.class)
+        .queryForObject("SELECT COUNT(*) FROM transactions WHERE user_id IN (2, 3)", Long.class)).isZero();
+  }
+
+  @Test
+  void setOwner_NotFromAConfiguredNode_Forbidden() throws Exception {
+    final HttpRequest.Builder setOwner = HttpRequest.newBuilder(URI.create(forwarding + "/points/partitions/0/owner"))
+        .PUT(HttpRequest.BodyPublishers.ofString(redirecting))
+        .header("Content-Type", "text/plain");
+
+    assertThat(CLIENT.send(setOwner.build(), HttpResponse.BodyHandlers.ofString()).statusCode()).isEqualTo(403);
+    setOwner.header(PartitionMover.NODE, "http://localhost:1");
+    assertThat(CLIENT.send(setOwner.build(), HttpResponse.BodyHandlers.ofString()).statusCode()).isEqualTo(403);
+    assertThat(json(send(forwarding, "GET", "/points/partitions", null)).get("0").asText()).isEqualTo(forwarding);
+  }
+
+  private static ConfigurableApplicationContext start(final String self, final String mode) {
+    return new SpringApplicationBuilder(FetchChallengePointsServiceApplication.class).run(
+        "--server.port=" + URI.create(self).getPort(),
+        "--spring.datasource.url=jdbc:h2:mem:points_" + mode + ";DB_CLOSE_ON_EXIT=FALSE",
+        "--points.compaction.enabled=false",
+        "--points.partitioning.enabled=true",
+        "--points.partitioning.partitions=2",
+        "--points.partitioning.nodes=" + forwarding + "," + redirecting,
+        "--points.partitioning.self=" + self,
+        "--points.partitioning.mode=" + mode
+    );
+  }
+
+  private static HttpResponse<String> send(
+      final String node,
+      final String method,
+      final String path,
+      final String body
+  ) throws Exception {
+    return send(node, method, path, body, null);
+  }
+
+  private static HttpResponse<String> send(
+      final String node,
+      final String method,
+      final String path,
+      final String body,
+      final String idempotencyKey
+  ) throws Exception {
+    final HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(node + path))
+        .method(method, body == null
+            ? HttpRequest.BodyPublishers.noBody()
+            : HttpRequest.BodyPublishers.ofString(body))
+        .header("Content-Type", "application/json");
+    if (idempotencyKey != null) {
+      request.header("Idempotency-Key", idempotencyKey);
+    }
+    return CLIENT.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  private static long spends(final ConfigurableApplicationContext node, final long userId) {
+    return node.getBean(JdbcTemplate.class)
+        .queryForObject("SELECT COUNT(*) FROM spends WHERE user_id = ?", Long.class, userId);
+  }
+
+  /**
+   * A transaction page less its transaction ids, which a move changes.
+   */
+  private static JsonNode withoutIds(final JsonNode page) {
+    page.get("transactions").forEach(transaction -> ((ObjectNode) transaction).remove("transactionId"));
+    return page;
+  }
+
+  private static JsonNode json(final HttpResponse<String> response) throws IOException {
+    return MAPPER.readTree(response.body());
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package pointsservice.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.test.context.ActiveProfiles;
+import pointsservice.error.model.InsufficientBalanceException;
+import pointsservice.model.entity.BalanceEntity;
+import pointsservice.model.entity.TransactionEntity;
+import pointsservice.model.entity.UserEntity;
+import pointsservice.model.request.TransactionRequest;
+import pointsservice.model.request.UserSpendRequest;
+import pointsservice.model.response.UserSpendResponse;
+import pointsservice.repository.BalanceRepository;
+import pointsservice.repository.TransactionRepository;
+import pointsservice.repository.UserRepository;
+
+@ActiveProfiles({"unit"})
+@SpringBootTest
+class PointsServiceConcurrencyTest {
+
+  private static final int THREADS = 8;
+  private static final int OPERATIONS_PER_THREAD = 100;
+  private static final List<String> PAYERS = List.of("DANNON", "UNILEVER", "MILLER_COORS");
+  private static final Instant EPOCH = Instant.parse("2020-10-01T00:00:00Z");
+
+  @Autowired
+  private PointsService pointsService;
+  @Autowired
+  private UserRepository userRepository;
+  @Autowired
+  private BalanceRepository balanceRepository;
+  @Autowired
+  private TransactionRepository transactionRepository;
+
+  @Test
+  void spendPoints_ConcurrentEarnsBulkEarnsAndSpendsForOneUser_ConserveBalance() throws Exception {
+    final Long userId = userRepository.save(UserEntity.builder().userName("STRESS").build()).getUserId();
+    final AtomicLong expectedBalance = new AtomicLong();
+    for (String payer : PAYERS) {
+      pointsService.addTransaction(userId, new TransactionRequest(payer, 500L, Date.from(EPOCH)));
+      expectedBalance.addAndGet(500);
+    }
+
+    final CountDownLatch start = new CountDownLatch(1);
+    final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    final List<Future<Void>> results = new ArrayList<>();
+    final Callable<Void> hammer = () -> {
+      start.await();
+      final ThreadLocalRandom random = ThreadLocalRandom.current();
+      for (int operation = 0; operation < OPERATIONS_PER_THREAD; operation++) {
+        try {
+          final int kind = random.nextInt(3);
+          if (kind == 0) {
+            final long points = random.nextLong(1, 60);
+            final long spent = pointsService.spendPoints(userId, new UserSpendRequest(points)).stream()
+                .mapToLong(UserSpendResponse::getPointsDeducted)
+                .sum();
+            assertThat(spent).isEqualTo(-points);
+            expectedBalance.addAndGet(-points);
+          } else if (kind == 1) {
+            final long points = random.nextLong(1, 40);
+            pointsService.addTransaction(userId, earn(random, points));
+            expectedBalance.addAndGet(points);
+          } else {
+            final long points = random.nextLong(1, 40);
+            pointsService.addTransactions(userId, List.of(earn(random, points), earn(random, points)));
+            expectedBalance.addAndGet(2 * points);
+          }
+        } catch (Exception exception) {
+          if (!(exception instanceof InsufficientBalanceException)
+              && !(exception instanceof OptimisticLockingFailureException)) {
+            throw exception;
+          }
+        }
+      }
+      return null;
+    };
+    for (int thread = 0; thread < THREADS; thread++) {
+      results.add(pool.submit(hammer));
+    }
+    start.countDown();
+    for (Future<Void> result : results) {
+      result.get();
+    }
+    pool.shutdown();
+
+    final List<BalanceEntity> balances = balanceRepository.findAllByUserUserId(userId);
+    assertThat(balances).allSatisfy(balance -> assertThat(balance.getPointBalance()).isNotNegative());
+    assertThat(balances.stream().mapToLong(BalanceEntity::getPointBalance).sum()).isEqualTo(expectedBalance.get());
+    assertThat(transactionRepository.findAll().stream()
+        .filter(transaction -> userId.equals(transaction.getUserId()))
+        .mapToLong(TransactionEntity::getRemainingPoints)
+        .sum()
+    ).isEqualTo(expectedBalance.get());
+    assertThat(pointsService.getPointsBalance(userId).getPayerBalances().values().stream().mapToLong(Long::longValue).sum())
+        .isEqualTo(expectedBalance.get());
+  }
+
+  private static TransactionRequest earn(final ThreadLocalRandom random, final long points) {
+    return new TransactionRequest(
+        PAYERS.get(random.nextInt(PAYERS.size())),
+        points,
+        Date.from(EPOCH.plus(random.nextInt(60 * 24), ChronoUnit.MINUTES))
+    );
+  }
+}
@@ -2,19 +2,37 @@ package pointsservice.service;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
+import pointsservice.cache.BalanceCache;
+import pointsservice.cache.IdempotencyCache;
+import pointsservice.cache.PayerCache;
+import pointsservice.configuration.PointsProperties;
+import pointsservice.engine.BalanceEngine;
 import pointsservice.error.model.InsufficientBalanceException;
+import pointsservice.history.BalanceHistory;
+import pointsservice.ledger.SpendLedger;
+import pointsservice.metrics.PointsMetrics;
 import pointsservice.model.entity.BalanceEntity;
 import pointsservice.model.entity.BalanceId;
 import pointsservice.model.entity.PayerEntity;
@@ -22,15 +40,18 @@ import pointsservice.model.entity.TransactionEntity;
 import pointsservice.model.entity.UserEntity;
 import pointsservice.model.request.TransactionRequest;
 import pointsservice.model.request.UserSpendRequest;
+import pointsservice.model.response.BulkTransactionResponse;
 import pointsservice.model.response.PointsBalanceResponse;
 import pointsservice.model.response.TransactionResponse;
 import pointsservice.model.response.UserSpendResponse;
 import pointsservice.repository.BalanceRepository;
+import pointsservice.repository.IdempotencyKeyRepository;
 import pointsservice.repository.PayerRepository;
+import pointsservice.repository.SpendRepository;
 import pointsservice.repository.TransactionRepository;
 import pointsservice.repository.UserRepository;
 
-@DataJpaTest
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.session_factory.statement_inspector=pointsservice.service.SqlStatementCounter")
 @ActiveProfiles({"test"})
 class PointsServiceIntegrationTest {
 
@@ -44,12 +65,41 @@ class PointsServiceIntegrationTest {
   private BalanceRepository balanceRepository;
   @Autowired
   private TransactionRepository transactionRepository;
+  @Autowired
+  private SpendRepository spendRepository;
+  @Autowired
+  private IdempotencyKeyRepository idempotencyKeyRepository;
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+  @Autowired
+  private PlatformTransactionManager transactionManager;
 
+  private PayerCache payerCache;
   private PointsService pointsService;
 
   @BeforeEach
   void setUp() {
-    pointsService = new PointsService(userRepository, payerRepository, balanceRepository, transactionRepository);
+    payerCache = new PayerCache(payerRepository);
+    pointsService = new PointsService(
+        userRepository,
+        payerCache,
+        new BalanceCache(new PointsProperties()),
+        new IdempotencyCache(
+            idempotencyKeyRepository,
+            new ObjectMapper(),
+            new StaticListableBeanFactory().getBeanProvider(BalanceEngine.class),
+            new PointsProperties()
+        ),
+        balanceRepository,
+        transactionRepository,
+        spendRepository,
+        new SpendLedger(transactionRepository),
+        new BalanceHistory(jdbcTemplate, Optional.empty()),
+        Optional.empty(),
+        Optional.empty(),
+        new PointsMetrics(new SimpleMeterRegistry()),
+        transactionManager
+    );
   }
 
   @Test
@@ -87,7 +137,9 @@ class PointsServiceIntegrationTest {
         user, payer
     );
     assertThat(response).usingRecursiveComparison().isEqualTo(expectedResponse);
-    assertThat(balanceRepository.getById(new BalanceId(user.getUserId(), payer.getPayerId()))).usingRecursiveComparison().isEqualTo(expectedBalance);
+    assertThat(balanceRepository.getById(new BalanceId(user.getUserId(), payer.getPayerId()))).usingRecursiveComparison().ignoringFields("version").isEqualTo(expectedBalance);
+    testEntityManager.flush();
+    testEntityManager.clear();
     assertThat(userRepository.getById(user.getUserId()).getBalances().size()).isEqualTo(1);
     assertThat(userRepository.getById(user.getUserId()).getTransactions().size()).isEqualTo(1);
     assertThat(transactionRepository.count()).isEqualTo(1);
@@ -119,8 +171,118 @@ class PointsServiceIntegrationTest {
         .build();
     final BalanceEntity expectedBalance = new BalanceEntity(transactionPoints, user, payer);
     assertThat(response).usingRecursiveComparison().isEqualTo(expectedResponse);
-    assertThat(balanceRepository.getById(new BalanceId(user.getUserId(), payer.getPayerId()))).usingRecursiveComparison().isEqualTo(expectedBalance);
-    assertThat(userRepository.getById(user.getUserId()).getBalances()).usingRecursiveFieldByFieldElementComparator().containsExactly(expectedBalance);
+    assertThat(balanceRepository.getById(new BalanceId(user.getUserId(), payer.getPayerId()))).usingRecursiveComparison().ignoringFields("version").isEqualTo(expectedBalance);
+    assertThat(balanceRepository.findAllByUserUserId(user.getUserId()))
+        .extracting(BalanceEntity::getPointBalance)
+        .containsExactly(transactionPoints);
+  }
+
+  @Test
+  void addTransaction_NegativePoints_TakesPointsFromOldestPayerTransactions() {
+    final UserEntity user = UserEntity.builder().build();
+    final PayerEntity payer1 = PayerEntity.builder().payerName("payerName1").build();
+    final PayerEntity payer2 = PayerEntity.builder().payerName("payerName2").build();
+    testEntityManager.persist(user);
+    testEntityManager.persist(payer1);
+    testEntityManager.persist(payer2);
+
+    pointsService.addTransaction(user.getUserId(), new TransactionRequest("payerName1", 300L, Date.from(Instant.parse("2020-10-31T10:00:00Z"))));
+    pointsService.addTransaction(user.getUserId(), new TransactionRequest("payerName2", 200L, Date.from(Instant.parse("2020-10-31T11:00:00Z"))));
+    pointsService.addTransaction(user.getUserId(), new TransactionRequest("payerName1", 1000L, Date.from(Instant.parse("2020-11-02T14:00:00Z"))));
+    final var response = pointsService.addTransaction(
+        user.getUserId(),
+        new TransactionRequest("payerName1", -200L, Date.from(Instant.parse("2020-10-31T15:00:00Z")))
+    );
+
+    assertThat(response.getTotalPoints()).isEqualTo(1100);
+    assertThat(transactionRepository.findAll())
+        .extracting(TransactionEntity::getTransactionPoints, TransactionEntity::getRemainingPoints)
+        .containsExactlyInAnyOrder(tuple(300L, 100L), tuple(200L, 200L), tuple(1000L, 1000L), tuple(-200L, 0L));
+    assertThat(pointsService.spendPoints(user.getUserId(), new UserSpendRequest(300L)))
+        .containsExactlyInAnyOrder(new UserSpendResponse("payerName1", -100L), new UserSpendResponse("payerName2", -200L));
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {10, 100_000})
+  void addTransaction_LongHistory_WritesOneBalanceAndOneTransaction(final int priorTransactions) {
+    final UserEntity user = UserEntity.builder().build();
+    final PayerEntity payer = PayerEntity.builder().payerName("payerName").build();
+    testEntityManager.persist(user);
+    testEntityManager.persist(payer);
+    testEntityManager.persist(new BalanceEntity((long) priorTransactions, user, payer));
+    testEntityManager.flush();
+    testEntityManager.getEntityManager().createNativeQuery(
+        "INSERT INTO transactions (transaction_id, transaction_points, remaining_points, timestamp, user_id, payer_id)"
+            + " SELECT -x, 1, 0, TIMESTAMP '2020-01-01 00:00:00', ?1, ?2 FROM SYSTEM_RANGE(1, ?3)"
+    ).setParameter(1, user.getUserId()).setParameter(2, payer.getPayerId()).setParameter(3, priorTransactions).executeUpdate();
+    testEntityManager.clear();
+    pointsService.addTransaction(user.getUserId(), new TransactionRequest("payerName", 1L, Date.from(Instant.now())));
+    testEntityManager.flush();
+    testEntityManager.clear();
+
+    SqlStatementCounter.reset();
+    final var response = pointsService.addTransaction(
+        user.getUserId(),
+        new TransactionRequest("payerName", 1L, Date.from(Instant.now()))
+    );
+    testEntityManager.flush();
+
+    assertThat(response.getTotalPoints()).isEqualTo(priorTransactions + 2L);
+    assertThat(SqlStatementCounter.statements())
+        .filteredOn(sql -> !sql.contains("next value for"))
+        .extracting(sql -> sql.trim().split("\\s+")[0].toLowerCase())
+        .containsExactly("select", "insert", "update");
+  }
+
+  @Test
+  void addTransactions_ManyTransactions_WritesOneBalancePerPayer() throws Exception {
+    final UserEntity user = UserEntity.builder().build();
+    final PayerEntity payer1 = PayerEntity.builder().payerName("payerName1").build();
+    final PayerEntity payer2 = PayerEntity.builder().payerName("payerName2").build();
+    testEntityManager.persist(user);
+    testEntityManager.persist(payer1);
+    testEntityManager.persist(payer2);
+    testEntityManager.persist(new BalanceEntity(50L, user, payer1));
+
+    final var response = pointsService.addTransactions(user.getUserId(), List.of(
+        new TransactionRequest("payerName1", 300L, Date.from(Instant.parse("2020-10-31T10:00:00Z"))),
+        new TransactionRequest("payerName2", 200L, Date.from(Instant.parse("2020-10-31T11:00:00Z"))),
+        new TransactionRequest("payerName1", -200L, Date.from(Instant.parse("2020-10-31T15:00:00Z"))),
+        new TransactionRequest("payerName1", 1000L, Date.from(Instant.parse("2020-11-02T14:00:00Z")))
+    ));
+
+    assertThat(response).usingRecursiveComparison().isEqualTo(new BulkTransactionResponse(
+        user.getUserId(), 4, Map.of("payerName1", 1150L, "payerName2", 200L)
+    ));
+    assertThat(balanceRepository.findAllByUserUserId(user.getUserId()))
+        .extracting(BalanceEntity::getPointBalance)
+        .containsExactlyInAnyOrder(1150L, 200L);
+    assertThat(transactionRepository.findAll())
+        .extracting(TransactionEntity::getTransactionPoints, TransactionEntity::getRemainingPoints)
+        .containsExactlyInAnyOrder(tuple(300L, 100L), tuple(200L, 200L), tuple(-200L, 0L), tuple(1000L, 1000L));
+  }
+
+  @Test
+  void addTransaction_CaseInsensitivePayerName_ServedFromPayerCache() {
+    final UserEntity user = UserEntity.builder().build();
+    final PayerEntity payer = PayerEntity.builder().payerName("payerName").build();
+    testEntityManager.persist(user);
+    testEntityManager.persist(payer);
+    payerCache.warm();
+
+    pointsService.addTransaction(user.getUserId(), new TransactionRequest("PAYERNAME", 10L, Date.from(Instant.now())));
+    final var response = pointsService.addTransaction(user.getUserId(), new TransactionRequest("payername", 10L, Date.from(Instant.now())));
+
+    assertThat(response.getPayerName()).isEqualTo("payerName");
+    assertThat(payerCache.getHits()).isEqualTo(2);
+    assertThat(payerCache.getMisses()).isZero();
+
+    testEntityManager.persist(PayerEntity.builder().payerName("NEW_PAYER").build());
+    pointsService.addTransaction(user.getUserId(), new TransactionRequest("new_payer", 10L, Date.from(Instant.now())));
+    pointsService.addTransaction(user.getUserId(), new TransactionRequest("NEW_PAYER", 10L, Date.from(Instant.now())));
+
+    assertThat(payerCache.getHits()).isEqualTo(3);
+    assertThat(payerCache.getMisses()).isEqualTo(1);
   }
 
   @Test
@@ -132,11 +294,11 @@ class PointsServiceIntegrationTest {
     final BalanceEntity balance1 = BalanceEntity.builder().user(user).payer(payer1).pointBalance(1100L).build();
     final BalanceEntity balance2 = BalanceEntity.builder().user(user).payer(payer2).pointBalance(200L).build();
     final BalanceEntity balance3 = BalanceEntity.builder().user(user).payer(payer3).pointBalance(10000L).build();
-    final TransactionEntity transaction1 = TransactionEntity.builder().transactionPoints(1000L).timestamp(Date.from(Instant.parse("2020-11-02T14:00:00Z"))).balance(balance1).build();
-    final TransactionEntity transaction2 = TransactionEntity.builder().transactionPoints(200L).timestamp(Date.from(Instant.parse("2020-10-31T11:00:00Z"))).balance(balance2).build();
-    final TransactionEntity transaction3 = TransactionEntity.builder().transactionPoints(-200L).timestamp(Date.from(Instant.parse("2020-10-31T15:00:00Z"))).balance(balance1).build();
-    final TransactionEntity transaction4 = TransactionEntity.builder().transactionPoints(10000L).timestamp(Date.from(Instant.parse("2020-11-01T14:00:00Z"))).balance(balance3).build();
-    final TransactionEntity transaction5 = TransactionEntity.builder().transactionPoints(300L).timestamp(Date.from(Instant.parse("2020-10-31T10:00:00Z"))).balance(balance1).build();
+    final TransactionEntity transaction1 = TransactionEntity.builder().transactionPoints(1000L).remainingPoints(1000L).timestamp(Date.from(Instant.parse("2020-11-02T14:00:00Z"))).balance(balance1).build();
+    final TransactionEntity transaction2 = TransactionEntity.builder().transactionPoints(200L).remainingPoints(200L).timestamp(Date.from(Instant.parse("2020-10-31T11:00:00Z"))).balance(balance2).build();
+    final TransactionEntity transaction3 = TransactionEntity.builder().transactionPoints(-200L).remainingPoints(0L).timestamp(Date.from(Instant.parse("2020-10-31T15:00:00Z"))).balance(balance1).build();
+    final TransactionEntity transaction4 = TransactionEntity.builder().transactionPoints(10000L).remainingPoints(10000L).timestamp(Date.from(Instant.parse("2020-11-01T14:00:00Z"))).balance(balance3).build();
+    final TransactionEntity transaction5 = TransactionEntity.builder().transactionPoints(300L).remainingPoints(100L).timestamp(Date.from(Instant.parse("2020-10-31T10:00:00Z"))).balance(balance1).build();
 
     user.setBalances(Set.of(balance1, balance2, balance3));
     user.setTransactions(Arrays.asList(transaction1, transaction2, transaction3, transaction4, transaction5));
@@ -164,18 +326,27 @@ class PointsServiceIntegrationTest {
     assertThat(balanceRepository.getById(new BalanceId(user.getUserId(), payer1.getPayerId())).getPointBalance()).isEqualTo(1000);
     assertThat(balanceRepository.getById(new BalanceId(user.getUserId(), payer2.getPayerId())).getPointBalance()).isZero();
     assertThat(balanceRepository.getById(new BalanceId(user.getUserId(), payer3.getPayerId())).getPointBalance()).isEqualTo(5300);
+    assertThat(spendRepository.findAll()).singleElement().satisfies(spend -> {
+      assertThat(spend.getUserId()).isEqualTo(user.getUserId());
+      assertThat(spend.getDeductions()).isEqualTo(Map.of(
+          payer1.getPayerId(), 100L, payer2.getPayerId(), 200L, payer3.getPayerId(), 4700L
+      ));
+      assertThat(spend.getAllocations()).isEqualTo(Map.of(
+          transaction5.getTransactionId(), 100L, transaction2.getTransactionId(), 200L, transaction4.getTransactionId(), 4700L
+      ));
+    });
   }
 
   @Test
-  void spendPoints_TransactionExceedsBalance_SkipsTransaction() {
+  void spendPoints_ConsumedTransaction_SkipsTransaction() {
     final long pointsToSpend = 500;
     final UserEntity user = UserEntity.builder().build();
     final PayerEntity payer = PayerEntity.builder().payerName("payerName").build();
     final PayerEntity payerToSkip = PayerEntity.builder().payerName("payerToSkipName").build();
     final BalanceEntity balance = BalanceEntity.builder().user(user).payer(payer).pointBalance(1100L).build();
-    final BalanceEntity balanceToSkip = BalanceEntity.builder().user(user).payer(payerToSkip).pointBalance(199L).build();
-    final TransactionEntity transaction = TransactionEntity.builder().transactionPoints(pointsToSpend).timestamp(Date.from(Instant.parse("2020-11-02T14:00:00Z"))).balance(balance).build();
-    final TransactionEntity transactionToSkip = TransactionEntity.builder().transactionPoints(200L).timestamp(Date.from(Instant.parse("2020-10-31T11:00:00Z"))).balance(balanceToSkip).build();
+    final BalanceEntity balanceToSkip = BalanceEntity.builder().user(user).payer(payerToSkip).pointBalance(0L).build();
+    final TransactionEntity transaction = TransactionEntity.builder().transactionPoints(pointsToSpend).remainingPoints(pointsToSpend).timestamp(Date.from(Instant.parse("2020-11-02T14:00:00Z"))).balance(balance).build();
+    final TransactionEntity transactionToSkip = TransactionEntity.builder().transactionPoints(200L).remainingPoints(0L).timestamp(Date.from(Instant.parse("2020-10-31T11:00:00Z"))).balance(balanceToSkip).build();
     user.setBalances(Set.of(balance, balanceToSkip));
     user.setTransactions(Arrays.asList(transaction, transactionToSkip));
 
@@ -194,7 +365,30 @@ class PointsServiceIntegrationTest {
     assertThat(balanceRepository.getById(new BalanceId(user.getUserId(), payer.getPayerId())).getPointBalance())
         .isEqualTo(600);
     assertThat(balanceRepository.getById(new BalanceId(user.getUserId(), payerToSkip.getPayerId())).getPointBalance())
-        .isEqualTo(199);
+        .isZero();
+  }
+
+  @Test
+  void spendPoints_RepeatedSpends_ContinueFromPartiallySpentTransaction() {
+    final UserEntity user = UserEntity.builder().build();
+    final PayerEntity payer1 = PayerEntity.builder().payerName("payerName1").build();
+    final PayerEntity payer2 = PayerEntity.builder().payerName("payerName2").build();
+    testEntityManager.persist(user);
+    testEntityManager.persist(payer1);
+    testEntityManager.persist(payer2);
+
+    pointsService.addTransaction(user.getUserId(), new TransactionRequest("payerName1", 300L, Date.from(Instant.parse("2020-10-31T10:00:00Z"))));
+    pointsService.addTransaction(user.getUserId(), new TransactionRequest("payerName2", 200L, Date.from(Instant.parse("2020-10-31T11:00:00Z"))));
+
+    assertThat(pointsService.spendPoints(user.getUserId(), new UserSpendRequest(100L)))
+        .containsExactly(new UserSpendResponse("payerName1", -100L));
+
+    pointsService.addTransaction(user.getUserId(), new TransactionRequest("payerName2", 50L, Date.from(Instant.parse("2020-10-30T10:00:00Z"))));
+
+    assertThat(pointsService.spendPoints(user.getUserId(), new UserSpendRequest(300L)))
+        .containsExactlyInAnyOrder(new UserSpendResponse("payerName1", -200L), new UserSpendResponse("payerName2", -100L));
+    assertThat(pointsService.getPointsBalance(user.getUserId()).getPayerBalances())
+        .isEqualTo(Map.of("payerName1", 0L, "payerName2", 150L));
   }
 
   @Test
@@ -206,10 +400,12 @@ class PointsServiceIntegrationTest {
     final BalanceEntity balance2 = BalanceEntity.builder().user(user).payer(payer2).pointBalance(3L).build();
     final TransactionEntity transaction = TransactionEntity.builder()
         .transactionPoints(6L)
+        .remainingPoints(6L)
         .timestamp(Date.from(Instant.parse("2020-10-01T12:00:00Z")))
         .balance(balance).build();
     final TransactionEntity transactionToSkip = TransactionEntity.builder()
         .transactionPoints(4L)
+        .remainingPoints(3L)
         .timestamp(Date.from(Instant.parse("2020-11-01T12:00:00Z"))).balance(balance2).build();
     user.setBalances(Set.of(balance, balance2));
     user.setTransactions(Arrays.asList(transaction, transactionToSkip));
@@ -265,4 +461,23 @@ class PointsServiceIntegrationTest {
     ));
     assertThat(response).usingRecursiveComparison().isEqualTo(expectedResponse);
   }
+
+  @Test
+  void getPointsBalance_RepeatedPolls_ServedFromCacheUntilPointsChange() {
+    final UserEntity user = UserEntity.builder().build();
+    final PayerEntity payer = PayerEntity.builder().payerName("payerName").build();
+    testEntityManager.persist(user);
+    testEntityManager.persist(payer);
+    pointsService.addTransaction(user.getUserId(), new TransactionRequest("payerName", 300L, Date.from(Instant.now())));
+
+    final PointsBalanceResponse response = pointsService.getPointsBalance(user.getUserId());
+    assertThat(pointsService.getPointsBalance(user.getUserId())).isSameAs(response);
+    assertThat(response.getPayerBalances()).isEqualTo(Map.of("payerName", 300L));
+
+    pointsService.addTransaction(user.getUserId(), new TransactionRequest("payerName", 50L, Date.from(Instant.now())));
+    assertThat(pointsService.getPointsBalance(user.getUserId()).getPayerBalances()).isEqualTo(Map.of("payerName", 350L));
+
+    pointsService.spendPoints(user.getUserId(), new UserSpendRequest(100L));
+    assertThat(pointsService.getPointsBalance(user.getUserId()).getPayerBalances()).isEqualTo(Map.of("payerName", 250L));
+  }
 }
@@ -0,0 +1,27 @@
+package pointsservice.service;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+/**
+ * Records the SQL Hibernate prepares, for tests that pin down how many statements an operation costs.
+ */
+public class SqlStatementCounter implements StatementInspector {
+
+  private static final List<String> STATEMENTS = new CopyOnWriteArrayList<>();
+
+  @Override
+  public String inspect(final String sql) {
+    STATEMENTS.add(sql);
+    return sql;
+  }
+
+  public static void reset() {
+    STATEMENTS.clear();
+  }
+
+  public static List<String> statements() {
+    return List.copyOf(STATEMENTS);
+  }
+}
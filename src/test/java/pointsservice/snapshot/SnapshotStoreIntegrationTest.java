@@ -0,0 +1,108 @@
+package pointsservice.snapshot;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import pointsservice.cache.BalanceCache;
+import pointsservice.ledger.SpendLedger;
+import pointsservice.model.entity.UserEntity;
+import pointsservice.model.request.TransactionRequest;
+import pointsservice.model.request.UserSpendRequest;
+import pointsservice.model.response.SnapshotResponse;
+import pointsservice.repository.UserRepository;
+import pointsservice.service.PointsService;
+
+@ActiveProfiles({"unit"})
+@SpringBootTest(properties = "points.compaction.enabled=false")
+class SnapshotStoreIntegrationTest {
+
+  private static final String SELECT_BALANCES =
+      "SELECT payer_id, point_balance FROM balances WHERE user_id = ? ORDER BY payer_id";
+  private static final String SELECT_OPEN_LOTS =
+      "SELECT transaction_id, payer_id, transaction_points, remaining_points, timestamp FROM transactions"
+          + " WHERE user_id = ? AND open_lot = TRUE ORDER BY transaction_id";
+
+  @Autowired
+  private SnapshotStore snapshotStore;
+  @Autowired
+  private PointsService pointsService;
+  @Autowired
+  private UserRepository userRepository;
+  @Autowired
+  private SpendLedger spendLedger;
+  @Autowired
+  private BalanceCache balanceCache;
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void load_AfterUserDeleted_RestoresBalancesAndOpenLots() {
+    final Long userId = userRepository.save(UserEntity.builder().userName("SNAPSHOTTED").build()).getUserId();
+    earn(userId, "DANNON", 100L, "2020-10-01T00:00:00Z");
+    earn(userId, "UNILEVER", 200L, "2020-10-05T00:00:00Z");
+    earn(userId, "DANNON", 300L, "2020-10-10T00:00:00Z");
+    pointsService.spendPoints(userId, new UserSpendRequest(150L));
+    final List<Map<String, Object>> balances = jdbcTemplate.queryForList(SELECT_BALANCES, userId);
+    final List<Map<String, Object>> openLots = jdbcTemplate.queryForList(SELECT_OPEN_LOTS, userId);
+
+    final Path path = directory.resolve("points.snapshot");
+    final SnapshotResponse written = snapshotStore.write(path);
+    assertThat(written.getOpenLots()).isGreaterThanOrEqualTo(2);
+    assertThat(written.getBytes()).isEqualTo(path.toFile().length());
+    delete(userId);
+
+    assertThat(snapshotStore.load(path)).isEqualTo(written);
+    assertThat(jdbcTemplate.queryForObject("SELECT user_name FROM users WHERE user_id = ?", String.class, userId))
+        .isEqualTo("SNAPSHOTTED");
+    assertThat(jdbcTemplate.queryForList(SELECT_BALANCES, userId)).isEqualTo(balances);
+    assertThat(jdbcTemplate.queryForList(SELECT_OPEN_LOTS, userId)).isEqualTo(openLots);
+    assertThat(pointsService.getPointsBalance(userId).getPayerBalances())
+        .isEqualTo(Map.of("DANNON", 300L, "UNILEVER", 150L));
+    pointsService.spendPoints(userId, new UserSpendRequest(400L));
+    assertThat(pointsService.getPointsBalance(userId).getPayerBalances())
+        .isEqualTo(Map.of("DANNON", 50L, "UNILEVER", 0L));
+    assertThat(userRepository.save(UserEntity.builder().userName("NEXT").build()).getUserId()).isGreaterThan(userId);
+  }
+
+  @Test
+  void load_NotASnapshot_Throws() throws Exception {
+    final Path path = Files.write(directory.resolve("garbage.snapshot"), new byte[SnapshotStore.HEADER_SIZE]);
+
+    assertThatThrownBy(() -> snapshotStore.load(path)).isInstanceOf(IllegalStateException.class);
+  }
+
+  private void earn(final Long userId, final String payer, final long points, final String timestamp) {
+    pointsService.addTransaction(userId, new TransactionRequest(payer, points, Date.from(Instant.parse(timestamp))));
+  }
+
+  /**
+   * Removes everything the user has, and anything cached for them, as if starting over with an empty database.
+   */
+  private void delete(final Long userId) {
+    jdbcTemplate.update("DELETE FROM spend_allocations WHERE spend_id IN (SELECT spend_id FROM spends WHERE user_id = ?)", userId);
+    jdbcTemplate.update("DELETE FROM spend_deductions WHERE spend_id IN (SELECT spend_id FROM spends WHERE user_id = ?)", userId);
+    jdbcTemplate.update("DELETE FROM spends WHERE user_id = ?", userId);
+    jdbcTemplate.update("DELETE FROM transactions WHERE user_id = ?", userId);
+    jdbcTemplate.update("DELETE FROM balance_checkpoints WHERE user_id = ?", userId);
+    jdbcTemplate.update("DELETE FROM balance_snapshots WHERE user_id = ?", userId);
+    jdbcTemplate.update("DELETE FROM balances WHERE user_id = ?", userId);
+    jdbcTemplate.update("DELETE FROM users WHERE user_id = ?", userId);
+    spendLedger.evict(userId);
+    balanceCache.evict(userId);
+  }
+}